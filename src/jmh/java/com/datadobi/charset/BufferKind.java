@@ -0,0 +1,24 @@
+package com.datadobi.charset;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Buffer combinations, each of which drives a different coder loop.
+ */
+public enum BufferKind {
+    /** heap bytes and chars: the array loops */
+    HEAP,
+    /** direct bytes, heap chars: the direct loops */
+    DIRECT_BYTES,
+    /** direct bytes and chars: the buffer loops */
+    DIRECT;
+
+    public ByteBuffer bytes(int capacity) {
+        return this == HEAP ? ByteBuffer.allocate(capacity) : ByteBuffer.allocateDirect(capacity);
+    }
+
+    public CharBuffer chars(int capacity) {
+        return this == DIRECT ? ByteBuffer.allocateDirect(capacity * 2).asCharBuffer() : CharBuffer.allocate(capacity);
+    }
+}
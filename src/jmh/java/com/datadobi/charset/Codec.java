@@ -0,0 +1,28 @@
+package com.datadobi.charset;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Charset implementations compared by the benchmarks.
+ */
+public enum Codec {
+    UTF_8(new UTF_8(), StandardCharsets.UTF_8),
+    UTF_16LE(new UTF_16LE(), StandardCharsets.UTF_16LE);
+
+    private final Charset forked;
+    private final Charset jdk;
+
+    Codec(Charset forked, Charset jdk) {
+        this.forked = forked;
+        this.jdk = jdk;
+    }
+
+    public Charset charset(boolean useJdk) {
+        return useJdk ? jdk : forked;
+    }
+
+    public String charsetName() {
+        return jdk.name();
+    }
+}
@@ -0,0 +1,82 @@
+package com.datadobi.charset;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * File-name-like inputs for the codec benchmarks.
+ */
+public enum Corpus {
+    ASCII("abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_-."),
+    LATIN("abcdefghijklmnopqrstuvwxyz0123456789_-.àáâäçèéêëïñöüß"),
+    CYRILLIC("абвгдежзийклмнопрстуф_-."),
+    CJK("一二三四五六七八九十文件夹日本語あいうえお_."),
+    EMOJI("abc_.😀😁😂📁📄🎉👍🚀"),
+    MALFORMED("abcdefghijklmnopqrstuvwxyz0123456789_-.éü一文");
+
+    private static final int NAME_COUNT = 1024;
+    private static final int MIN_NAME_LENGTH = 4;
+    private static final int MAX_NAME_LENGTH = 48;
+
+    private final int[] alphabet;
+
+    Corpus(String alphabet) {
+        this.alphabet = alphabet.codePoints().toArray();
+    }
+
+    /**
+     * Returns a newline separated listing of pseudo random file names. The
+     * listing is well-formed UTF-16, also for {@link #MALFORMED}.
+     */
+    public String text() {
+        Random random = new Random(0x5eed);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < NAME_COUNT; i++) {
+            int length = MIN_NAME_LENGTH + random.nextInt(MAX_NAME_LENGTH - MIN_NAME_LENGTH);
+            for (int j = 0; j < length; j++)
+                sb.appendCodePoint(alphabet[random.nextInt(alphabet.length)]);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the listing as chars to encode. For {@link #MALFORMED} some
+     * names contain an unpaired surrogate.
+     */
+    public char[] chars() {
+        char[] chars = text().toCharArray();
+        if (this == MALFORMED) {
+            for (int i = 17; i < chars.length; i += 97)
+                if (chars[i] != '\n')
+                    chars[i] = (i & 1) == 0 ? '\ud800' : '\udc00';
+        }
+        return chars;
+    }
+
+    /**
+     * Returns the listing encoded as {@code charset}. For {@link #MALFORMED}
+     * some names contain byte sequences that are not valid in that charset.
+     */
+    public byte[] bytes(String charset) {
+        if (charset.equals("UTF-16LE")) {
+            byte[] bytes = text().getBytes(StandardCharsets.UTF_16LE);
+            if (this == MALFORMED) {
+                // unpaired low surrogates
+                for (int i = 34; i + 1 < bytes.length; i += 194) {
+                    bytes[i] = 0x00;
+                    bytes[i + 1] = (byte) 0xdc;
+                }
+            }
+            return bytes;
+        }
+        byte[] bytes = text().getBytes(StandardCharsets.UTF_8);
+        if (this == MALFORMED) {
+            // stray continuation bytes, invalid lead bytes and truncated sequences
+            byte[] garbage = { (byte) 0x80, (byte) 0xff, (byte) 0xc0, (byte) 0xe0 };
+            for (int i = 17, j = 0; i < bytes.length; i += 97, j++)
+                bytes[i] = garbage[j & 3];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,78 @@
+package com.datadobi.charset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the decode loops, see {@link BufferKind} for which buffers drive
+ * which loop; {@code jdk=true} runs the same input through
+ * {@link java.nio.charset.StandardCharsets} as a baseline.
+ * Pass {@code -jvmArgsAppend --add-modules=jdk.incubator.vector} to measure
+ * the UTF-8 array loop with {@link VectorUTF_8}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+    @Param({"UTF_8", "UTF_16LE"})
+    public Codec codec;
+
+    @Param({"ASCII", "LATIN", "CYRILLIC", "CJK", "EMOJI", "MALFORMED"})
+    public Corpus corpus;
+
+    @Param({"HEAP", "DIRECT_BYTES", "DIRECT"})
+    public BufferKind buffers;
+
+    @Param({"false", "true"})
+    public boolean jdk;
+
+    private CharsetDecoder decoder;
+    private ByteBuffer src;
+    private CharBuffer dst;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        decoder = codec.charset(jdk).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        byte[] bytes = corpus.bytes(codec.charsetName());
+        int chars = (int) (bytes.length * decoder.maxCharsPerByte()) + 1;
+        src = buffers.bytes(bytes.length);
+        src.put(bytes).flip();
+        dst = buffers.chars(chars);
+    }
+
+    @Benchmark
+    public CharBuffer decode() {
+        src.rewind();
+        dst.clear();
+        decoder.reset();
+        CoderResult cr = decoder.decode(src, dst, true);
+        if (cr.isUnderflow())
+            cr = decoder.flush(dst);
+        if (!cr.isUnderflow())
+            throw new IllegalStateException(cr.toString());
+        return dst;
+    }
+}
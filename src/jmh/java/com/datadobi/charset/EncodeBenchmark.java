@@ -0,0 +1,77 @@
+package com.datadobi.charset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the encode loops, see {@link BufferKind} for which buffers drive
+ * which loop ({@code encodeArrayLoopSlow} is reached once non-ASCII input
+ * is seen); {@code jdk=true} runs the same input through
+ * {@link java.nio.charset.StandardCharsets} as a baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+    @Param({"UTF_8", "UTF_16LE"})
+    public Codec codec;
+
+    @Param({"ASCII", "LATIN", "CYRILLIC", "CJK", "EMOJI", "MALFORMED"})
+    public Corpus corpus;
+
+    @Param({"HEAP", "DIRECT_BYTES", "DIRECT"})
+    public BufferKind buffers;
+
+    @Param({"false", "true"})
+    public boolean jdk;
+
+    private CharsetEncoder encoder;
+    private CharBuffer src;
+    private ByteBuffer dst;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        encoder = codec.charset(jdk).newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        char[] chars = corpus.chars();
+        int bytes = (int) (chars.length * encoder.maxBytesPerChar()) + 4;
+        src = buffers.chars(chars.length);
+        src.put(chars).flip();
+        dst = buffers.bytes(bytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        src.rewind();
+        dst.clear();
+        encoder.reset();
+        CoderResult cr = encoder.encode(src, dst, true);
+        if (cr.isUnderflow())
+            cr = encoder.flush(dst);
+        if (!cr.isUnderflow())
+            throw new IllegalStateException(cr.toString());
+        return dst;
+    }
+}
@@ -0,0 +1,168 @@
+package com.datadobi.charset;
+
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.util.Objects;
+
+/**
+ * Decodes many short byte ranges of one backing array, such as the names
+ * of a directory listing, in a single call.
+ *
+ * All entries are decoded into one shared char array, the arena, and each
+ * entry's chars are located by an offset and a length, like its bytes.
+ * No decoder, buffer or String is created per entry, so the per-call setup
+ * of a CharsetDecoder is paid once for the whole batch. Strings can be
+ * created from the arena later, for the entries that need them.
+ *
+ * With {@link CodingErrorAction#REPORT} a malformed entry does not stop
+ * the batch: its char length is set to -1, it takes no room in the arena,
+ * and the other entries are decoded as usual. Where the entry went wrong
+ * can be had from the overloads with an {@code errorOffsets} array, which
+ * only malformed entries pay for: their bytes are scanned again.
+ */
+public final class BatchDecoder {
+
+    private BatchDecoder() { }
+
+    private interface ArrayDecoder {
+        int decode(byte[] sa, int sp, int sl, char[] da, int dp,
+                   CodingErrorAction onMalformed)
+                throws MalformedInputException;
+    }
+
+    private interface Validator {
+        int validate(byte[] b, int off, int len);
+    }
+
+    /**
+     * Decodes {@code count} UTF-8 entries of {@code b}, entry {@code i}
+     * being the {@code lengths[i]} bytes starting at {@code offsets[i]},
+     * into {@code arena}, which must have room for the sum of the lengths.
+     * The chars of entry {@code i} are stored at {@code charOffsets[i]},
+     * and their number in {@code charLengths[i]}. Each entry decodes as by
+     * {@link UTF_8#newString(byte[], int, int, CodingErrorAction)}.
+     *
+     * @return the number of malformed entries when {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT}, zero otherwise
+     */
+    public static int utf8(byte[] b, int[] offsets, int[] lengths, int count,
+                           char[] arena, int[] charOffsets, int[] charLengths,
+                           CodingErrorAction onMalformed)
+    {
+        return utf8(b, offsets, lengths, count, arena, charOffsets, charLengths,
+                    null, onMalformed);
+    }
+
+    /**
+     * Decodes {@code count} UTF-8 entries of {@code b} as
+     * {@link #utf8(byte[], int[], int[], int, char[], int[], int[], CodingErrorAction)}
+     * does, also storing in {@code errorOffsets[i]} the index in {@code b}
+     * of the first malformed sequence of entry {@code i}, as by
+     * {@link UTF_8#validate(byte[], int, int)}, or -1 if the entry was
+     * decoded, as every entry is unless {@code onMalformed} is
+     * {@link CodingErrorAction#REPORT}.
+     *
+     * @return the number of malformed entries when {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT}, zero otherwise
+     */
+    public static int utf8(byte[] b, int[] offsets, int[] lengths, int count,
+                           char[] arena, int[] charOffsets, int[] charLengths,
+                           int[] errorOffsets, CodingErrorAction onMalformed)
+    {
+        return decode(BatchDecoder::decodeUTF_8, UTF_8::validate,
+                      b, offsets, lengths, count, arena, charOffsets, charLengths,
+                      errorOffsets, onMalformed, false);
+    }
+
+    /**
+     * Decodes {@code count} UTF-16LE entries of {@code b} into
+     * {@code arena}, which must have room for {@code (lengths[i] + 1) / 2}
+     * chars per entry, see {@link #utf8}. Each entry decodes as by
+     * {@link UTF_16LE#newString(byte[], int, int, CodingErrorAction)}.
+     *
+     * @return the number of malformed entries when {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT}, zero otherwise
+     */
+    public static int utf16le(byte[] b, int[] offsets, int[] lengths, int count,
+                              char[] arena, int[] charOffsets, int[] charLengths,
+                              CodingErrorAction onMalformed)
+    {
+        return utf16le(b, offsets, lengths, count, arena, charOffsets, charLengths,
+                       null, onMalformed);
+    }
+
+    /**
+     * Decodes {@code count} UTF-16LE entries of {@code b} as
+     * {@link #utf16le(byte[], int[], int[], int, char[], int[], int[], CodingErrorAction)}
+     * does, also storing in {@code errorOffsets[i]} the index in {@code b}
+     * of the first unpaired surrogate or odd trailing byte of entry
+     * {@code i}, or -1 if the entry was decoded, see
+     * {@link #utf8(byte[], int[], int[], int, char[], int[], int[], int[], CodingErrorAction)}.
+     *
+     * @return the number of malformed entries when {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT}, zero otherwise
+     */
+    public static int utf16le(byte[] b, int[] offsets, int[] lengths, int count,
+                              char[] arena, int[] charOffsets, int[] charLengths,
+                              int[] errorOffsets, CodingErrorAction onMalformed)
+    {
+        return decode(UTF_16LE::decodeArray, UTF_16LE::validate,
+                      b, offsets, lengths, count, arena, charOffsets, charLengths,
+                      errorOffsets, onMalformed, true);
+    }
+
+    private static int decodeUTF_8(byte[] sa, int sp, int sl, char[] da, int dp,
+                                   CodingErrorAction onMalformed)
+            throws MalformedInputException
+    {
+        int n = UTF_8.decodeASCII(sa, sp, da, dp, sl - sp);
+        return UTF_8.decodeArray(sa, sp + n, sl, da, dp + n, onMalformed);
+    }
+
+    private static int decode(ArrayDecoder decoder, Validator validator, byte[] b,
+                              int[] offsets, int[] lengths, int count,
+                              char[] arena, int[] charOffsets, int[] charLengths,
+                              int[] errorOffsets, CodingErrorAction onMalformed,
+                              boolean utf16)
+    {
+        Objects.requireNonNull(onMalformed);
+        Objects.checkFromIndexSize(0, count, offsets.length);
+        Objects.checkFromIndexSize(0, count, lengths.length);
+        Objects.checkFromIndexSize(0, count, charOffsets.length);
+        Objects.checkFromIndexSize(0, count, charLengths.length);
+        if (errorOffsets != null)
+            Objects.checkFromIndexSize(0, count, errorOffsets.length);
+        // check everything up front, so that entries are never left half
+        // decoded by an exception
+        long room = 0;
+        for (int i = 0; i < count; i++) {
+            Objects.checkFromIndexSize(offsets[i], lengths[i], b.length);
+            room += utf16 ? (lengths[i] + 1) >> 1 : lengths[i];
+        }
+        if (room > arena.length)
+            throw new IllegalArgumentException("Arena too small: " +
+                                               arena.length + " < " + room);
+
+        int malformed = 0;
+        int dp = 0;
+        for (int i = 0; i < count; i++) {
+            int sp = offsets[i];
+            charOffsets[i] = dp;
+            try {
+                int end = decoder.decode(b, sp, sp + lengths[i], arena, dp,
+                                         onMalformed);
+                charLengths[i] = end - dp;
+                dp = end;
+                if (errorOffsets != null)
+                    errorOffsets[i] = -1;
+            } catch (MalformedInputException x) {
+                // the decoders do not say where, so look again
+                charLengths[i] = -1;
+                if (errorOffsets != null)
+                    errorOffsets[i] = validator.validate(b, sp, lengths[i]);
+                malformed++;
+            }
+        }
+        return malformed;
+    }
+}
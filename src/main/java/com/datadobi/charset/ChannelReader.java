@@ -0,0 +1,219 @@
+package com.datadobi.charset;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Objects;
+
+/**
+ * A Reader that decodes the bytes of a channel with a given decoder.
+ *
+ * Unlike InputStreamReader it does not go through the JDK's StreamDecoder:
+ * it drives the decoder directly over a reusable heap buffer, so the array
+ * loops of the coders in this package are used, and it takes no locks, so
+ * a virtual thread blocked in it never pins its carrier. As a consequence
+ * it is not safe for use by multiple threads at once.
+ *
+ * The channel must be in blocking mode.
+ */
+public final class ChannelReader extends Reader {
+
+    /** Default size of the byte buffer */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    // Large enough to always hold a complete sequence
+    private static final int MIN_BUFFER_SIZE = 16;
+
+    private final ReadableByteChannel ch;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bb;        // undecoded bytes, in read mode
+
+    // The second char of a pair decoded for a single-char read
+    private final CharBuffer pair = CharBuffer.allocate(2).flip();
+
+    private boolean endOfInput;         // channel returned -1
+    private boolean flushed;            // decoder flushed, nothing left
+    private boolean closed;
+
+    /**
+     * Creates a reader that decodes {@code ch} with {@code cs}, replacing
+     * malformed input and unmappable characters like InputStreamReader.
+     */
+    public ChannelReader(ReadableByteChannel ch, Charset cs) {
+        this(ch, cs.newDecoder()
+                   .onMalformedInput(CodingErrorAction.REPLACE)
+                   .onUnmappableCharacter(CodingErrorAction.REPLACE),
+             DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a reader that decodes {@code ch} with {@code dec}, reading
+     * {@code bufferSize} bytes at a time. The decoder is reset first and
+     * its error actions apply.
+     */
+    public ChannelReader(ReadableByteChannel ch, CharsetDecoder dec,
+                         int bufferSize)
+    {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Buffer size <= 0");
+        this.ch = Objects.requireNonNull(ch);
+        this.decoder = dec.reset();
+        this.bb = ByteBuffer.allocate(Math.max(bufferSize, MIN_BUFFER_SIZE))
+                            .flip();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+    }
+
+    public int read() throws IOException {
+        ensureOpen();
+        if (!pair.hasRemaining()) {
+            int n;
+            pair.clear();
+            while ((n = implRead(pair)) == 0)
+                ;
+            pair.flip();
+            if (n < 0)
+                return -1;
+        }
+        return pair.get();
+    }
+
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, cbuf.length);
+        ensureOpen();
+        if (len == 0)
+            return 0;
+        if (pair.hasRemaining()) {
+            cbuf[off] = pair.get();
+            return 1;
+        }
+        if (len == 1) {
+            int c = read();
+            if (c < 0)
+                return -1;
+            cbuf[off] = (char) c;
+            return 1;
+        }
+        int n;
+        // a decoder may produce nothing, say for a byte order mark
+        while ((n = implRead(CharBuffer.wrap(cbuf, off, len))) == 0)
+            ;
+        return n;
+    }
+
+    /**
+     * Decodes into {@code cb}, reading from the channel only while nothing
+     * has been decoded, so that available chars are returned rather than
+     * blocking for more.
+     *
+     * @return the number of chars decoded, or -1 at the end of the input
+     */
+    private int implRead(CharBuffer cb) throws IOException {
+        if (flushed)
+            return -1;
+        int start = cb.position();
+        for (;;) {
+            CoderResult cr = decoder.decode(bb, cb, endOfInput);
+            if (cr.isUnderflow()) {
+                if (endOfInput) {
+                    cr = decoder.flush(cb);
+                    if (cr.isOverflow())
+                        break;
+                    if (cr.isError())
+                        cr.throwException();
+                    flushed = true;
+                    break;
+                }
+                if (cb.position() > start)
+                    break;
+                fill();
+            } else if (cr.isOverflow()) {
+                break;
+            } else {
+                cr.throwException();
+            }
+        }
+        int n = cb.position() - start;
+        return (n == 0 && flushed) ? -1 : n;
+    }
+
+    // Reads more bytes after the undecoded ones
+    private void fill() throws IOException {
+        bb.compact();
+        try {
+            if (ch.read(bb) < 0)
+                endOfInput = true;
+        } finally {
+            bb.flip();
+        }
+    }
+
+    public long skip(long n) throws IOException {
+        if (n < 0)
+            throw new IllegalArgumentException("skip value is negative");
+        ensureOpen();
+        char[] skipBuffer = new char[(int) Math.min(n, DEFAULT_BUFFER_SIZE)];
+        long r = n;
+        while (r > 0) {
+            int k = read(skipBuffer, 0, (int) Math.min(r, skipBuffer.length));
+            if (k < 0)
+                break;
+            r -= k;
+        }
+        return n - r;
+    }
+
+    /**
+     * Tells whether undecoded bytes are buffered. A read may still block
+     * when they end inside a sequence.
+     */
+    public boolean ready() throws IOException {
+        ensureOpen();
+        return pair.hasRemaining() || bb.hasRemaining();
+    }
+
+    /**
+     * Decodes the rest of the input into {@code out}. A {@link ChannelWriter}
+     * is decoded into directly, without copying through a char array.
+     */
+    public long transferTo(Writer out) throws IOException {
+        Objects.requireNonNull(out, "out");
+        ensureOpen();
+        long transferred = 0;
+        if (pair.hasRemaining()) {
+            out.write(pair.get());
+            transferred++;
+        }
+        int n;
+        if (out instanceof ChannelWriter) {
+            ChannelWriter w = (ChannelWriter) out;
+            while ((n = implRead(w.buffer())) >= 0)
+                transferred += n;
+        } else {
+            char[] buf = new char[Math.max(bb.capacity(), 2)];
+            CharBuffer cb = CharBuffer.wrap(buf);
+            while ((n = implRead(cb.clear())) >= 0) {
+                out.write(buf, 0, n);
+                transferred += n;
+            }
+        }
+        return transferred;
+    }
+
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        ch.close();
+    }
+}
@@ -0,0 +1,197 @@
+package com.datadobi.charset;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Objects;
+
+/**
+ * A Writer that encodes chars with a given encoder and writes the bytes to
+ * a channel.
+ *
+ * Unlike OutputStreamWriter it does not go through the JDK's StreamEncoder:
+ * it drives the encoder directly between reusable heap buffers and takes no
+ * locks, so a virtual thread blocked in it never pins its carrier. As a
+ * consequence it is not safe for use by multiple threads at once.
+ *
+ * Chars are buffered until the buffer is full or the writer is flushed.
+ * Arrays at least as large as the buffer are encoded in place.
+ */
+public final class ChannelWriter extends Writer {
+
+    /** Default size of the char and byte buffers */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    // Large enough to always hold a complete sequence
+    private static final int MIN_BUFFER_SIZE = 16;
+
+    private final WritableByteChannel ch;
+    private final CharsetEncoder encoder;
+    private final CharBuffer cb;        // unencoded chars, in write mode
+    private final ByteBuffer bb;        // unwritten bytes, in write mode
+    private boolean closed;
+
+    /**
+     * Creates a writer that encodes to {@code ch} with {@code cs}, replacing
+     * malformed input and unmappable characters like OutputStreamWriter.
+     */
+    public ChannelWriter(WritableByteChannel ch, Charset cs) {
+        this(ch, cs.newEncoder()
+                   .onMalformedInput(CodingErrorAction.REPLACE)
+                   .onUnmappableCharacter(CodingErrorAction.REPLACE),
+             DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a writer that encodes to {@code ch} with {@code enc},
+     * buffering {@code bufferSize} chars and bytes. The encoder is reset
+     * first and its error actions apply.
+     */
+    public ChannelWriter(WritableByteChannel ch, CharsetEncoder enc,
+                         int bufferSize)
+    {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Buffer size <= 0");
+        int size = Math.max(bufferSize, MIN_BUFFER_SIZE);
+        this.ch = Objects.requireNonNull(ch);
+        this.encoder = enc.reset();
+        this.cb = CharBuffer.allocate(size);
+        this.bb = ByteBuffer.allocate(size);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+    }
+
+    public void write(int c) throws IOException {
+        ensureOpen();
+        if (!cb.hasRemaining())
+            encodeBuffer(false);
+        cb.put((char) c);
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, cbuf.length);
+        ensureOpen();
+        if (cb.position() == 0 && len >= cb.capacity()) {
+            CharBuffer src = CharBuffer.wrap(cbuf, off, len);
+            encode(src, false);
+            // at most a high surrogate waiting for its pair
+            cb.put(src);
+            return;
+        }
+        while (len > 0) {
+            if (!cb.hasRemaining())
+                encodeBuffer(false);
+            int n = Math.min(len, cb.remaining());
+            cb.put(cbuf, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, str.length());
+        ensureOpen();
+        char[] ca = cb.array();
+        while (len > 0) {
+            if (!cb.hasRemaining())
+                encodeBuffer(false);
+            int p = cb.position();
+            int n = Math.min(len, cb.remaining());
+            str.getChars(off, off + n, ca, p);
+            cb.position(p + n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Returns the char buffer, in write mode, with room for at least a
+     * surrogate pair. Used by {@link ChannelReader#transferTo(Writer)} to
+     * decode into it directly.
+     */
+    CharBuffer buffer() throws IOException {
+        ensureOpen();
+        if (cb.remaining() < 2)
+            encodeBuffer(false);
+        return cb;
+    }
+
+    // Encodes the buffered chars, keeping a trailing high surrogate
+    private void encodeBuffer(boolean endOfInput) throws IOException {
+        cb.flip();
+        try {
+            encode(cb, endOfInput);
+        } finally {
+            cb.compact();
+        }
+    }
+
+    private void encode(CharBuffer src, boolean endOfInput)
+        throws IOException
+    {
+        for (;;) {
+            CoderResult cr = encoder.encode(src, bb, endOfInput);
+            if (cr.isUnderflow())
+                return;
+            if (cr.isOverflow())
+                writeBytes();
+            else
+                cr.throwException();
+        }
+    }
+
+    private void writeBytes() throws IOException {
+        bb.flip();
+        try {
+            while (bb.hasRemaining())
+                ch.write(bb);
+        } finally {
+            bb.compact();
+        }
+    }
+
+    /**
+     * Encodes the buffered chars and writes all bytes to the channel. A
+     * trailing high surrogate stays buffered until its pair is written.
+     */
+    public void flush() throws IOException {
+        ensureOpen();
+        encodeBuffer(false);
+        writeBytes();
+    }
+
+    /**
+     * Encodes the remaining chars, flushes the encoder, writes all bytes
+     * and closes the channel. A trailing high surrogate is handled as
+     * malformed input.
+     */
+    public void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            encodeBuffer(true);
+            for (;;) {
+                CoderResult cr = encoder.flush(bb);
+                if (cr.isUnderflow())
+                    break;
+                if (cr.isOverflow())
+                    writeBytes();
+                else
+                    cr.throwException();
+            }
+            writeBytes();
+        } finally {
+            closed = true;
+            ch.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.datadobi.charset;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Flight Recorder support for the coders of this package: a
+ * {@code com.datadobi.charset.MalformedInput} event for every malformed
+ * input or unmappable character found by a coding loop, and a periodic
+ * {@code com.datadobi.charset.Throughput} event per charset.
+ *
+ * The events are off until {@link #install()} registers them, so that
+ * decoding does not start Flight Recorder by itself. After that the coders
+ * only do the bookkeeping for the events while a recording is running.
+ *
+ * The events themselves are in {@link JfrEvents}, which is only loaded if
+ * the {@code jdk.jfr} module is present. Offsets count the bytes (when
+ * decoding) or chars (when encoding) consumed since the coder was reset
+ * while a recording was running, so they are exact for coders reset after
+ * the recording started. Input that the CharsetDecoder or CharsetEncoder
+ * itself finds malformed at the end of input, without it passing through
+ * a coding loop, is not reported.
+ */
+public final class CoderEvents {
+
+    private CoderEvents() { }
+
+    static final boolean JFR = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+    private static boolean installed;
+
+    // Whether a recording is running, and whether one asks for throughput
+    // events; kept up to date by JfrEvents once installed
+    static volatile boolean active;
+    static volatile boolean throughput;
+
+    /**
+     * Registers the events with Flight Recorder, so that recordings can
+     * enable them. This does not start a recording. Does nothing if the
+     * events are registered already.
+     *
+     * @throws UnsupportedOperationException if the {@code jdk.jfr} module
+     *         is not present
+     */
+    public static synchronized void install() {
+        if (!JFR)
+            throw new UnsupportedOperationException("jdk.jfr module not present");
+        if (!installed) {
+            JfrEvents.register();
+            installed = true;
+        }
+    }
+
+    // Kinds of malformed input
+    static final String TRUNCATED = "Truncated sequence";
+    static final String OVERLONG = "Overlong encoding";
+    static final String SURROGATE = "Encoded surrogate";
+    static final String OUT_OF_RANGE = "Code point above U+10FFFF";
+    static final String INVALID_LEAD = "Invalid lead byte";
+    static final String UNPAIRED_HIGH = "Unpaired high surrogate";
+    static final String UNPAIRED_LOW = "Unpaired low surrogate";
+
+    static final class Counters {
+        final String charset;
+        final LongAdder bytesDecoded = new LongAdder();
+        final LongAdder charsDecoded = new LongAdder();
+        final LongAdder charsEncoded = new LongAdder();
+        final LongAdder bytesEncoded = new LongAdder();
+
+        private Counters(String charset) {
+            this.charset = charset;
+        }
+
+        void decoded(int bytes, int chars) {
+            bytesDecoded.add(bytes);
+            charsDecoded.add(chars);
+        }
+
+        void encoded(int chars, int bytes) {
+            charsEncoded.add(chars);
+            bytesEncoded.add(bytes);
+        }
+    }
+
+    static final Map<String, Counters> COUNTERS = new ConcurrentHashMap<>();
+
+    static Counters counters(Charset cs) {
+        return COUNTERS.computeIfAbsent(cs.name(), Counters::new);
+    }
+
+    /**
+     * Reports malformed UTF-8 starting at index {@code i} of {@code src}.
+     */
+    static void utf8Malformed(Charset cs, long offset, int length,
+                              ByteBuffer src, int i) {
+        if (active && JfrEvents.isMalformedEnabled())
+            JfrEvents.malformed(cs, true, offset, length, utf8Kind(src, i));
+    }
+
+    /**
+     * Reports malformed UTF-16, which is an unpaired high surrogate if
+     * four bytes and an unpaired low surrogate if two bytes long.
+     */
+    static void utf16Malformed(Charset cs, long offset, int length) {
+        if (active && JfrEvents.isMalformedEnabled())
+            JfrEvents.malformed(cs, true, offset, length,
+                                length == 4 ? UNPAIRED_HIGH : UNPAIRED_LOW);
+    }
+
+    /**
+     * Reports the unpaired surrogate {@code c}.
+     */
+    static void encodeMalformed(Charset cs, long offset, int length, char c) {
+        if (active && JfrEvents.isMalformedEnabled())
+            JfrEvents.malformed(cs, false, offset, length,
+                                Character.isHighSurrogate(c)
+                                        ? UNPAIRED_HIGH : UNPAIRED_LOW);
+    }
+
+    private static String utf8Kind(ByteBuffer src, int p) {
+        int b1 = src.get(p) & 0xff;
+        if (b1 < 0xc0 || b1 > 0xf4)
+            return INVALID_LEAD;
+        if (b1 < 0xc2)
+            return OVERLONG;
+        if (p + 1 >= src.limit())
+            return TRUNCATED;
+        int b2 = src.get(p + 1) & 0xff;
+        if ((b2 & 0xc0) != 0x80)
+            return TRUNCATED;
+        if ((b1 == 0xe0 && b2 < 0xa0) || (b1 == 0xf0 && b2 < 0x90))
+            return OVERLONG;
+        if (b1 == 0xed && b2 >= 0xa0)
+            return SURROGATE;
+        if (b1 == 0xf4 && b2 >= 0x90)
+            return OUT_OF_RANGE;
+        return TRUNCATED;
+    }
+}
@@ -0,0 +1,189 @@
+package com.datadobi.charset;
+
+import java.nio.charset.CoderResult;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide counters for the decoders and encoders of this package.
+ *
+ * Counting is off unless the system property
+ * {@code com.datadobi.charset.metrics} is {@code true} when this class is
+ * initialized. The flag is a constant, so when counting is off the JIT
+ * removes the counting code from the coding loops altogether.
+ */
+public final class CoderMetrics {
+
+    private CoderMetrics() { }
+
+    static final boolean ENABLED = Boolean.getBoolean("com.datadobi.charset.metrics");
+
+    private static final LongAdder DECODE_CALLS = new LongAdder();
+    private static final LongAdder BYTES_DECODED = new LongAdder();
+    private static final LongAdder CHARS_DECODED = new LongAdder();
+    private static final LongAdder ASCII_DECODED = new LongAdder();
+    private static final LongAdder ASCII_DECODE_EXITS = new LongAdder();
+    private static final LongAdder DECODE_OVERFLOWS = new LongAdder();
+    private static final LongAdder DECODE_ERRORS = new LongAdder();
+
+    private static final LongAdder ENCODE_CALLS = new LongAdder();
+    private static final LongAdder CHARS_ENCODED = new LongAdder();
+    private static final LongAdder BYTES_ENCODED = new LongAdder();
+    private static final LongAdder ASCII_ENCODED = new LongAdder();
+    private static final LongAdder ASCII_ENCODE_EXITS = new LongAdder();
+    private static final LongAdder ENCODE_OVERFLOWS = new LongAdder();
+    private static final LongAdder ENCODE_ERRORS = new LongAdder();
+
+    /**
+     * Returns whether counting is on.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    static void decoded(int bytes, int chars, CoderResult cr) {
+        DECODE_CALLS.increment();
+        BYTES_DECODED.add(bytes);
+        CHARS_DECODED.add(chars);
+        if (cr.isOverflow())
+            DECODE_OVERFLOWS.increment();
+        else if (cr.isError())
+            DECODE_ERRORS.increment();
+    }
+
+    /** Records {@code n} bytes taken by the ASCII loop out of {@code max} */
+    static void asciiDecoded(int n, int max) {
+        ASCII_DECODED.add(n);
+        if (n < max)
+            ASCII_DECODE_EXITS.increment();
+    }
+
+    static void encoded(int chars, int bytes, CoderResult cr) {
+        ENCODE_CALLS.increment();
+        CHARS_ENCODED.add(chars);
+        BYTES_ENCODED.add(bytes);
+        if (cr.isOverflow())
+            ENCODE_OVERFLOWS.increment();
+        else if (cr.isError())
+            ENCODE_ERRORS.increment();
+    }
+
+    /** Records {@code n} chars taken by the ASCII loop out of {@code max} */
+    static void asciiEncoded(int n, int max) {
+        ASCII_ENCODED.add(n);
+        if (n < max)
+            ASCII_ENCODE_EXITS.increment();
+    }
+
+    /**
+     * Returns the current counts. The counts are read one after the other
+     * while coding may go on, so they need not be exactly consistent.
+     */
+    public static Snapshot snapshot() {
+        return new Snapshot(
+                DECODE_CALLS.sum(), BYTES_DECODED.sum(), CHARS_DECODED.sum(),
+                ASCII_DECODED.sum(), ASCII_DECODE_EXITS.sum(),
+                DECODE_OVERFLOWS.sum(), DECODE_ERRORS.sum(),
+                ENCODE_CALLS.sum(), CHARS_ENCODED.sum(), BYTES_ENCODED.sum(),
+                ASCII_ENCODED.sum(), ASCII_ENCODE_EXITS.sum(),
+                ENCODE_OVERFLOWS.sum(), ENCODE_ERRORS.sum());
+    }
+
+    /**
+     * Sets all counts to zero.
+     */
+    public static void reset() {
+        DECODE_CALLS.reset();
+        BYTES_DECODED.reset();
+        CHARS_DECODED.reset();
+        ASCII_DECODED.reset();
+        ASCII_DECODE_EXITS.reset();
+        DECODE_OVERFLOWS.reset();
+        DECODE_ERRORS.reset();
+        ENCODE_CALLS.reset();
+        CHARS_ENCODED.reset();
+        BYTES_ENCODED.reset();
+        ASCII_ENCODED.reset();
+        ASCII_ENCODE_EXITS.reset();
+        ENCODE_OVERFLOWS.reset();
+        ENCODE_ERRORS.reset();
+    }
+
+    /**
+     * The counts at one point in time.
+     *
+     * A call is one invocation of a coding loop, that is one decode or
+     * encode step of a CharsetDecoder or CharsetEncoder. The ASCII counts
+     * only cover the UTF-8 coders, whose loops start with an ASCII loop;
+     * an exit is a call in which that loop stopped at a non-ASCII byte or
+     * char rather than at the end of the input or output.
+     */
+    public static final class Snapshot {
+        private final long decodeCalls, bytesDecoded, charsDecoded;
+        private final long asciiDecoded, asciiDecodeExits;
+        private final long decodeOverflows, decodeErrors;
+        private final long encodeCalls, charsEncoded, bytesEncoded;
+        private final long asciiEncoded, asciiEncodeExits;
+        private final long encodeOverflows, encodeErrors;
+
+        private Snapshot(long decodeCalls, long bytesDecoded, long charsDecoded,
+                         long asciiDecoded, long asciiDecodeExits,
+                         long decodeOverflows, long decodeErrors,
+                         long encodeCalls, long charsEncoded, long bytesEncoded,
+                         long asciiEncoded, long asciiEncodeExits,
+                         long encodeOverflows, long encodeErrors) {
+            this.decodeCalls = decodeCalls;
+            this.bytesDecoded = bytesDecoded;
+            this.charsDecoded = charsDecoded;
+            this.asciiDecoded = asciiDecoded;
+            this.asciiDecodeExits = asciiDecodeExits;
+            this.decodeOverflows = decodeOverflows;
+            this.decodeErrors = decodeErrors;
+            this.encodeCalls = encodeCalls;
+            this.charsEncoded = charsEncoded;
+            this.bytesEncoded = bytesEncoded;
+            this.asciiEncoded = asciiEncoded;
+            this.asciiEncodeExits = asciiEncodeExits;
+            this.encodeOverflows = encodeOverflows;
+            this.encodeErrors = encodeErrors;
+        }
+
+        public long decodeCalls() { return decodeCalls; }
+        public long bytesDecoded() { return bytesDecoded; }
+        public long charsDecoded() { return charsDecoded; }
+        /** Bytes decoded by the ASCII loop */
+        public long asciiDecoded() { return asciiDecoded; }
+        public long asciiDecodeExits() { return asciiDecodeExits; }
+        /** Calls that returned {@link CoderResult#OVERFLOW} */
+        public long decodeOverflows() { return decodeOverflows; }
+        /** Calls that returned malformed input or an unmappable character */
+        public long decodeErrors() { return decodeErrors; }
+
+        public long encodeCalls() { return encodeCalls; }
+        public long charsEncoded() { return charsEncoded; }
+        public long bytesEncoded() { return bytesEncoded; }
+        /** Chars encoded by the ASCII loop */
+        public long asciiEncoded() { return asciiEncoded; }
+        public long asciiEncodeExits() { return asciiEncodeExits; }
+        /** Calls that returned {@link CoderResult#OVERFLOW} */
+        public long encodeOverflows() { return encodeOverflows; }
+        /** Calls that returned malformed input or an unmappable character */
+        public long encodeErrors() { return encodeErrors; }
+
+        public String toString() {
+            return "decode[calls=" + decodeCalls +
+                    ", bytes=" + bytesDecoded +
+                    ", chars=" + charsDecoded +
+                    ", ascii=" + asciiDecoded +
+                    ", asciiExits=" + asciiDecodeExits +
+                    ", overflows=" + decodeOverflows +
+                    ", errors=" + decodeErrors +
+                    "] encode[calls=" + encodeCalls +
+                    ", chars=" + charsEncoded +
+                    ", bytes=" + bytesEncoded +
+                    ", ascii=" + asciiEncoded +
+                    ", asciiExits=" + asciiEncodeExits +
+                    ", overflows=" + encodeOverflows +
+                    ", errors=" + encodeErrors + "]";
+        }
+    }
+}
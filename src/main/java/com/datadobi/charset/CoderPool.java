@@ -0,0 +1,144 @@
+package com.datadobi.charset;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded pool of decoders and encoders for one charset.
+ *
+ * Coders are kept in a fixed number of slots that are claimed and refilled
+ * with single atomic operations, so acquiring never blocks and never pins a
+ * carrier thread. Unlike a ThreadLocal cache the number of pooled coders does
+ * not grow with the number of threads. Each thread starts looking at its own
+ * slot and tries a few neighbours; when none of them holds a coder a new one
+ * is created, and when none of them is free a released coder is dropped.
+ *
+ * Acquired coders are reset, report malformed input and unmappable
+ * characters, and have the default replacement of the charset.
+ */
+public final class CoderPool {
+
+    // slots looked at before giving up
+    private static final int MAX_PROBES = 4;
+
+    private final Charset cs;
+    // the replacements of fresh coders, restored on release
+    private final String decoderReplacement;
+    private final byte[] encoderReplacement;
+    private final AtomicReferenceArray<CharsetDecoder> decoders;
+    private final AtomicReferenceArray<CharsetEncoder> encoders;
+    private final int mask;
+    private final int probes;
+
+    /**
+     * Creates a pool for {@code cs} with two slots per available processor.
+     */
+    public CoderPool(Charset cs) {
+        this(cs, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a pool for {@code cs} holding up to {@code capacity} decoders
+     * and as many encoders, rounded up to a power of two.
+     */
+    public CoderPool(Charset cs, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Non-positive capacity: " + capacity);
+        if (!cs.canEncode())
+            throw new IllegalArgumentException("Charset does not support encoding: " + cs);
+        this.cs = cs;
+        this.decoderReplacement = cs.newDecoder().replacement();
+        this.encoderReplacement = cs.newEncoder().replacement();
+        int n = Integer.highestOneBit(Math.min(capacity, 1 << 16) * 2 - 1);
+        this.decoders = new AtomicReferenceArray<>(n);
+        this.encoders = new AtomicReferenceArray<>(n);
+        this.mask = n - 1;
+        this.probes = Math.min(n, MAX_PROBES);
+    }
+
+    public Charset charset() {
+        return cs;
+    }
+
+    // spreads threads over the slots
+    private int start() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+    }
+
+    /**
+     * Returns a reset decoder, either taken from the pool or newly created.
+     */
+    public CharsetDecoder acquireDecoder() {
+        int h = start();
+        for (int i = 0; i < probes; i++) {
+            int j = (h + i) & mask;
+            if (decoders.get(j) != null) {
+                CharsetDecoder dec = decoders.getAndSet(j, null);
+                if (dec != null)
+                    return dec;
+            }
+        }
+        return cs.newDecoder();
+    }
+
+    /**
+     * Resets {@code dec}, along with its actions and replacement, and
+     * returns it to the pool. The caller must not use it afterwards.
+     */
+    public void release(CharsetDecoder dec) {
+        if (!dec.charset().equals(cs))
+            throw new IllegalArgumentException("Decoder for " + dec.charset() + ", not " + cs);
+        dec.reset()
+           .onMalformedInput(CodingErrorAction.REPORT)
+           .onUnmappableCharacter(CodingErrorAction.REPORT);
+        if (!dec.replacement().equals(decoderReplacement))
+            dec.replaceWith(decoderReplacement);
+        int h = start();
+        for (int i = 0; i < probes; i++) {
+            if (decoders.compareAndSet((h + i) & mask, null, dec))
+                return;
+        }
+    }
+
+    /**
+     * Returns a reset encoder, either taken from the pool or newly created.
+     */
+    public CharsetEncoder acquireEncoder() {
+        int h = start();
+        for (int i = 0; i < probes; i++) {
+            int j = (h + i) & mask;
+            if (encoders.get(j) != null) {
+                CharsetEncoder enc = encoders.getAndSet(j, null);
+                if (enc != null)
+                    return enc;
+            }
+        }
+        return cs.newEncoder();
+    }
+
+    /**
+     * Resets {@code enc}, along with its actions and replacement, and
+     * returns it to the pool. The caller must not use it afterwards.
+     */
+    public void release(CharsetEncoder enc) {
+        if (!enc.charset().equals(cs))
+            throw new IllegalArgumentException("Encoder for " + enc.charset() + ", not " + cs);
+        enc.reset()
+           .onMalformedInput(CodingErrorAction.REPORT)
+           .onUnmappableCharacter(CodingErrorAction.REPORT);
+        // replaceWith checks the replacement by decoding it, so only
+        // call it if the replacement was changed
+        if (!Arrays.equals(enc.replacement(), encoderReplacement))
+            enc.replaceWith(encoderReplacement);
+        int h = start();
+        for (int i = 0; i < probes; i++) {
+            if (encoders.compareAndSet((h + i) & mask, null, enc))
+                return;
+        }
+    }
+}
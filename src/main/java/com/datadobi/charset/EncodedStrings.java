@@ -0,0 +1,434 @@
+package com.datadobi.charset;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Objects;
+
+/**
+ * Compares strings in their UTF-8 and UTF-16LE encoded form, without
+ * decoding them.
+ *
+ * Strings are compared by code point, so that the order is the same for
+ * both encodings: UTF-8 byte order is code point order, while UTF-16 code
+ * unit order, that of {@link String#compareTo}, puts supplementary
+ * characters before U+E000..U+FFFF.
+ *
+ * Malformed input is read by its own value, so that two encoded strings
+ * compare equal only if they are the same, and the order stays total. In
+ * UTF-8 each byte that does not belong to a well-formed sequence stands
+ * for the lone surrogate U+DC80 plus the byte, as decoded by
+ * {@link UTF_8#SURROGATE_ESCAPE}. In UTF-16LE an unpaired surrogate stands
+ * for itself, as decoded by {@link UTF_16LE#WTF_16LE}, and an odd trailing
+ * byte for a value above {@link Character#MAX_CODE_POINT}, after any
+ * string. Two encoded strings thus compare as their decoded strings would
+ * by code point.
+ *
+ * Case is ignored as by NTFS and SMB: each char of the Basic Multilingual
+ * Plane is replaced by its simple uppercase mapping,
+ * {@link Character#toUpperCase(char)}, and supplementary characters are
+ * left as they are.
+ */
+public final class EncodedStrings {
+
+    private EncodedStrings() { }
+
+    private static final VarHandle CHAR_LE =
+            MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** Code point order of whole UTF-8 encoded arrays */
+    public static final Comparator<byte[]> UTF_8_ORDER =
+            (a, b) -> compareUTF_8(a, 0, a.length, b, 0, b.length);
+
+    /** Code point order of whole UTF-16LE encoded arrays */
+    public static final Comparator<byte[]> UTF_16LE_ORDER =
+            (a, b) -> compareUTF_16LE(a, 0, a.length, b, 0, b.length);
+
+    /**
+     * Compares the UTF-8 encoded {@code a[aoff..aoff+alen)} with the UTF-8
+     * encoded {@code b[boff..boff+blen)} by code point.
+     *
+     * @return a negative number, zero or a positive number as {@code a} is
+     *         less than, equal to or greater than {@code b}
+     */
+    public static int compareUTF_8(byte[] a, int aoff, int alen,
+                                   byte[] b, int boff, int blen)
+    {
+        Objects.checkFromIndexSize(aoff, alen, a.length);
+        Objects.checkFromIndexSize(boff, blen, b.length);
+        int m = Arrays.mismatch(a, aoff, aoff + alen, b, boff, boff + blen);
+        if (m < 0)
+            return 0;
+        // Back up to where both are at the start of a sequence. A byte that
+        // is not a continuation byte always starts one. Failing that, three
+        // continuation bytes before m cannot belong to the same sequence as
+        // m, so taking them one by one reaches m as the decoder does.
+        int k = m;
+        for (int n = 0; n < 3 && k > 0; n++) {
+            if (!isContinuation(a[aoff + --k]))
+                break;
+        }
+        int i = aoff + k;
+        int j = boff + k;
+        int ie = aoff + alen;
+        int je = boff + blen;
+        while (i < ie && j < je) {
+            long p = nextUTF_8(a, i, ie);
+            long q = nextUTF_8(b, j, je);
+            int d = (int) p - (int) q;
+            if (d != 0)
+                return d;
+            i = (int) (p >>> 32);
+            j = (int) (q >>> 32);
+        }
+        return (i < ie ? 1 : 0) - (j < je ? 1 : 0);
+    }
+
+    /**
+     * Compares the UTF-16LE encoded {@code a[aoff..aoff+alen)} with the
+     * UTF-16LE encoded {@code b[boff..boff+blen)} by code point.
+     *
+     * @return a negative number, zero or a positive number as {@code a} is
+     *         less than, equal to or greater than {@code b}
+     */
+    public static int compareUTF_16LE(byte[] a, int aoff, int alen,
+                                      byte[] b, int boff, int blen)
+    {
+        Objects.checkFromIndexSize(aoff, alen, a.length);
+        Objects.checkFromIndexSize(boff, blen, b.length);
+        int m = Arrays.mismatch(a, aoff, aoff + alen, b, boff, boff + blen);
+        if (m < 0)
+            return 0;
+        // Back up to the first unit of the mismatching one, then over a high
+        // surrogate before it, which may pair with that unit. A high
+        // surrogate never ends a pair, so it starts a sequence.
+        int k = m & ~1;
+        if (k >= 2 && Character.isHighSurrogate((char) CHAR_LE.get(a, aoff + k - 2)))
+            k -= 2;
+        int i = aoff + k;
+        int j = boff + k;
+        int ie = aoff + alen;
+        int je = boff + blen;
+        while (i < ie && j < je) {
+            long p = nextUTF_16LE(a, i, ie);
+            long q = nextUTF_16LE(b, j, je);
+            int d = (int) p - (int) q;
+            if (d != 0)
+                return d;
+            i = (int) (p >>> 32);
+            j = (int) (q >>> 32);
+        }
+        return (i < ie ? 1 : 0) - (j < je ? 1 : 0);
+    }
+
+    /**
+     * Compares the UTF-8 encoded {@code a[aoff..aoff+alen)} with the
+     * UTF-16LE encoded {@code b[boff..boff+blen)} by code point.
+     *
+     * @return a negative number, zero or a positive number as {@code a} is
+     *         less than, equal to or greater than {@code b}
+     */
+    public static int compareUTF_8ToUTF_16LE(byte[] a, int aoff, int alen,
+                                             byte[] b, int boff, int blen)
+    {
+        Objects.checkFromIndexSize(aoff, alen, a.length);
+        Objects.checkFromIndexSize(boff, blen, b.length);
+        int i = aoff;
+        int j = boff;
+        int ie = aoff + alen;
+        int je = boff + blen;
+        while (i < ie && j < je) {
+            int c1 = a[i];
+            if (c1 >= 0 && je - j > 1 && b[j + 1] == 0) {
+                // ASCII on the left, and at most U+00FF on the right
+                int d = c1 - (b[j] & 0xff);
+                if (d != 0)
+                    return d;
+                i++;
+                j += 2;
+                continue;
+            }
+            long p = nextUTF_8(a, i, ie);
+            long q = nextUTF_16LE(b, j, je);
+            int d = (int) p - (int) q;
+            if (d != 0)
+                return d;
+            i = (int) (p >>> 32);
+            j = (int) (q >>> 32);
+        }
+        return (i < ie ? 1 : 0) - (j < je ? 1 : 0);
+    }
+
+    /**
+     * Tells whether the UTF-8 encoded {@code a[aoff..aoff+alen)} and the
+     * UTF-16LE encoded {@code b[boff..boff+blen)} encode the same string.
+     */
+    public static boolean equalsUTF_8ToUTF_16LE(byte[] a, int aoff, int alen,
+                                                byte[] b, int boff, int blen)
+    {
+        // every char takes at most three UTF-8 bytes, and a lone surrogate
+        // one escaped byte, while it takes two UTF-16 bytes
+        if (alen > 3 * ((blen + 1) >> 1)) {
+            Objects.checkFromIndexSize(aoff, alen, a.length);
+            Objects.checkFromIndexSize(boff, blen, b.length);
+            return false;
+        }
+        return compareUTF_8ToUTF_16LE(a, aoff, alen, b, boff, blen) == 0;
+    }
+
+    /**
+     * Tells whether the UTF-16LE encoded {@code a[aoff..aoff+alen)} and
+     * {@code b[boff..boff+blen)} are equal, ignoring case. Unpaired
+     * surrogates only equal themselves, as described for this class.
+     */
+    public static boolean equalsIgnoreCaseUTF_16LE(byte[] a, int aoff, int alen,
+                                                   byte[] b, int boff, int blen)
+    {
+        Objects.checkFromIndexSize(aoff, alen, a.length);
+        Objects.checkFromIndexSize(boff, blen, b.length);
+        int i = aoff;
+        int j = boff;
+        int ie = aoff + alen;
+        int je = boff + blen;
+        while (i < ie && j < je) {
+            long p = nextUTF_16LE(a, i, ie);
+            long q = nextUTF_16LE(b, j, je);
+            if (upcase((int) p) != upcase((int) q))
+                return false;
+            i = (int) (p >>> 32);
+            j = (int) (q >>> 32);
+        }
+        return i == ie && j == je;
+    }
+
+    /**
+     * Tells whether the UTF-8 encoded {@code a[aoff..aoff+alen)} and
+     * {@code b[boff..boff+blen)} are equal, ignoring case. Malformed bytes
+     * only equal themselves, as described for this class.
+     */
+    public static boolean equalsIgnoreCaseUTF_8(byte[] a, int aoff, int alen,
+                                                byte[] b, int boff, int blen)
+    {
+        Objects.checkFromIndexSize(aoff, alen, a.length);
+        Objects.checkFromIndexSize(boff, blen, b.length);
+        int i = aoff;
+        int j = boff;
+        int ie = aoff + alen;
+        int je = boff + blen;
+        while (i < ie && j < je) {
+            int c1 = a[i];
+            int c2 = b[j];
+            if ((c1 | c2) >= 0) {
+                // both ASCII
+                if (c1 != c2 && upcaseASCII(c1) != upcaseASCII(c2))
+                    return false;
+                i++;
+                j++;
+                continue;
+            }
+            long p = nextUTF_8(a, i, ie);
+            long q = nextUTF_8(b, j, je);
+            if (upcase((int) p) != upcase((int) q))
+                return false;
+            i = (int) (p >>> 32);
+            j = (int) (q >>> 32);
+        }
+        return i == ie && j == je;
+    }
+
+    /**
+     * Tells whether the UTF-8 encoded {@code a[aoff..aoff+alen)} and the
+     * UTF-16LE encoded {@code b[boff..boff+blen)} are equal, ignoring case.
+     * A malformed UTF-8 byte equals the lone surrogate it is escaped to.
+     */
+    public static boolean equalsIgnoreCaseUTF_8ToUTF_16LE(byte[] a, int aoff, int alen,
+                                                          byte[] b, int boff, int blen)
+    {
+        Objects.checkFromIndexSize(aoff, alen, a.length);
+        Objects.checkFromIndexSize(boff, blen, b.length);
+        // see equalsUTF_8ToUTF_16LE; upper casing keeps the number of units
+        if (alen > 3 * ((blen + 1) >> 1))
+            return false;
+        int i = aoff;
+        int j = boff;
+        int ie = aoff + alen;
+        int je = boff + blen;
+        while (i < ie && j < je) {
+            int c1 = a[i];
+            if (c1 >= 0 && je - j > 1 && b[j + 1] == 0 && b[j] >= 0) {
+                // both ASCII
+                int c2 = b[j];
+                if (c1 != c2 && upcaseASCII(c1) != upcaseASCII(c2))
+                    return false;
+                i++;
+                j += 2;
+                continue;
+            }
+            long p = nextUTF_8(a, i, ie);
+            long q = nextUTF_16LE(b, j, je);
+            if (upcase((int) p) != upcase((int) q))
+                return false;
+            i = (int) (p >>> 32);
+            j = (int) (q >>> 32);
+        }
+        return i == ie && j == je;
+    }
+
+    /**
+     * Returns a hash code of the UTF-8 encoded {@code b[off..off+len)} that
+     * ignores case. It is the {@link String#hashCode} of the string decoded
+     * by {@link UTF_8#SURROGATE_ESCAPE}, with each char upper cased as
+     * described for this class, so it agrees with
+     * {@link #equalsIgnoreCaseUTF_8} and equals that of the same string
+     * encoded in UTF-16LE, see
+     * {@link #hashCodeIgnoreCaseUTF_16LE(byte[], int, int)}.
+     */
+    public static int hashCodeIgnoreCaseUTF_8(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        int h = 0;
+        int i = off;
+        int end = off + len;
+        while (i < end) {
+            int c = b[i];
+            if (c >= 0) {
+                h = 31 * h + upcaseASCII(c);
+                i++;
+                continue;
+            }
+            long p = nextUTF_8(b, i, end);
+            h = hash(h, upcase((int) p));
+            i = (int) (p >>> 32);
+        }
+        return h;
+    }
+
+    /**
+     * Returns a hash code of the UTF-16LE encoded {@code b[off..off+len)}
+     * that ignores case. It is that of the string decoded by
+     * {@link UTF_16LE#WTF_16LE}, see
+     * {@link #hashCodeIgnoreCaseUTF_8(byte[], int, int)}, with an odd
+     * trailing byte hashed as one more value.
+     */
+    public static int hashCodeIgnoreCaseUTF_16LE(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        int h = 0;
+        int i = off;
+        int end = off + len;
+        while (i < end) {
+            long p = nextUTF_16LE(b, i, end);
+            h = hash(h, upcase((int) p));
+            i = (int) (p >>> 32);
+        }
+        return h;
+    }
+
+    // Adds the chars of cp to a String hash code; a value beyond the code
+    // points, an odd trailing byte, is added as it is
+    private static int hash(int h, int cp) {
+        if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT || cp > Character.MAX_CODE_POINT)
+            return 31 * h + cp;
+        return 31 * (31 * h + Character.highSurrogate(cp))
+                + Character.lowSurrogate(cp);
+    }
+
+    private static int upcaseASCII(int c) {
+        return c >= 'a' && c <= 'z' ? c - ('a' - 'A') : c;
+    }
+
+    private static int upcase(int cp) {
+        if (cp < 0x80)
+            return upcaseASCII(cp);
+        if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT)
+            return cp;
+        char[] page = Upcase.PAGES[cp >>> 8];
+        return page == null ? cp : page[cp & 0xff];
+    }
+
+    // Uppercase mapping of the BMP in pages of 256 chars, null for a page
+    // that maps to itself; loaded on first use
+    private static final class Upcase {
+        static final char[][] PAGES = new char[256][];
+
+        static {
+            for (int p = 0; p < 256; p++) {
+                char[] page = null;
+                for (int i = 0; i < 256; i++) {
+                    char c = (char) (p << 8 | i);
+                    char u = Character.toUpperCase(c);
+                    if (u != c && page == null) {
+                        page = new char[256];
+                        for (int k = 0; k < 256; k++)
+                            page[k] = (char) (p << 8 | k);
+                    }
+                    if (page != null)
+                        page[i] = u;
+                }
+                PAGES[p] = page;
+            }
+        }
+    }
+
+    private static boolean isContinuation(int b) {
+        return (b & 0xc0) == 0x80;
+    }
+
+    /**
+     * Reads the sequence at {@code b[i]}, the input ending at {@code end},
+     * as the UTF-8 decoder does. A malformed sequence is read one byte at a
+     * time, as by {@link UTF_8#SURROGATE_ESCAPE}.
+     *
+     * @return the index after the sequence and its code point, or the
+     *         escape of the malformed byte, as {@code next << 32 | cp}
+     */
+    static long nextUTF_8(byte[] b, int i, int end) {
+        int b1 = b[i];
+        if (b1 >= 0)
+            return ((long) (i + 1) << 32) | b1;
+        int srcRemaining = end - i;
+        int b2 = srcRemaining > 1 ? b[i + 1] : 0;
+        int b3 = srcRemaining > 2 ? b[i + 2] : 0;
+        int b4 = srcRemaining > 3 ? b[i + 3] : 0;
+        int cp;
+        switch (UTF_8.sequenceLength(b1, b2, b3, b4, srcRemaining)) {
+            case 2:
+                cp = ((b1 & 0x1f) << 6) | (b2 & 0x3f);
+                return ((long) (i + 2) << 32) | cp;
+            case 3:
+                cp = ((b1 & 0x0f) << 12) | ((b2 & 0x3f) << 6) | (b3 & 0x3f);
+                return ((long) (i + 3) << 32) | cp;
+            case 4:
+                cp = ((b1 & 0x07) << 18) | ((b2 & 0x3f) << 12) |
+                     ((b3 & 0x3f) << 6) | (b4 & 0x3f);
+                return ((long) (i + 4) << 32) | cp;
+            default:
+                return ((long) (i + 1) << 32) | UTF_8.escape((byte) b1);
+        }
+    }
+
+    /**
+     * Reads the unit or pair at {@code b[i]}, the input ending at
+     * {@code end}, as the WTF-16LE decoder does: an unpaired surrogate is
+     * read as itself, and an odd trailing byte as {@code ODD_BYTE} plus
+     * the byte.
+     *
+     * @return the index after it and its code point, as
+     *         {@code next << 32 | cp}
+     */
+    static long nextUTF_16LE(byte[] b, int i, int end) {
+        if (end - i < 2)
+            return ((long) end << 32) | (ODD_BYTE | (b[i] & 0xff));
+        char c = (char) CHAR_LE.get(b, i);
+        if (Character.isHighSurrogate(c) && end - i >= 4) {
+            char c2 = (char) CHAR_LE.get(b, i + 2);
+            if (Character.isLowSurrogate(c2))
+                return ((long) (i + 4) << 32) | Character.toCodePoint(c, c2);
+        }
+        return ((long) (i + 2) << 32) | c;
+    }
+
+    // Above all code points, so that a string ending in an odd byte
+    // follows any string without it
+    private static final int ODD_BYTE = Character.MAX_CODE_POINT + 1;
+}
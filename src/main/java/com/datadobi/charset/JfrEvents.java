@@ -0,0 +1,130 @@
+package com.datadobi.charset;
+
+import java.nio.charset.Charset;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Flight Recorder events of {@link CoderEvents}. This class must only be
+ * loaded after checking that the {@code jdk.jfr} module is present, see
+ * {@link CoderEvents#JFR}.
+ */
+final class JfrEvents {
+
+    private JfrEvents() { }
+
+    @Name("com.datadobi.charset.MalformedInput")
+    @Label("Malformed Input")
+    @Category({ "Datadobi", "Charset" })
+    @Description("Malformed input or an unmappable character found by a decoder or encoder")
+    static final class MalformedInput extends Event {
+        @Label("Charset")
+        String charset;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Offset")
+        @Description("Bytes when decoding, chars when encoding, since the coder was reset")
+        long offset;
+
+        @Label("Length")
+        int length;
+
+        @Label("Kind")
+        String kind;
+    }
+
+    @Name("com.datadobi.charset.Throughput")
+    @Label("Charset Throughput")
+    @Category({ "Datadobi", "Charset" })
+    @Description("Bytes and chars processed per charset since the previous event")
+    @Period("1 s")
+    @StackTrace(false)
+    static final class Throughput extends Event {
+        @Label("Charset")
+        String charset;
+
+        @Label("Bytes Decoded")
+        @DataAmount
+        long bytesDecoded;
+
+        @Label("Chars Decoded")
+        long charsDecoded;
+
+        @Label("Chars Encoded")
+        long charsEncoded;
+
+        @Label("Bytes Encoded")
+        @DataAmount
+        long bytesEncoded;
+    }
+
+    private static final EventType MALFORMED_INPUT =
+            EventType.getEventType(MalformedInput.class);
+    private static final EventType THROUGHPUT =
+            EventType.getEventType(Throughput.class);
+
+    static void register() {
+        FlightRecorder.addPeriodicEvent(Throughput.class, JfrEvents::emitThroughput);
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            public void recorderInitialized(FlightRecorder recorder) {
+                update(recorder);
+            }
+
+            public void recordingStateChanged(Recording recording) {
+                update(FlightRecorder.getFlightRecorder());
+            }
+        });
+    }
+
+    // Called as recordings start and stop, so that the coders stop doing
+    // the bookkeeping for the events once no recording is left
+    private static void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording r : recorder.getRecordings())
+            running |= r.getState() == RecordingState.RUNNING;
+        CoderEvents.active = running;
+        CoderEvents.throughput = running && THROUGHPUT.isEnabled();
+    }
+
+    private static void emitThroughput() {
+        // a running recording may enable the event after it started
+        CoderEvents.throughput = CoderEvents.active;
+        for (CoderEvents.Counters c : CoderEvents.COUNTERS.values()) {
+            Throughput e = new Throughput();
+            e.charset = c.charset;
+            e.bytesDecoded = c.bytesDecoded.sumThenReset();
+            e.charsDecoded = c.charsDecoded.sumThenReset();
+            e.charsEncoded = c.charsEncoded.sumThenReset();
+            e.bytesEncoded = c.bytesEncoded.sumThenReset();
+            e.commit();
+        }
+    }
+
+    static boolean isMalformedEnabled() {
+        return MALFORMED_INPUT.isEnabled();
+    }
+
+    static void malformed(Charset cs, boolean decode, long offset, int length, String kind) {
+        MalformedInput e = new MalformedInput();
+        e.charset = cs.name();
+        e.operation = decode ? "decode" : "encode";
+        e.offset = offset;
+        e.length = length;
+        e.kind = kind;
+        e.commit();
+    }
+}
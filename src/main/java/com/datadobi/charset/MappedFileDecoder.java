@@ -0,0 +1,109 @@
+package com.datadobi.charset;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Decodes files by mapping them into memory one window at a time and feeding
+ * the windows straight to a decoder, avoiding the copy into a heap buffer
+ * that reading through a stream or channel involves.
+ *
+ * A window that ends inside a multi-byte sequence is not copied or patched
+ * up: the next window is simply mapped starting at the first byte the
+ * decoder did not consume.
+ *
+ * Decoded characters are handed to a sink in chunks. The chunk is only
+ * valid for the duration of the call; the buffer is reused afterwards.
+ */
+public final class MappedFileDecoder {
+
+    private MappedFileDecoder() { }
+
+    /** Default number of bytes mapped at a time */
+    public static final int DEFAULT_WINDOW_SIZE = 64 << 20;
+
+    // Large enough to always hold a complete sequence
+    private static final int MIN_WINDOW_SIZE = 16;
+
+    private static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    /**
+     * Decodes the file at {@code path} with {@code dec}.
+     *
+     * @throws java.nio.charset.CharacterCodingException if the decoder
+     *         reports malformed input or an unmappable character
+     */
+    public static void decode(Path path, CharsetDecoder dec,
+                              Consumer<? super CharBuffer> sink)
+        throws IOException
+    {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            decode(ch, 0, ch.size(), dec, DEFAULT_WINDOW_SIZE,
+                   CharBuffer.allocate(DEFAULT_CHUNK_SIZE), sink);
+        }
+    }
+
+    /**
+     * Decodes {@code size} bytes of {@code ch} starting at {@code position}
+     * with {@code dec}, mapping at most {@code windowSize} bytes at a time.
+     * The decoder is reset first. Characters are decoded into {@code dst},
+     * which is passed to {@code sink}, flipped, whenever it is full and once
+     * more at the end.
+     *
+     * @throws java.nio.charset.CharacterCodingException if the decoder
+     *         reports malformed input or an unmappable character
+     */
+    public static void decode(FileChannel ch, long position, long size,
+                              CharsetDecoder dec, int windowSize,
+                              CharBuffer dst, Consumer<? super CharBuffer> sink)
+        throws IOException
+    {
+        if (position < 0 || size < 0)
+            throw new IllegalArgumentException("Negative position or size");
+        if (windowSize < MIN_WINDOW_SIZE)
+            throw new IllegalArgumentException("Window too small: " + windowSize);
+        if (dst.capacity() < 2)
+            throw new IllegalArgumentException("Buffer too small: " + dst.capacity());
+
+        dec.reset();
+        dst.clear();
+        long end = position + size;
+        long pos = position;
+        boolean endOfInput;
+        do {
+            long n = Math.min(windowSize, end - pos);
+            endOfInput = pos + n == end;
+            MappedByteBuffer src = ch.map(FileChannel.MapMode.READ_ONLY, pos, n);
+            for (;;) {
+                CoderResult cr = dec.decode(src, dst, endOfInput);
+                if (cr.isUnderflow())
+                    break;
+                if (cr.isOverflow()) {
+                    drain(dst, sink);
+                    continue;
+                }
+                cr.throwException();
+            }
+            // a sequence cut short by the window is mapped again
+            pos += src.position();
+        } while (!endOfInput);
+
+        while (dec.flush(dst).isOverflow())
+            drain(dst, sink);
+        drain(dst, sink);
+    }
+
+    private static void drain(CharBuffer dst, Consumer<? super CharBuffer> sink) {
+        dst.flip();
+        if (dst.hasRemaining())
+            sink.accept(dst);
+        dst.clear();
+    }
+}
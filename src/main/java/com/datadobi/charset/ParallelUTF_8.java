@@ -0,0 +1,158 @@
+package com.datadobi.charset;
+
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Decodes and validates large UTF-8 byte arrays on a ForkJoinPool.
+ *
+ * The input is split into chunks that start at a byte that is not a
+ * continuation byte. The sequential decoder always starts a new sequence at
+ * such a byte, so every chunk decodes, and reports malformed input, exactly
+ * as it would as part of the whole. Decoding takes two passes: the first
+ * counts the chars of each chunk, the second decodes each chunk straight
+ * into its place in the result.
+ *
+ * Inputs too short to be worth splitting are decoded on the calling thread.
+ */
+public final class ParallelUTF_8 {
+
+    private ParallelUTF_8() { }
+
+    // Smallest chunk handed to a task
+    private static final int MIN_CHUNK = 1 << 20;
+
+    /**
+     * Decodes {@code len} bytes of {@code b} starting at {@code off} on the
+     * common pool. The result is the same as that of
+     * {@link UTF_8#newString(byte[], int, int, CodingErrorAction)}.
+     *
+     * @throws MalformedInputException if {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT} and the input is malformed,
+     *         for the first malformed sequence
+     */
+    public static String newString(byte[] b, int off, int len,
+                                   CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        return newString(ForkJoinPool.commonPool(), b, off, len, onMalformed);
+    }
+
+    /**
+     * Decodes {@code len} bytes of {@code b} starting at {@code off} on
+     * {@code pool}, see {@link #newString(byte[], int, int, CodingErrorAction)}.
+     */
+    public static String newString(ForkJoinPool pool, byte[] b, int off, int len,
+                                   CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        Objects.checkFromIndexSize(off, len, b.length);
+        int[] bounds = split(pool, b, off, len);
+        int chunks = bounds.length - 1;
+        if (chunks == 1)
+            return UTF_8.newString(b, off, len, onMalformed);
+
+        if (onMalformed == CodingErrorAction.REPORT) {
+            int i = validate(pool, b, bounds);
+            if (i >= 0)
+                throw new MalformedInputException(UTF_8.malformedLength(b, i, off + len));
+        }
+
+        boolean replace = onMalformed != CodingErrorAction.IGNORE;
+        int[] start = new int[chunks + 1];
+        invoke(pool, chunks, c ->
+                start[c + 1] = UTF_8.decodedLength(b, bounds[c], bounds[c + 1], replace));
+        for (int c = 0; c < chunks; c++)
+            start[c + 1] += start[c];
+
+        char[] da = new char[start[chunks]];
+        invoke(pool, chunks, c ->
+                decode(b, bounds[c], bounds[c + 1], da, start[c], onMalformed));
+        return new String(da);
+    }
+
+    /**
+     * Returns the index of the first malformed sequence in the {@code len}
+     * bytes of {@code b} starting at {@code off}, or -1 if they are
+     * well-formed UTF-8, validating on the common pool. The result is the
+     * same as that of {@link UTF_8#validate(byte[], int, int)}.
+     */
+    public static int validate(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        return validate(pool, b, split(pool, b, off, len));
+    }
+
+    private static int validate(ForkJoinPool pool, byte[] b, int[] bounds) {
+        int chunks = bounds.length - 1;
+        int[] first = new int[chunks];
+        invoke(pool, chunks, c ->
+                first[c] = UTF_8.validate(b, bounds[c], bounds[c + 1] - bounds[c]));
+        for (int i : first) {
+            if (i >= 0)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the chunk boundaries of {@code b[off..off+len)}, the first
+     * being {@code off} and the last {@code off + len}.
+     */
+    private static int[] split(ForkJoinPool pool, byte[] b, int off, int len) {
+        int chunks = Math.max(1, Math.min(len / MIN_CHUNK, 4 * pool.getParallelism()));
+        int end = off + len;
+        int[] bounds = new int[chunks + 1];
+        bounds[0] = off;
+        for (int c = 1; c < chunks; c++) {
+            int i = Math.max(bounds[c - 1], off + (int) ((long) len * c / chunks));
+            // never split a sequence
+            while (i < end && (b[i] & 0xc0) == 0x80)
+                i++;
+            bounds[c] = i;
+        }
+        bounds[chunks] = end;
+        return bounds;
+    }
+
+    private static void decode(byte[] sa, int sp, int sl, char[] da, int dp,
+                               CodingErrorAction onMalformed) {
+        int n = UTF_8.decodeASCII(sa, sp, da, dp, sl - sp);
+        try {
+            UTF_8.decodeArray(sa, sp + n, sl, da, dp + n, onMalformed);
+        } catch (MalformedInputException x) {
+            // the input was validated first
+            throw new Error(x);
+        }
+    }
+
+    private static void invoke(ForkJoinPool pool, int chunks, IntConsumer work) {
+        pool.invoke(new Chunks(0, chunks, work));
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Chunks extends RecursiveAction {
+        private final int lo, hi;
+        private final IntConsumer work;
+
+        Chunks(int lo, int hi, IntConsumer work) {
+            this.lo = lo;
+            this.hi = hi;
+            this.work = work;
+        }
+
+        protected void compute() {
+            if (hi - lo == 1) {
+                work.accept(lo);
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Chunks(lo, mid, work), new Chunks(mid, hi, work));
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.datadobi.charset;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of decoded strings keyed on their encoded bytes, meant for
+ * short, often repeated input such as file and directory names. A hit
+ * returns the string decoded earlier, without decoding again and without
+ * allocating a new string.
+ *
+ * Entries live in a fixed size table of atomic slots. A key may only be
+ * stored in the few slots following its hash; when these are all taken,
+ * an entry that was not used since the last time the slots were swept is
+ * evicted, as in the clock algorithm. Lookups never lock, and concurrent
+ * misses for the same key may each decode it. A miss returns the entry
+ * another miss stored in a slot it was about to take, but two misses that
+ * take different slots both store the key: lookups then find either of the
+ * equal strings until one of the entries is evicted.
+ *
+ * Malformed input is replaced as by {@link UTF_8#newString(byte[], int, int)}
+ * and {@link UTF_16LE#newString(byte[], int, int)}. Input longer than
+ * {@link #MAX_KEY_LENGTH} bytes is decoded without being cached.
+ */
+public final class StringCache {
+
+    /** Longest input that is cached */
+    public static final int MAX_KEY_LENGTH = 255;
+
+    // Slots a key may be stored in
+    private static final int PROBES = 4;
+
+    private interface Decode {
+        String newString(byte[] b, int off, int len);
+    }
+
+    private static final class Entry {
+        final byte[] key;
+        final int hash;
+        final String value;
+        // set on every hit, cleared by the clock sweep; races are harmless
+        boolean referenced;
+
+        Entry(byte[] key, int hash, String value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private final Decode decode;
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private StringCache(Decode decode, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Non-positive capacity: " + capacity);
+        int n = Integer.highestOneBit(Math.max(Math.min(capacity, 1 << 30), PROBES) * 2 - 1);
+        this.decode = decode;
+        this.table = new AtomicReferenceArray<>(n);
+        this.mask = n - 1;
+    }
+
+    /**
+     * Returns a cache of UTF-8 decoded strings holding up to
+     * {@code capacity} entries, rounded up to a power of two.
+     */
+    public static StringCache utf8(int capacity) {
+        return new StringCache(UTF_8::newString, capacity);
+    }
+
+    /**
+     * Returns a cache of UTF-16LE decoded strings holding up to
+     * {@code capacity} entries, rounded up to a power of two.
+     */
+    public static StringCache utf16le(int capacity) {
+        return new StringCache(UTF_16LE::newString, capacity);
+    }
+
+    private static int hash(byte[] b, int off, int len) {
+        int h = len;
+        for (int i = off, end = off + len; i < end; i++)
+            h = 31 * h + b[i];
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(Entry e, int h, byte[] b, int off, int len) {
+        return e != null && e.hash == h &&
+               Arrays.equals(e.key, 0, e.key.length, b, off, off + len);
+    }
+
+    /**
+     * Returns the string {@code len} bytes of {@code b} starting at
+     * {@code off} decode to, from the cache if possible.
+     */
+    public String newString(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len > MAX_KEY_LENGTH)
+            return decode.newString(b, off, len);
+
+        int h = hash(b, off, len);
+        for (int i = 0; i < PROBES; i++) {
+            Entry e = table.get((h + i) & mask);
+            if (matches(e, h, b, off, len)) {
+                if (!e.referenced)
+                    e.referenced = true;
+                hits.increment();
+                return e.value;
+            }
+        }
+
+        misses.increment();
+        String s = decode.newString(b, off, len);
+        Entry e = new Entry(Arrays.copyOfRange(b, off, off + len), h, s);
+        for (int i = 0; i < PROBES; i++) {
+            int j = (h + i) & mask;
+            Entry old = table.get(j);
+            if (matches(old, h, b, off, len)) {
+                // stored meanwhile by a concurrent miss
+                return old.value;
+            }
+            if (old != null && old.referenced) {
+                // second chance
+                old.referenced = false;
+                continue;
+            }
+            if (table.compareAndSet(j, old, e))
+                return s;
+            // the slot changed meanwhile, look at it again
+            i--;
+        }
+        // all entries were recently used, evict the first one
+        table.set(h & mask, e);
+        return s;
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that had to decode.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Removes all entries. The counters are not reset.
+     */
+    public void clear() {
+        for (int i = 0; i <= mask; i++)
+            table.set(i, null);
+    }
+}
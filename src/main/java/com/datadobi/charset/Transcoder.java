@@ -0,0 +1,493 @@
+package com.datadobi.charset;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Converts bytes in one Unicode encoding directly into bytes in another,
+ * without decoding into an intermediate CharBuffer.
+ *
+ * Streaming works like {@link java.nio.charset.CharsetDecoder#decode(ByteBuffer,
+ * java.nio.CharBuffer, boolean)}: as much input as possible is transcoded,
+ * and the result tells whether more input is needed (underflow), more room
+ * in the output is needed (overflow), or the input at the position of
+ * {@code src} is malformed. Malformed input is always reported; the caller
+ * decides whether to skip it, replace it or give up.
+ *
+ * Instances are stateless and may be shared between threads.
+ */
+public abstract class Transcoder {
+
+    /** UTF-16LE bytes to UTF-8 bytes */
+    public static final Transcoder UTF_16LE_TO_UTF_8 = new Utf16leToUtf8(false);
+
+    /** UTF-8 bytes to UTF-16LE bytes */
+    public static final Transcoder UTF_8_TO_UTF_16LE = new Utf8ToUtf16le(false);
+
+    /**
+     * UTF-16LE bytes that may hold unpaired surrogates to WTF-8 bytes, see
+     * {@link UTF_16LE#WTF_16LE} and {@link UTF_8#WTF_8}
+     */
+    public static final Transcoder WTF_16LE_TO_WTF_8 = new Utf16leToUtf8(true);
+
+    /**
+     * WTF-8 bytes to UTF-16LE bytes that may hold unpaired surrogates, see
+     * {@link UTF_8#WTF_8} and {@link UTF_16LE#WTF_16LE}
+     */
+    public static final Transcoder WTF_8_TO_WTF_16LE = new Utf8ToUtf16le(true);
+
+    private static final VarHandle CHAR_LE =
+            MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_LE =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle CHAR_LE_BUFFER =
+            MethodHandles.byteBufferViewVarHandle(char[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private Transcoder() { }
+
+    /**
+     * Transcodes as many bytes as possible from {@code src} into
+     * {@code dst}, advancing both positions.
+     *
+     * @param  endOfInput  whether {@code src} holds the last of the input, in
+     *                     which case a sequence cut short by its limit is
+     *                     reported as malformed instead of as underflow
+     *
+     * @return {@link CoderResult#UNDERFLOW}, {@link CoderResult#OVERFLOW}
+     *         or a malformed-input result, in which case the position of
+     *         {@code src} is at the start of the malformed input
+     */
+    public final CoderResult transcode(ByteBuffer src, ByteBuffer dst,
+                                       boolean endOfInput) {
+        CoderResult cr = (src.hasArray() && dst.hasArray())
+                ? transcodeArrayLoop(src, dst)
+                : transcodeBufferLoop(src, dst);
+        if (cr.isUnderflow() && endOfInput && src.hasRemaining())
+            return transcodeTail(src, dst);
+        return cr;
+    }
+
+    /**
+     * Handles the bytes left in {@code src} at the end of the input, which
+     * are malformed unless a subclass knows better.
+     */
+    CoderResult transcodeTail(ByteBuffer src, ByteBuffer dst) {
+        return CoderResult.malformedForLength(src.remaining());
+    }
+
+    abstract CoderResult transcodeArrayLoop(ByteBuffer src, ByteBuffer dst);
+
+    abstract CoderResult transcodeBufferLoop(ByteBuffer src, ByteBuffer dst);
+
+    private static final class Utf16leToUtf8 extends Transcoder {
+
+        // whether unpaired surrogates are encoded as WTF-8
+        private final boolean wtf;
+
+        Utf16leToUtf8(boolean wtf) {
+            this.wtf = wtf;
+        }
+
+        CoderResult transcodeTail(ByteBuffer src, ByteBuffer dst) {
+            // a high surrogate waiting for its low surrogate, or an odd byte
+            int sp = src.position();
+            if (!wtf || src.remaining() < 2)
+                return CoderResult.malformedForLength(src.remaining());
+            if (dst.remaining() < 3)
+                return CoderResult.OVERFLOW;
+            char c = (char) CHAR_LE_BUFFER.get(src, sp);
+            dst.put((byte)(0xe0 | ((c >> 12))));
+            dst.put((byte)(0x80 | ((c >>  6) & 0x3f)));
+            dst.put((byte)(0x80 | (c & 0x3f)));
+            src.position(sp + 2);
+            return src.hasRemaining()
+                    ? CoderResult.malformedForLength(src.remaining())
+                    : CoderResult.UNDERFLOW;
+        }
+
+        // packs the low bytes of four ASCII chars into one int
+        private static int narrow(long w) {
+            return (int) ((w & 0xff) |
+                    ((w >>>  8) & 0xff00) |
+                    ((w >>> 16) & 0xff0000) |
+                    ((w >>> 24) & 0xff000000L));
+        }
+
+        CoderResult transcodeArrayLoop(ByteBuffer src, ByteBuffer dst) {
+            byte[] sa = src.array();
+            int soff = src.arrayOffset();
+            int sp = soff + src.position();
+            int sl = soff + src.limit();
+
+            byte[] da = dst.array();
+            int doff = dst.arrayOffset();
+            int dp = doff + dst.position();
+            int dl = doff + dst.limit();
+
+            try {
+                while (sl - sp > 1) {
+                    // ASCII, four chars at a time
+                    while (sl - sp >= 8 && dl - dp >= 4) {
+                        long w = (long) LONG_LE.get(sa, sp);
+                        if ((w & 0xff80ff80ff80ff80L) != 0)
+                            break;
+                        INT_LE.set(da, dp, narrow(w));
+                        sp += 8;
+                        dp += 4;
+                    }
+                    if (sl - sp < 2)
+                        break;
+
+                    char c = (char) CHAR_LE.get(sa, sp);
+                    if (c < 0x80) {
+                        if (dp >= dl)
+                            return CoderResult.OVERFLOW;
+                        da[dp++] = (byte)c;
+                        sp += 2;
+                    } else if (c < 0x800) {
+                        if (dl - dp < 2)
+                            return CoderResult.OVERFLOW;
+                        da[dp++] = (byte)(0xc0 | (c >> 6));
+                        da[dp++] = (byte)(0x80 | (c & 0x3f));
+                        sp += 2;
+                    } else if (Character.isSurrogate(c)) {
+                        char c2 = 0;
+                        if (Character.isHighSurrogate(c)) {
+                            if (sl - sp < 4)
+                                return CoderResult.UNDERFLOW;
+                            c2 = (char) CHAR_LE.get(sa, sp + 2);
+                        }
+                        if (Character.isLowSurrogate(c2)) {
+                            if (dl - dp < 4)
+                                return CoderResult.OVERFLOW;
+                            int uc = Character.toCodePoint(c, c2);
+                            da[dp++] = (byte)(0xf0 | ((uc >> 18)));
+                            da[dp++] = (byte)(0x80 | ((uc >> 12) & 0x3f));
+                            da[dp++] = (byte)(0x80 | ((uc >>  6) & 0x3f));
+                            da[dp++] = (byte)(0x80 | (uc & 0x3f));
+                            sp += 4;
+                        } else if (!wtf) {
+                            // Unpaired high or low surrogate
+                            return CoderResult.malformedForLength(
+                                    Character.isHighSurrogate(c) ? 4 : 2);
+                        } else {
+                            if (dl - dp < 3)
+                                return CoderResult.OVERFLOW;
+                            da[dp++] = (byte)(0xe0 | ((c >> 12)));
+                            da[dp++] = (byte)(0x80 | ((c >>  6) & 0x3f));
+                            da[dp++] = (byte)(0x80 | (c & 0x3f));
+                            sp += 2;
+                        }
+                    } else {
+                        if (dl - dp < 3)
+                            return CoderResult.OVERFLOW;
+                        da[dp++] = (byte)(0xe0 | ((c >> 12)));
+                        da[dp++] = (byte)(0x80 | ((c >>  6) & 0x3f));
+                        da[dp++] = (byte)(0x80 | (c & 0x3f));
+                        sp += 2;
+                    }
+                }
+                return CoderResult.UNDERFLOW;
+            } finally {
+                src.position(sp - soff);
+                dst.position(dp - doff);
+            }
+        }
+
+        CoderResult transcodeBufferLoop(ByteBuffer src, ByteBuffer dst) {
+            int sp = src.position();
+            int sl = src.limit();
+            int dp = dst.position();
+            int dl = dst.limit();
+
+            try {
+                while (sl - sp > 1) {
+                    char c = (char) CHAR_LE_BUFFER.get(src, sp);
+                    if (c < 0x80) {
+                        if (dp >= dl)
+                            return CoderResult.OVERFLOW;
+                        dst.put(dp++, (byte)c);
+                        sp += 2;
+                    } else if (c < 0x800) {
+                        if (dl - dp < 2)
+                            return CoderResult.OVERFLOW;
+                        dst.put(dp++, (byte)(0xc0 | (c >> 6)));
+                        dst.put(dp++, (byte)(0x80 | (c & 0x3f)));
+                        sp += 2;
+                    } else if (Character.isSurrogate(c)) {
+                        char c2 = 0;
+                        if (Character.isHighSurrogate(c)) {
+                            if (sl - sp < 4)
+                                return CoderResult.UNDERFLOW;
+                            c2 = (char) CHAR_LE_BUFFER.get(src, sp + 2);
+                        }
+                        if (Character.isLowSurrogate(c2)) {
+                            if (dl - dp < 4)
+                                return CoderResult.OVERFLOW;
+                            int uc = Character.toCodePoint(c, c2);
+                            dst.put(dp++, (byte)(0xf0 | ((uc >> 18))));
+                            dst.put(dp++, (byte)(0x80 | ((uc >> 12) & 0x3f)));
+                            dst.put(dp++, (byte)(0x80 | ((uc >>  6) & 0x3f)));
+                            dst.put(dp++, (byte)(0x80 | (uc & 0x3f)));
+                            sp += 4;
+                        } else if (!wtf) {
+                            // Unpaired high or low surrogate
+                            return CoderResult.malformedForLength(
+                                    Character.isHighSurrogate(c) ? 4 : 2);
+                        } else {
+                            if (dl - dp < 3)
+                                return CoderResult.OVERFLOW;
+                            dst.put(dp++, (byte)(0xe0 | ((c >> 12))));
+                            dst.put(dp++, (byte)(0x80 | ((c >>  6) & 0x3f)));
+                            dst.put(dp++, (byte)(0x80 | (c & 0x3f)));
+                            sp += 2;
+                        }
+                    } else {
+                        if (dl - dp < 3)
+                            return CoderResult.OVERFLOW;
+                        dst.put(dp++, (byte)(0xe0 | ((c >> 12))));
+                        dst.put(dp++, (byte)(0x80 | ((c >>  6) & 0x3f)));
+                        dst.put(dp++, (byte)(0x80 | (c & 0x3f)));
+                        sp += 2;
+                    }
+                }
+                return CoderResult.UNDERFLOW;
+            } finally {
+                src.position(sp);
+                dst.position(dp);
+            }
+        }
+    }
+
+    private static final class Utf8ToUtf16le extends Transcoder {
+
+        // whether encoded surrogates are decoded as WTF-8
+        private final boolean wtf;
+
+        Utf8ToUtf16le(boolean wtf) {
+            this.wtf = wtf;
+        }
+
+        // ED A0..BF 80..BF, a surrogate encoded like any other BMP char
+        private static boolean isEncodedSurrogate(int b1, int b2, int b3) {
+            return b1 == (byte)0xed && (b2 & 0xe0) == 0xa0 && (b3 & 0xc0) == 0x80;
+        }
+
+        // Whether the bytes of src from index i to sl, which follow an
+        // encoded high surrogate, start with an encoded low surrogate
+        // ED B0..BF 80..BF: 1 if they do, 0 if not, and -1 if that takes
+        // more input. WTF-8 encodes such a pair as one four byte sequence,
+        // so the low surrogate is malformed.
+        private static int lowSurrogateAt(ByteBuffer src, int i, int sl) {
+            int n = sl - i;
+            if (n > 0 && src.get(i) != (byte)0xed)
+                return 0;
+            if (n > 1 && (src.get(i + 1) & 0xf0) != 0xb0)
+                return 0;
+            if (n > 2)
+                return (src.get(i + 2) & 0xc0) == 0x80 ? 1 : 0;
+            return -1;
+        }
+
+        CoderResult transcodeTail(ByteBuffer src, ByteBuffer dst) {
+            // an encoded high surrogate waiting for the bytes after it
+            int sp = src.position();
+            if (!wtf || src.remaining() < 3)
+                return CoderResult.malformedForLength(src.remaining());
+            int b1 = src.get(sp);
+            int b2 = src.get(sp + 1);
+            int b3 = src.get(sp + 2);
+            if (!isEncodedSurrogate(b1, b2, b3) || (b2 & 0xf0) != 0xa0)
+                return CoderResult.malformedForLength(src.remaining());
+            if (dst.remaining() < 2)
+                return CoderResult.OVERFLOW;
+            CHAR_LE_BUFFER.set(dst, dst.position(), (char) decode(b1, b2, b3, 0, 3));
+            dst.position(dst.position() + 2);
+            src.position(sp + 3);
+            return src.hasRemaining()
+                    ? CoderResult.malformedForLength(src.remaining())
+                    : CoderResult.UNDERFLOW;
+        }
+
+        // spreads the low four bytes of x over four little-endian chars
+        private static long widen(long x) {
+            x &= 0xffffffffL;
+            x = (x | (x << 16)) & 0x0000ffff0000ffffL;
+            return (x | (x << 8)) & 0x00ff00ff00ff00ffL;
+        }
+
+        // the length of the sequence led by b1, or 0 for an invalid lead
+        private static int sequenceLength(int b1) {
+            if ((b1 >> 5) == -2 && (b1 & 0x1e) != 0)
+                return 2;
+            if ((b1 >> 4) == -2)
+                return 3;
+            if ((b1 >> 3) == -2 && (b1 & 0xff) <= 0xf4)
+                return 4;
+            return 0;
+        }
+
+        private static int decode(int b1, int b2, int b3, int b4, int nb) {
+            switch (nb) {
+                case 2:
+                    return ((b1 & 0x1f) << 6) | (b2 & 0x3f);
+                case 3:
+                    return ((b1 & 0x0f) << 12) | ((b2 & 0x3f) << 6) | (b3 & 0x3f);
+                default:
+                    return ((b1 & 0x07) << 18) | ((b2 & 0x3f) << 12) |
+                            ((b3 & 0x3f) << 6) | (b4 & 0x3f);
+            }
+        }
+
+        CoderResult transcodeArrayLoop(ByteBuffer src, ByteBuffer dst) {
+            byte[] sa = src.array();
+            int soff = src.arrayOffset();
+            int sp = soff + src.position();
+            int sl = soff + src.limit();
+
+            byte[] da = dst.array();
+            int doff = dst.arrayOffset();
+            int dp = doff + dst.position();
+            int dl = doff + dst.limit();
+
+            try {
+                while (sp < sl) {
+                    // ASCII, eight bytes at a time
+                    while (sl - sp >= 8 && dl - dp >= 16) {
+                        long w = (long) LONG_LE.get(sa, sp);
+                        if ((w & 0x8080808080808080L) != 0)
+                            break;
+                        LONG_LE.set(da, dp, widen(w));
+                        LONG_LE.set(da, dp + 8, widen(w >>> 32));
+                        sp += 8;
+                        dp += 16;
+                    }
+                    if (sp >= sl)
+                        break;
+
+                    int b1 = sa[sp];
+                    if (b1 >= 0) {
+                        if (dl - dp < 2)
+                            return CoderResult.OVERFLOW;
+                        CHAR_LE.set(da, dp, (char) b1);
+                        sp++;
+                        dp += 2;
+                        continue;
+                    }
+                    int nb = sequenceLength(b1);
+                    if (nb == 0)
+                        return CoderResult.malformedForLength(1);
+                    int srcRemaining = sl - sp;
+                    if (srcRemaining < nb) {
+                        int malformedNB = UTF_8.malformedLength(sa, sp, sl);
+                        return malformedNB < srcRemaining
+                                ? CoderResult.malformedForLength(malformedNB)
+                                : CoderResult.UNDERFLOW;
+                    }
+                    int b2 = sa[sp + 1];
+                    int b3 = nb > 2 ? sa[sp + 2] : 0;
+                    int b4 = nb > 3 ? sa[sp + 3] : 0;
+                    if (UTF_8.sequenceLength(b1, b2, b3, b4, nb) == 0 &&
+                            !(wtf && isEncodedSurrogate(b1, b2, b3)))
+                        return CoderResult.malformedForLength(
+                                UTF_8.malformedLength(sa, sp, sl));
+                    int uc = decode(b1, b2, b3, b4, nb);
+                    if (nb < 4) {
+                        if (dl - dp < 2)
+                            return CoderResult.OVERFLOW;
+                        int low = Character.isHighSurrogate((char) uc)
+                                ? lowSurrogateAt(src, sp + 3 - soff, sl - soff) : 0;
+                        if (low < 0)
+                            return CoderResult.UNDERFLOW;
+                        CHAR_LE.set(da, dp, (char) uc);
+                        dp += 2;
+                        if (low > 0) {
+                            sp += 3;
+                            return CoderResult.malformedForLength(3);
+                        }
+                    } else {
+                        if (dl - dp < 4)
+                            return CoderResult.OVERFLOW;
+                        CHAR_LE.set(da, dp, Character.highSurrogate(uc));
+                        CHAR_LE.set(da, dp + 2, Character.lowSurrogate(uc));
+                        dp += 4;
+                    }
+                    sp += nb;
+                }
+                return CoderResult.UNDERFLOW;
+            } finally {
+                src.position(sp - soff);
+                dst.position(dp - doff);
+            }
+        }
+
+        CoderResult transcodeBufferLoop(ByteBuffer src, ByteBuffer dst) {
+            int sp = src.position();
+            int sl = src.limit();
+            int dp = dst.position();
+            int dl = dst.limit();
+
+            try {
+                while (sp < sl) {
+                    int b1 = src.get(sp);
+                    if (b1 >= 0) {
+                        if (dl - dp < 2)
+                            return CoderResult.OVERFLOW;
+                        CHAR_LE_BUFFER.set(dst, dp, (char) b1);
+                        sp++;
+                        dp += 2;
+                        continue;
+                    }
+                    int nb = sequenceLength(b1);
+                    if (nb == 0)
+                        return CoderResult.malformedForLength(1);
+                    int srcRemaining = sl - sp;
+                    if (srcRemaining < nb) {
+                        int malformedNB = UTF_8.malformedLength(src, sp);
+                        return malformedNB < srcRemaining
+                                ? CoderResult.malformedForLength(malformedNB)
+                                : CoderResult.UNDERFLOW;
+                    }
+                    int b2 = src.get(sp + 1);
+                    int b3 = nb > 2 ? src.get(sp + 2) : 0;
+                    int b4 = nb > 3 ? src.get(sp + 3) : 0;
+                    if (UTF_8.sequenceLength(b1, b2, b3, b4, nb) == 0 &&
+                            !(wtf && isEncodedSurrogate(b1, b2, b3)))
+                        return CoderResult.malformedForLength(
+                                UTF_8.malformedLength(src, sp));
+                    int uc = decode(b1, b2, b3, b4, nb);
+                    if (nb < 4) {
+                        if (dl - dp < 2)
+                            return CoderResult.OVERFLOW;
+                        int low = Character.isHighSurrogate((char) uc)
+                                ? lowSurrogateAt(src, sp + 3, sl) : 0;
+                        if (low < 0)
+                            return CoderResult.UNDERFLOW;
+                        CHAR_LE_BUFFER.set(dst, dp, (char) uc);
+                        dp += 2;
+                        if (low > 0) {
+                            sp += 3;
+                            return CoderResult.malformedForLength(3);
+                        }
+                    } else {
+                        if (dl - dp < 4)
+                            return CoderResult.OVERFLOW;
+                        CHAR_LE_BUFFER.set(dst, dp, Character.highSurrogate(uc));
+                        CHAR_LE_BUFFER.set(dst, dp + 2, Character.lowSurrogate(uc));
+                        dp += 4;
+                    }
+                    sp += nb;
+                }
+                return CoderResult.UNDERFLOW;
+            } finally {
+                src.position(sp);
+                dst.position(dp);
+            }
+        }
+    }
+}
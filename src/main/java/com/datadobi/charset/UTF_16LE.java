@@ -25,16 +25,42 @@
 
 package com.datadobi.charset;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
 
 public class UTF_16LE extends Unicode
 {
 
+    /**
+     * UTF-16LE that passes unpaired surrogates through instead of reporting
+     * them, as found in NTFS and SMB names. Together with
+     * {@link UTF_8#WTF_8} such names convert losslessly.
+     */
+    public static final UTF_16LE WTF_16LE = new UTF_16LE("x-WTF-16LE", true);
+
+    // whether unpaired surrogates are passed through
+    private final boolean unpaired;
+
     public UTF_16LE() {
-        super("UTF-16LE", new String[0]);
+        this("UTF-16LE", false);
+    }
+
+    private UTF_16LE(String name, boolean unpaired) {
+        super(name, new String[0]);
+        this.unpaired = unpaired;
     }
 
     public String historicalName() {
@@ -42,24 +68,477 @@ public class UTF_16LE extends Unicode
     }
 
     public CharsetDecoder newDecoder() {
-        return new Decoder(this);
+        return new Decoder(this, unpaired);
     }
 
     public CharsetEncoder newEncoder() {
-        return new Encoder(this);
+        return new Encoder(this, unpaired);
+    }
+
+    private static final VarHandle CHAR_LE =
+            MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle CHAR_LE_BUFFER =
+            MethodHandles.byteBufferViewVarHandle(char[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Decodes {@code len} bytes of {@code b} starting at {@code off},
+     * replacing malformed input with U+FFFD. Equivalent to decoding through
+     * {@link #newDecoder()}, without creating a decoder or a CharBuffer.
+     */
+    public static String newString(byte[] b, int off, int len) {
+        try {
+            return newString(b, off, len, CodingErrorAction.REPLACE);
+        } catch (CharacterCodingException x) {
+            throw new Error(x);
+        }
+    }
+
+    /**
+     * Decodes {@code len} bytes of {@code b} starting at {@code off},
+     * handling malformed input as given by {@code onMalformed}.
+     *
+     * @throws MalformedInputException if {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT} and the input is malformed
+     */
+    public static String newString(byte[] b, int off, int len,
+                                   CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        Objects.requireNonNull(onMalformed);
+        Objects.checkFromIndexSize(off, len, b.length);
+        char[] da = new char[(len + 1) >> 1];
+        int dp = decodeArray(b, off, off + len, da, 0, onMalformed);
+        return new String(da, 0, dp);
+    }
+
+    /**
+     * Decodes the bytes between the position and the limit of {@code src},
+     * replacing malformed input with U+FFFD. The position of {@code src} is
+     * not changed, and a direct buffer is read in place, see
+     * {@link UTF_8#newString(ByteBuffer)}.
+     */
+    public static String newString(ByteBuffer src) {
+        try {
+            return newString(src, CodingErrorAction.REPLACE);
+        } catch (CharacterCodingException x) {
+            throw new Error(x);
+        }
+    }
+
+    /**
+     * Decodes the bytes between the position and the limit of {@code src},
+     * handling malformed input as given by {@code onMalformed}, see
+     * {@link #newString(ByteBuffer)}.
+     *
+     * @throws MalformedInputException if {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT} and the input is malformed
+     */
+    public static String newString(ByteBuffer src, CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        Objects.requireNonNull(onMalformed);
+        if (src.hasArray())
+            return newString(src.array(), src.arrayOffset() + src.position(),
+                             src.remaining(), onMalformed);
+        char[] da = new char[(src.remaining() + 1) >> 1];
+        int dp = decodeBuffer(src, src.position(), da, 0, onMalformed);
+        return new String(da, 0, dp);
+    }
+
+    /**
+     * Decodes the bytes between the position and the limit of {@code src}
+     * into {@code dst} at its position, see
+     * {@link UTF_8#getChars(ByteBuffer, CharBuffer, CodingErrorAction)}.
+     *
+     * @return the number of chars written
+     * @throws BufferOverflowException if the chars do not fit in
+     *         {@code dst}, in which case nothing is written
+     * @throws MalformedInputException if {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT} and the input is malformed,
+     *         in which case the chars before it may have been written
+     */
+    public static int getChars(ByteBuffer src, CharBuffer dst,
+                               CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        Objects.requireNonNull(onMalformed);
+        int len = src.remaining();
+        int max = (len + 1) >> 1;
+        boolean inPlace = dst.hasArray() && dst.remaining() >= max;
+        char[] da;
+        int doff;
+        if (inPlace) {
+            da = dst.array();
+            doff = dst.arrayOffset() + dst.position();
+        } else {
+            da = new char[max];
+            doff = 0;
+        }
+        int dp;
+        if (src.hasArray()) {
+            int sp = src.arrayOffset() + src.position();
+            dp = decodeArray(src.array(), sp, sp + len, da, doff, onMalformed);
+        } else {
+            dp = decodeBuffer(src, src.position(), da, doff, onMalformed);
+        }
+        int n = dp - doff;
+        if (!inPlace) {
+            if (n > dst.remaining())
+                throw new BufferOverflowException();
+            dst.put(dst.position(), da, 0, n);
+        }
+        return n;
+    }
+
+    /**
+     * Encodes {@code s} into {@code dst} at its position, handling unpaired
+     * surrogates as given by {@code onMalformed}, see
+     * {@link UTF_8#getBytes(String, ByteBuffer, CodingErrorAction)}.
+     *
+     * @return the number of bytes written
+     * @throws BufferOverflowException if the bytes do not fit in
+     *         {@code dst}, in which case nothing is written
+     * @throws MalformedInputException if {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT} and {@code s} contains an
+     *         unpaired surrogate
+     */
+    public static int getBytes(String s, ByteBuffer dst,
+                               CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        Objects.requireNonNull(onMalformed);
+        // measured first, so that nothing is written if s is malformed or
+        // does not fit
+        int n = s.length() << 1;
+        if (onMalformed != CodingErrorAction.REPLACE)
+            n -= unpairedSurrogates(s, onMalformed) << 1;
+        if (n > dst.remaining())
+            throw new BufferOverflowException();
+        int dp = dst.position();
+        if (dst.hasArray()) {
+            encode(s, dst.array(), dst.arrayOffset() + dp, onMalformed);
+            return n;
+        }
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (!Character.isSurrogate(c)) {
+                CHAR_LE_BUFFER.set(dst, dp, c);
+                dp += 2;
+                continue;
+            }
+            char d;
+            if (Character.isHighSurrogate(c) && i + 1 < len &&
+                    Character.isLowSurrogate(d = s.charAt(i + 1))) {
+                CHAR_LE_BUFFER.set(dst, dp, c);
+                CHAR_LE_BUFFER.set(dst, dp + 2, d);
+                dp += 4;
+                i++;
+            } else if (onMalformed == CodingErrorAction.REPLACE) {
+                CHAR_LE_BUFFER.set(dst, dp, '\ufffd');
+                dp += 2;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of unpaired surrogates in {@code s}.
+     *
+     * @throws MalformedInputException at the first one if
+     *         {@code onMalformed} is {@link CodingErrorAction#REPORT}
+     */
+    private static int unpairedSurrogates(String s, CodingErrorAction onMalformed)
+            throws MalformedInputException
+    {
+        int len = s.length();
+        int n = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (!Character.isSurrogate(c))
+                continue;
+            if (Character.isHighSurrogate(c) && i + 1 < len &&
+                    Character.isLowSurrogate(s.charAt(i + 1))) {
+                i++;
+            } else if (onMalformed == CodingErrorAction.REPORT) {
+                throw new MalformedInputException(1);
+            } else {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the index of the first unpaired surrogate in the {@code len}
+     * bytes of {@code b} starting at {@code off}, or of an odd trailing
+     * byte, or -1 if there is neither. A high surrogate cut short by the
+     * end of the range is unpaired.
+     */
+    static int validate(byte[] b, int off, int len) {
+        int sp = off;
+        int sl = off + len;
+        while (sl - sp >= 2) {
+            char c = (char) CHAR_LE.get(b, sp);
+            if (!Character.isSurrogate(c)) {
+                sp += 2;
+            } else if (Character.isHighSurrogate(c) && sl - sp >= 4 &&
+                       Character.isLowSurrogate((char) CHAR_LE.get(b, sp + 2))) {
+                sp += 4;
+            } else {
+                return sp;
+            }
+        }
+        return sp < sl ? sp : -1;
+    }
+
+    /**
+     * Decodes all of {@code sa[sp..sl)} into {@code da}, which must have
+     * room for {@code (sl - sp + 1) / 2} more chars. Malformed input,
+     * including a truncated unit or pair at the end, is handled as the
+     * decoder would with the given action at the end of input.
+     *
+     * @return the new destination position
+     */
+    static int decodeArray(byte[] sa, int sp, int sl, char[] da, int dp,
+                           CodingErrorAction onMalformed)
+            throws MalformedInputException
+    {
+        while (sl - sp > 0) {
+            int nb;
+            if (sl - sp < 2) {
+                nb = 1;
+            } else {
+                char c = (char) CHAR_LE.get(sa, sp);
+                if (!Character.isSurrogate(c)) {
+                    da[dp++] = c;
+                    sp += 2;
+                    continue;
+                }
+                if (Character.isHighSurrogate(c)) {
+                    if (sl - sp < 4) {
+                        nb = sl - sp;
+                    } else {
+                        char c2 = (char) CHAR_LE.get(sa, sp + 2);
+                        if (Character.isLowSurrogate(c2)) {
+                            da[dp++] = c;
+                            da[dp++] = c2;
+                            sp += 4;
+                            continue;
+                        }
+                        nb = 4;
+                    }
+                } else {
+                    // Unpaired low surrogate
+                    nb = 2;
+                }
+            }
+
+            if (onMalformed == CodingErrorAction.REPORT)
+                throw new MalformedInputException(nb);
+            if (onMalformed == CodingErrorAction.REPLACE)
+                da[dp++] = '\ufffd';
+            sp += nb;
+        }
+        return dp;
+    }
+
+    /**
+     * Decodes all of {@code src} from index {@code sp} to its limit into
+     * {@code da} with absolute reads, see {@link #decodeArray}. The position
+     * of {@code src} is not used.
+     *
+     * @return the new destination position
+     */
+    static int decodeBuffer(ByteBuffer src, int sp, char[] da, int dp,
+                            CodingErrorAction onMalformed)
+            throws MalformedInputException
+    {
+        int sl = src.limit();
+        while (sl - sp > 0) {
+            int nb;
+            if (sl - sp < 2) {
+                nb = 1;
+            } else {
+                char c = (char) CHAR_LE_BUFFER.get(src, sp);
+                if (!Character.isSurrogate(c)) {
+                    da[dp++] = c;
+                    sp += 2;
+                    continue;
+                }
+                if (Character.isHighSurrogate(c)) {
+                    if (sl - sp < 4) {
+                        nb = sl - sp;
+                    } else {
+                        char c2 = (char) CHAR_LE_BUFFER.get(src, sp + 2);
+                        if (Character.isLowSurrogate(c2)) {
+                            da[dp++] = c;
+                            da[dp++] = c2;
+                            sp += 4;
+                            continue;
+                        }
+                        nb = 4;
+                    }
+                } else {
+                    // Unpaired low surrogate
+                    nb = 2;
+                }
+            }
+
+            if (onMalformed == CodingErrorAction.REPORT)
+                throw new MalformedInputException(nb);
+            if (onMalformed == CodingErrorAction.REPLACE)
+                da[dp++] = '\ufffd';
+            sp += nb;
+        }
+        return dp;
+    }
+
+    /**
+     * Returns the number of chars {@link #newString(byte[], int, int)}
+     * would produce for the {@code len} bytes of {@code b} starting at
+     * {@code off}, without decoding them. Each malformed unit or pair
+     * counts as one replacement char.
+     */
+    public static int decodedLength(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        int sp = off;
+        int sl = off + len;
+        int n = 0;
+        while (sl - sp > 1) {
+            char c = (char) CHAR_LE.get(b, sp);
+            if (Character.isHighSurrogate(c)) {
+                if (sl - sp < 4) {
+                    // truncated pair, one replacement
+                    return n + 1;
+                }
+                if (Character.isLowSurrogate((char) CHAR_LE.get(b, sp + 2))) {
+                    n += 2;
+                } else {
+                    n++;
+                }
+                sp += 4;
+            } else {
+                n++;
+                sp += 2;
+            }
+        }
+        // an odd trailing byte is replaced as well
+        return sp < sl ? n + 1 : n;
+    }
+
+    /**
+     * Returns the number of chars the bytes between the position and the
+     * limit of {@code src} decode to, see {@link #decodedLength(byte[], int, int)}.
+     * The position of {@code src} is not changed.
+     */
+    public static int decodedLength(ByteBuffer src) {
+        int sp = src.position();
+        int sl = src.limit();
+        if (src.hasArray())
+            return decodedLength(src.array(), src.arrayOffset() + sp, sl - sp);
+        int n = 0;
+        while (sl - sp > 1) {
+            char c = (char) CHAR_LE_BUFFER.get(src, sp);
+            if (Character.isHighSurrogate(c)) {
+                if (sl - sp < 4)
+                    return n + 1;
+                n += Character.isLowSurrogate((char) CHAR_LE_BUFFER.get(src, sp + 2)) ? 2 : 1;
+                sp += 4;
+            } else {
+                n++;
+                sp += 2;
+            }
+        }
+        return sp < sl ? n + 1 : n;
+    }
+
+    /**
+     * Returns the number of bytes {@link #getBytes(String)} would produce
+     * for {@code s}. Unpaired surrogates are replaced by a single char, so
+     * this is always two bytes per char.
+     */
+    public static int encodedLength(CharSequence s) {
+        return s.length() << 1;
+    }
+
+    /**
+     * Encodes {@code s}, replacing unpaired surrogates with U+FFFD.
+     * Equivalent to encoding through {@link #newEncoder()}.
+     */
+    public static byte[] getBytes(String s) {
+        try {
+            return getBytes(s, CodingErrorAction.REPLACE);
+        } catch (CharacterCodingException x) {
+            throw new Error(x);
+        }
+    }
+
+    /**
+     * Encodes {@code s}, handling unpaired surrogates as given by
+     * {@code onMalformed}. The result is allocated at its exact size.
+     *
+     * @throws MalformedInputException if {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT} and {@code s} contains an
+     *         unpaired surrogate
+     */
+    public static byte[] getBytes(String s, CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        Objects.requireNonNull(onMalformed);
+        byte[] da = new byte[s.length() << 1];
+        int dp = encode(s, da, 0, onMalformed);
+        // only shorter when unpaired surrogates were ignored
+        return dp == da.length ? da : Arrays.copyOf(da, dp);
+    }
+
+    /**
+     * Encodes {@code s} into {@code da} from index {@code dp}, which must
+     * have room for the result, handling unpaired surrogates as given by
+     * {@code onMalformed}.
+     *
+     * @return the new destination position
+     */
+    private static int encode(String s, byte[] da, int dp,
+                              CodingErrorAction onMalformed)
+            throws MalformedInputException
+    {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (!Character.isSurrogate(c)) {
+                CHAR_LE.set(da, dp, c);
+                dp += 2;
+                continue;
+            }
+            char d;
+            if (Character.isHighSurrogate(c) && i + 1 < len &&
+                    Character.isLowSurrogate(d = s.charAt(i + 1))) {
+                CHAR_LE.set(da, dp, c);
+                CHAR_LE.set(da, dp + 2, d);
+                dp += 4;
+                i++;
+            } else if (onMalformed == CodingErrorAction.REPORT) {
+                throw new MalformedInputException(1);
+            } else if (onMalformed == CodingErrorAction.REPLACE) {
+                CHAR_LE.set(da, dp, '\ufffd');
+                dp += 2;
+            }
+        }
+        return dp;
     }
 
     private static class Decoder extends UnicodeDecoder {
 
-        public Decoder(Charset cs) {
-            super(cs, LITTLE);
+        public Decoder(Charset cs, boolean unpaired) {
+            super(cs, LITTLE, unpaired);
         }
     }
 
     private static class Encoder extends UnicodeEncoder {
 
-        public Encoder(Charset cs) {
-            super(cs, LITTLE, false);
+        public Encoder(Charset cs, boolean unpaired) {
+            super(cs, LITTLE, false, unpaired);
         }
     }
 
@@ -25,13 +25,22 @@
 
 package com.datadobi.charset;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.Buffer;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
 
 /* Legal UTF-8 Byte Sequences
  *
@@ -57,9 +66,46 @@ public final class UTF_8 extends Unicode {
 
     public static final UTF_8 INSTANCE = new UTF_8();
 
+    /**
+     * UTF-8 with surrogateescape error handling: the decoder maps each byte
+     * of malformed input to a lone surrogate U+DC80..U+DCFF instead of
+     * reporting it, and the encoder maps such a lone surrogate back to its
+     * byte, so any byte sequence survives a round trip.
+     *
+     * A CharsetDecoder reports a sequence cut short by the end of the input
+     * itself, outside the decoding loop, so such a sequence is not escaped;
+     * {@link #newStringEscaped(byte[], int, int)} escapes it as well.
+     */
+    public static final UTF_8 SURROGATE_ESCAPE =
+            new UTF_8("x-UTF-8-surrogateescape", true, false);
+
+    /**
+     * WTF-8: UTF-8 extended to unpaired surrogates, which are encoded as
+     * three byte sequences {@code ED A0..BF 80..BF} like any other BMP
+     * char. A surrogate pair is still encoded as one four byte sequence, so
+     * an encoded high surrogate directly followed by an encoded low
+     * surrogate is malformed, as the WTF-8 spec requires. Each string then
+     * has one encoding, and decoding and encoding again gives back the
+     * same bytes.
+     *
+     * A CharsetEncoder reports a high surrogate at the end of the input
+     * itself, outside the encoding loop, so such a surrogate is not encoded;
+     * {@link #getBytesWtf8(String)} encodes it as well.
+     */
+    public static final UTF_8 WTF_8 = new UTF_8("x-WTF-8", false, true);
+
+    private final boolean escape;
+    private final boolean wtf;
+
     public UTF_8() {
 //        super("UTF-8", StandardCharsets.aliases_UTF_8());
-        super("UTF-8", new String[0]);
+        this("UTF-8", false, false);
+    }
+
+    private UTF_8(String name, boolean escape, boolean wtf) {
+        super(name, new String[0]);
+        this.escape = escape;
+        this.wtf = wtf;
     }
 
     public String historicalName() {
@@ -67,11 +113,822 @@ public final class UTF_8 extends Unicode {
     }
 
     public CharsetDecoder newDecoder() {
-        return new Decoder(this);
+        return new Decoder(this, escape, wtf);
     }
 
     public CharsetEncoder newEncoder() {
-        return new Encoder(this);
+        return new Encoder(this, escape, wtf);
+    }
+
+    /**
+     * Decodes {@code len} bytes of {@code b} starting at {@code off},
+     * replacing malformed input with U+FFFD. Equivalent to decoding through
+     * {@link #newDecoder()}, without creating a decoder or a CharBuffer.
+     */
+    public static String newString(byte[] b, int off, int len) {
+        try {
+            return newString(b, off, len, CodingErrorAction.REPLACE);
+        } catch (CharacterCodingException x) {
+            throw new Error(x);
+        }
+    }
+
+    /**
+     * Decodes {@code len} bytes of {@code b} starting at {@code off},
+     * handling malformed input as given by {@code onMalformed}.
+     *
+     * @throws MalformedInputException if {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT} and the input is malformed
+     */
+    public static String newString(byte[] b, int off, int len,
+                                   CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        return newStringImpl(b, off, len, Objects.requireNonNull(onMalformed));
+    }
+
+    /**
+     * Decodes {@code len} bytes of {@code b} starting at {@code off},
+     * mapping each byte of malformed input, including a sequence cut short
+     * by the end, to a lone surrogate U+DC80..U+DCFF.
+     * {@link #getBytesEscaped(String)} restores the original bytes.
+     */
+    public static String newStringEscaped(byte[] b, int off, int len) {
+        try {
+            return newStringImpl(b, off, len, null);
+        } catch (CharacterCodingException x) {
+            throw new Error(x);
+        }
+    }
+
+    // A null action escapes malformed input, see decodeArray
+    private static String newStringImpl(byte[] b, int off, int len,
+                                        CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        Objects.checkFromIndexSize(off, len, b.length);
+        int n = countASCII(b, off, len);
+        if (n == len)
+            return new String(b, off, len, StandardCharsets.ISO_8859_1);
+        int sp = off + n;
+        int sl = off + len;
+        // never more chars than bytes, also when replacing
+        char[] da;
+        int dp;
+        if ((b[sp] & 0xfe) == 0xc2) {
+            // Latin-1 content is decoded into bytes, so that the String
+            // is built in its compact form rather than compressed from
+            // a char[]
+            byte[] la = new byte[len];
+            System.arraycopy(b, off, la, 0, n);
+            long p = decodeLatin1(b, sp, sl, la, n);
+            sp = (int) (p >>> 32);
+            dp = (int) p;
+            if (sp == sl)
+                return new String(la, 0, dp, StandardCharsets.ISO_8859_1);
+            da = new char[len];
+            for (int i = 0; i < dp; i++)
+                da[i] = (char) (la[i] & 0xff);
+        } else {
+            da = new char[len];
+            dp = decodeASCII(b, off, da, 0, n);
+        }
+        dp = decodeArray(b, sp, sl, da, dp, onMalformed);
+        return new String(da, 0, dp);
+    }
+
+    /**
+     * Decodes {@code sa[sp..sl)} into {@code da} for as long as it encodes
+     * Latin-1, that is ASCII and well-formed C2 or C3 sequences, one byte
+     * per char.
+     *
+     * @return the positions reached, as {@code sp << 32 | dp}
+     */
+    private static long decodeLatin1(byte[] sa, int sp, int sl,
+                                     byte[] da, int dp)
+    {
+        while (sp < sl) {
+            int b1 = sa[sp];
+            if (b1 >= 0) {
+                da[dp++] = (byte) b1;
+                sp++;
+            } else if ((b1 & 0xfe) == 0xc2 && sl - sp > 1 &&
+                       (sa[sp + 1] & 0xc0) == 0x80) {
+                // 110000xx 10xxxxxx
+                da[dp++] = (byte) ((b1 << 6) | (sa[sp + 1] & 0x3f));
+                sp += 2;
+            } else {
+                break;
+            }
+        }
+        return ((long) sp << 32) | dp;
+    }
+
+    /**
+     * Decodes the bytes between the position and the limit of {@code src},
+     * replacing malformed input with U+FFFD. The position of {@code src} is
+     * not changed.
+     *
+     * Meant for direct buffers, such as views of native memory: their bytes
+     * are read in place, eight at a time in ASCII runs, rather than through
+     * relative gets.
+     */
+    public static String newString(ByteBuffer src) {
+        try {
+            return newString(src, CodingErrorAction.REPLACE);
+        } catch (CharacterCodingException x) {
+            throw new Error(x);
+        }
+    }
+
+    /**
+     * Decodes the bytes between the position and the limit of {@code src},
+     * handling malformed input as given by {@code onMalformed}, see
+     * {@link #newString(ByteBuffer)}.
+     *
+     * @throws MalformedInputException if {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT} and the input is malformed
+     */
+    public static String newString(ByteBuffer src, CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        Objects.requireNonNull(onMalformed);
+        if (src.hasArray())
+            return newStringImpl(src.array(), src.arrayOffset() + src.position(),
+                                 src.remaining(), onMalformed);
+        char[] da = new char[src.remaining()];
+        int dp = decodeBuffer(src, src.position(), da, 0, onMalformed);
+        return new String(da, 0, dp);
+    }
+
+    /**
+     * Decodes the bytes between the position and the limit of {@code src}
+     * into {@code dst} at its position, handling malformed input as given by
+     * {@code onMalformed}. The positions of both buffers are not changed.
+     * A heap {@code dst} with room for one char per byte is decoded into
+     * directly; otherwise the chars are decoded first and written in bulk,
+     * which suits a direct view of native memory, such as
+     * {@code asCharBuffer()} of a direct ByteBuffer in native order.
+     *
+     * @return the number of chars written
+     * @throws BufferOverflowException if the chars do not fit in
+     *         {@code dst}, in which case nothing is written
+     * @throws MalformedInputException if {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT} and the input is malformed,
+     *         in which case the chars before it may have been written
+     */
+    public static int getChars(ByteBuffer src, CharBuffer dst,
+                               CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        Objects.requireNonNull(onMalformed);
+        int len = src.remaining();
+        // never more chars than bytes, also when replacing
+        boolean inPlace = dst.hasArray() && dst.remaining() >= len;
+        char[] da;
+        int doff;
+        if (inPlace) {
+            da = dst.array();
+            doff = dst.arrayOffset() + dst.position();
+        } else {
+            da = new char[len];
+            doff = 0;
+        }
+        int dp;
+        if (src.hasArray()) {
+            byte[] sa = src.array();
+            int sp = src.arrayOffset() + src.position();
+            int n = decodeASCII(sa, sp, da, doff, len);
+            dp = decodeArray(sa, sp + n, sp + len, da, doff + n, onMalformed);
+        } else {
+            dp = decodeBuffer(src, src.position(), da, doff, onMalformed);
+        }
+        int n = dp - doff;
+        if (!inPlace) {
+            if (n > dst.remaining())
+                throw new BufferOverflowException();
+            dst.put(dst.position(), da, 0, n);
+        }
+        return n;
+    }
+
+    /**
+     * Encodes {@code s} into {@code dst} at its position, handling unpaired
+     * surrogates as given by {@code onMalformed}. The position of
+     * {@code dst} is not changed. The bytes are written in place, eight at
+     * a time in ASCII runs if {@code dst} is direct.
+     *
+     * @return the number of bytes written
+     * @throws BufferOverflowException if the bytes do not fit in
+     *         {@code dst}, in which case nothing is written
+     * @throws MalformedInputException if {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT} and {@code s} contains an
+     *         unpaired surrogate
+     */
+    public static int getBytes(String s, ByteBuffer dst,
+                               CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        Objects.requireNonNull(onMalformed);
+        // measured first, so that nothing is written if s is malformed or
+        // does not fit
+        int n = encodedLength(s, 0, s.length(), onMalformed, false);
+        if (n > dst.remaining())
+            throw new BufferOverflowException();
+        if (dst.hasArray())
+            encode(s, dst.array(), dst.arrayOffset() + dst.position(),
+                   onMalformed, false);
+        else
+            encode(s, dst, dst.position(), onMalformed);
+        return n;
+    }
+
+    /**
+     * Encodes {@code s}, replacing unpaired surrogates with {@code '?'}.
+     * Equivalent to encoding through {@link #newEncoder()}; the result is
+     * allocated at its exact size.
+     */
+    public static byte[] getBytes(String s) {
+        try {
+            return getBytes(s, CodingErrorAction.REPLACE);
+        } catch (CharacterCodingException x) {
+            throw new Error(x);
+        }
+    }
+
+    /**
+     * Encodes {@code s}, handling unpaired surrogates as given by
+     * {@code onMalformed}. The result is allocated at its exact size.
+     *
+     * @throws MalformedInputException if {@code onMalformed} is
+     *         {@link CodingErrorAction#REPORT} and {@code s} contains an
+     *         unpaired surrogate
+     */
+    public static byte[] getBytes(String s, CodingErrorAction onMalformed)
+            throws CharacterCodingException
+    {
+        return getBytesImpl(s, Objects.requireNonNull(onMalformed), false);
+    }
+
+    /**
+     * Encodes {@code s}, mapping each lone surrogate U+DC80..U+DCFF to the
+     * byte in its low eight bits, which undoes
+     * {@link #newStringEscaped(byte[], int, int)}.
+     *
+     * @throws MalformedInputException if {@code s} contains any other
+     *         unpaired surrogate
+     */
+    public static byte[] getBytesEscaped(String s)
+            throws MalformedInputException
+    {
+        try {
+            return getBytesImpl(s, null, false);
+        } catch (MalformedInputException x) {
+            throw x;
+        } catch (CharacterCodingException x) {
+            throw new Error(x);
+        }
+    }
+
+    /**
+     * Encodes {@code s} as WTF-8, see {@link #WTF_8}. The result is
+     * allocated at its exact size.
+     */
+    public static byte[] getBytesWtf8(String s) {
+        try {
+            return getBytesImpl(s, CodingErrorAction.REPORT, true);
+        } catch (CharacterCodingException x) {
+            throw new Error(x);
+        }
+    }
+
+    // A null action unescapes lone surrogates, see encodedLength. With wtf
+    // set, unpaired surrogates are encoded and the action is not used.
+    private static byte[] getBytesImpl(String s, CodingErrorAction onMalformed,
+                                       boolean wtf)
+            throws CharacterCodingException
+    {
+        int len = s.length();
+        int n = 0;
+        while (n < len && s.charAt(n) < 0x80)
+            n++;
+        if (n == len)
+            return s.getBytes(StandardCharsets.ISO_8859_1);
+
+        byte[] da = new byte[n + encodedLength(s, n, len, onMalformed, wtf)];
+        encode(s, da, 0, onMalformed, wtf);
+        return da;
+    }
+
+    /**
+     * Encodes {@code s} into {@code da} from index {@code dp}, which must
+     * have room for all of it, as measured by encodedLength. Unpaired
+     * surrogates are handled as in getBytesImpl, but never reported.
+     *
+     * @return the new destination position
+     */
+    private static int encode(String s, byte[] da, int dp,
+                              CodingErrorAction onMalformed, boolean wtf)
+    {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                da[dp++] = (byte)c;
+            } else if (c < 0x800) {
+                da[dp++] = (byte)(0xc0 | (c >> 6));
+                da[dp++] = (byte)(0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                char d;
+                if (Character.isHighSurrogate(c) && i + 1 < len &&
+                        Character.isLowSurrogate(d = s.charAt(i + 1))) {
+                    int uc = Character.toCodePoint(c, d);
+                    da[dp++] = (byte)(0xf0 | ((uc >> 18)));
+                    da[dp++] = (byte)(0x80 | ((uc >> 12) & 0x3f));
+                    da[dp++] = (byte)(0x80 | ((uc >>  6) & 0x3f));
+                    da[dp++] = (byte)(0x80 | (uc & 0x3f));
+                    i++;
+                } else if (wtf) {
+                    da[dp++] = (byte)(0xe0 | ((c >> 12)));
+                    da[dp++] = (byte)(0x80 | ((c >>  6) & 0x3f));
+                    da[dp++] = (byte)(0x80 | (c & 0x3f));
+                } else if (onMalformed == CodingErrorAction.REPLACE) {
+                    da[dp++] = (byte)'?';
+                } else if (onMalformed == null) {
+                    // checked by encodedLength
+                    da[dp++] = (byte)c;
+                }
+            } else {
+                da[dp++] = (byte)(0xe0 | ((c >> 12)));
+                da[dp++] = (byte)(0x80 | ((c >>  6) & 0x3f));
+                da[dp++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+        return dp;
+    }
+
+    /**
+     * Encodes {@code s} into {@code dst} from index {@code dp} with
+     * absolute puts, like the encoder's direct loop; {@code dst} must have
+     * room for all of it. Unpaired surrogates are replaced or skipped.
+     */
+    private static void encode(String s, ByteBuffer dst, int dp,
+                               CodingErrorAction onMalformed)
+    {
+        int len = s.length();
+        int i = encodeASCII(s, 0, dst, dp, len);
+        dp += i;
+        for (; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst.put(dp++, (byte)c);
+            } else if (c < 0x800) {
+                dst.put(dp++, (byte)(0xc0 | (c >> 6)));
+                dst.put(dp++, (byte)(0x80 | (c & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                char d;
+                if (Character.isHighSurrogate(c) && i + 1 < len &&
+                        Character.isLowSurrogate(d = s.charAt(i + 1))) {
+                    int uc = Character.toCodePoint(c, d);
+                    dst.put(dp++, (byte)(0xf0 | ((uc >> 18))));
+                    dst.put(dp++, (byte)(0x80 | ((uc >> 12) & 0x3f)));
+                    dst.put(dp++, (byte)(0x80 | ((uc >>  6) & 0x3f)));
+                    dst.put(dp++, (byte)(0x80 | (uc & 0x3f)));
+                    i++;
+                } else if (onMalformed == CodingErrorAction.REPLACE) {
+                    dst.put(dp++, (byte)'?');
+                }
+            } else {
+                dst.put(dp++, (byte)(0xe0 | ((c >> 12))));
+                dst.put(dp++, (byte)(0x80 | ((c >>  6) & 0x3f)));
+                dst.put(dp++, (byte)(0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes {@link #getBytes(String)} would produce
+     * for {@code s}, without encoding it.
+     */
+    public static int encodedLength(CharSequence s) {
+        try {
+            return encodedLength(s, 0, s.length(), CodingErrorAction.REPLACE, false);
+        } catch (MalformedInputException x) {
+            throw new Error(x);
+        }
+    }
+
+    private static int encodedLength(CharSequence s, int from, int to,
+                                     CodingErrorAction onMalformed, boolean wtf)
+            throws MalformedInputException
+    {
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n++;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < to &&
+                        Character.isLowSurrogate(s.charAt(i + 1))) {
+                    n += 4;
+                    i++;
+                } else if (wtf) {
+                    n += 3;
+                } else if (onMalformed == CodingErrorAction.REPORT) {
+                    throw new MalformedInputException(1);
+                } else if (onMalformed == CodingErrorAction.REPLACE) {
+                    n++;
+                } else if (onMalformed == null) {
+                    if (!isEscape(c))
+                        throw new MalformedInputException(1);
+                    n++;
+                }
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of chars {@link #newString(byte[], int, int)}
+     * would produce for the {@code len} bytes of {@code b} starting at
+     * {@code off}, without decoding them. Each malformed sequence counts as
+     * one replacement char.
+     */
+    public static int decodedLength(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        return decodedLength(b, off, off + len, true);
+    }
+
+    /**
+     * Returns the number of chars {@code b[sp..sl)} decodes to, counting a
+     * malformed sequence as one char if {@code replace} is true and as none
+     * if it is false.
+     */
+    static int decodedLength(byte[] b, int sp, int sl, boolean replace) {
+        int n = 0;
+        while (sp < sl) {
+            int b1 = b[sp];
+            if (b1 >= 0) {
+                int ascii = countASCII(b, sp, sl - sp);
+                sp += ascii;
+                n += ascii;
+                continue;
+            }
+            int srcRemaining = sl - sp;
+            int nb = sequenceLength(b1,
+                    srcRemaining > 1 ? b[sp + 1] : 0,
+                    srcRemaining > 2 ? b[sp + 2] : 0,
+                    srcRemaining > 3 ? b[sp + 3] : 0,
+                    srcRemaining);
+            if (nb == 0) {
+                sp += malformedLength(b, sp, sl);
+                if (replace)
+                    n++;
+            } else {
+                sp += nb;
+                // 4 byte sequences become a surrogate pair
+                n += nb == 4 ? 2 : 1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of chars the bytes between the position and the
+     * limit of {@code src} decode to, see {@link #decodedLength(byte[], int, int)}.
+     * The position of {@code src} is not changed.
+     */
+    public static int decodedLength(ByteBuffer src) {
+        int sp = src.position();
+        int sl = src.limit();
+        if (src.hasArray())
+            return decodedLength(src.array(), src.arrayOffset() + sp, sl - sp);
+        int n = 0;
+        while (sp < sl) {
+            int b1 = src.get(sp);
+            if (b1 >= 0) {
+                int ascii = countASCII(src, sp, sl - sp);
+                sp += ascii;
+                n += ascii;
+                continue;
+            }
+            int srcRemaining = sl - sp;
+            int nb = sequenceLength(b1,
+                    srcRemaining > 1 ? src.get(sp + 1) : 0,
+                    srcRemaining > 2 ? src.get(sp + 2) : 0,
+                    srcRemaining > 3 ? src.get(sp + 3) : 0,
+                    srcRemaining);
+            if (nb == 0) {
+                sp += malformedLength(src, sp);
+                n++;
+            } else {
+                sp += nb;
+                n += nb == 4 ? 2 : 1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Decodes all of {@code sa[sp..sl)} into {@code da}, which must have
+     * room for {@code sl - sp} more chars. Malformed input, including a
+     * truncated sequence at the end, is handled as the decoder would with
+     * the given action at the end of input. A null action maps each
+     * malformed byte to a lone surrogate, see {@link #SURROGATE_ESCAPE}.
+     *
+     * @return the new destination position
+     */
+    static int decodeArray(byte[] sa, int sp, int sl, char[] da, int dp,
+                           CodingErrorAction onMalformed)
+            throws MalformedInputException
+    {
+        while (sp < sl) {
+            int b1 = sa[sp];
+            int srcRemaining = sl - sp;
+            if (b1 >= 0) {
+                da[dp++] = (char) b1;
+                sp++;
+                continue;
+            } else if ((b1 >> 5) == -2 && (b1 & 0x1e) != 0) {
+                if (srcRemaining >= 2) {
+                    int b2 = sa[sp + 1];
+                    if (!Decoder.isNotContinuation(b2)) {
+                        da[dp++] = (char) (((b1 << 6) ^ b2)
+                                ^
+                                (((byte) 0xC0 << 6) ^
+                                        ((byte) 0x80 << 0)));
+                        sp += 2;
+                        continue;
+                    }
+                }
+            } else if ((b1 >> 4) == -2) {
+                if (srcRemaining >= 3) {
+                    int b2 = sa[sp + 1];
+                    int b3 = sa[sp + 2];
+                    char c = (char)
+                            ((b1 << 12) ^
+                                    (b2 <<  6) ^
+                                    (b3 ^
+                                            (((byte) 0xE0 << 12) ^
+                                                    ((byte) 0x80 <<  6) ^
+                                                    ((byte) 0x80 <<  0))));
+                    if (!Decoder.isMalformed3(b1, b2, b3) && !Character.isSurrogate(c)) {
+                        da[dp++] = c;
+                        sp += 3;
+                        continue;
+                    }
+                }
+            } else if ((b1 >> 3) == -2) {
+                if (srcRemaining >= 4) {
+                    int b2 = sa[sp + 1];
+                    int b3 = sa[sp + 2];
+                    int b4 = sa[sp + 3];
+                    int uc = ((b1 << 18) ^
+                            (b2 << 12) ^
+                            (b3 <<  6) ^
+                            (b4 ^
+                                    (((byte) 0xF0 << 18) ^
+                                            ((byte) 0x80 << 12) ^
+                                            ((byte) 0x80 <<  6) ^
+                                            ((byte) 0x80 <<  0))));
+                    if (!Decoder.isMalformed4(b2, b3, b4) &&
+                            // shortest form check
+                            Character.isSupplementaryCodePoint(uc)) {
+                        da[dp++] = Character.highSurrogate(uc);
+                        da[dp++] = Character.lowSurrogate(uc);
+                        sp += 4;
+                        continue;
+                    }
+                }
+            }
+
+            int nb = malformedLength(sa, sp, sl);
+            if (onMalformed == null) {
+                for (int i = 0; i < nb; i++)
+                    da[dp++] = escape(sa[sp + i]);
+            } else if (onMalformed == CodingErrorAction.REPORT) {
+                throw new MalformedInputException(nb);
+            } else if (onMalformed == CodingErrorAction.REPLACE) {
+                da[dp++] = '\ufffd';
+            }
+            sp += nb;
+        }
+        return dp;
+    }
+
+    /**
+     * Decodes all of {@code src} from index {@code sp} to its limit into
+     * {@code da} with absolute reads, see {@link #decodeArray}. The position
+     * of {@code src} is not used.
+     *
+     * @return the new destination position
+     */
+    static int decodeBuffer(ByteBuffer src, int sp, char[] da, int dp,
+                            CodingErrorAction onMalformed)
+            throws MalformedInputException
+    {
+        int sl = src.limit();
+        while (sp < sl) {
+            int b1 = src.get(sp);
+            if (b1 >= 0) {
+                int n = decodeASCII(src, sp, da, dp, sl - sp);
+                sp += n;
+                dp += n;
+                continue;
+            }
+            int srcRemaining = sl - sp;
+            int b2 = srcRemaining > 1 ? src.get(sp + 1) : 0;
+            int b3 = srcRemaining > 2 ? src.get(sp + 2) : 0;
+            int b4 = srcRemaining > 3 ? src.get(sp + 3) : 0;
+            int nb = sequenceLength(b1, b2, b3, b4, srcRemaining);
+            if (nb == 2) {
+                da[dp++] = (char) (((b1 << 6) ^ b2)
+                        ^
+                        (((byte) 0xC0 << 6) ^
+                                ((byte) 0x80 << 0)));
+            } else if (nb == 3) {
+                da[dp++] = (char)
+                        ((b1 << 12) ^
+                                (b2 <<  6) ^
+                                (b3 ^
+                                        (((byte) 0xE0 << 12) ^
+                                                ((byte) 0x80 <<  6) ^
+                                                ((byte) 0x80 <<  0))));
+            } else if (nb == 4) {
+                int uc = ((b1 << 18) ^
+                        (b2 << 12) ^
+                        (b3 <<  6) ^
+                        (b4 ^
+                                (((byte) 0xF0 << 18) ^
+                                        ((byte) 0x80 << 12) ^
+                                        ((byte) 0x80 <<  6) ^
+                                        ((byte) 0x80 <<  0))));
+                da[dp++] = Character.highSurrogate(uc);
+                da[dp++] = Character.lowSurrogate(uc);
+            } else {
+                nb = malformedLength(src, sp);
+                if (onMalformed == null) {
+                    for (int i = 0; i < nb; i++)
+                        da[dp++] = escape(src.get(sp + i));
+                } else if (onMalformed == CodingErrorAction.REPORT) {
+                    throw new MalformedInputException(nb);
+                } else if (onMalformed == CodingErrorAction.REPLACE) {
+                    da[dp++] = '\ufffd';
+                }
+            }
+            sp += nb;
+        }
+        return dp;
+    }
+
+    /**
+     * Returns the index of the first malformed sequence in the {@code len}
+     * bytes of {@code b} starting at {@code off}, or -1 if they are
+     * well-formed UTF-8. A sequence truncated by the end of the range is
+     * malformed. Nothing is decoded.
+     */
+    public static int validate(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        int sp = off;
+        int sl = off + len;
+        while (sp < sl) {
+            int b1 = b[sp];
+            if (b1 >= 0) {
+                sp += countASCII(b, sp, sl - sp);
+                continue;
+            }
+            int srcRemaining = sl - sp;
+            int nb = sequenceLength(b1,
+                    srcRemaining > 1 ? b[sp + 1] : 0,
+                    srcRemaining > 2 ? b[sp + 2] : 0,
+                    srcRemaining > 3 ? b[sp + 3] : 0,
+                    srcRemaining);
+            if (nb == 0)
+                return sp;
+            sp += nb;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first malformed sequence between the
+     * position and the limit of {@code src}, or -1 if they are well-formed
+     * UTF-8. The position of {@code src} is not changed.
+     */
+    public static int validate(ByteBuffer src) {
+        int sp = src.position();
+        int sl = src.limit();
+        if (src.hasArray()) {
+            int soff = src.arrayOffset();
+            int i = validate(src.array(), soff + sp, sl - sp);
+            return i < 0 ? i : i - soff;
+        }
+        while (sp < sl) {
+            int b1 = src.get(sp);
+            if (b1 >= 0) {
+                sp += countASCII(src, sp, sl - sp);
+                continue;
+            }
+            int srcRemaining = sl - sp;
+            int nb = sequenceLength(b1,
+                    srcRemaining > 1 ? src.get(sp + 1) : 0,
+                    srcRemaining > 2 ? src.get(sp + 2) : 0,
+                    srcRemaining > 3 ? src.get(sp + 3) : 0,
+                    srcRemaining);
+            if (nb == 0)
+                return sp;
+            sp += nb;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the length of the well-formed multi-byte sequence made of
+     * the lead byte {@code b1} and its continuation bytes, or 0 if the
+     * sequence is malformed or longer than the {@code srcRemaining} bytes
+     * left.
+     */
+    static int sequenceLength(int b1, int b2, int b3, int b4,
+                              int srcRemaining) {
+        if ((b1 >> 5) == -2 && (b1 & 0x1e) != 0) {
+            return srcRemaining >= 2 && !Decoder.isNotContinuation(b2) ? 2 : 0;
+        } else if ((b1 >> 4) == -2) {
+            return srcRemaining >= 3 && !Decoder.isMalformed3(b1, b2, b3) &&
+                    // surrogates, [ED] [A0..BF]
+                    !(b1 == (byte)0xed && (b2 & 0xe0) == 0xa0) ? 3 : 0;
+        } else if ((b1 >> 3) == -2) {
+            return srcRemaining >= 4 && (b1 & 0xff) <= 0xf4 &&
+                    !Decoder.isMalformed4_2(b1 & 0xff, b2 & 0xff) &&
+                    !Decoder.isMalformed4(b2, b3, b4) ? 4 : 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the length of the malformed sequence at {@code b[off]}, with
+     * the input ending at {@code end}, as the decoder would report it at
+     * the end of input. {@code off} must be where {@link #validate} found
+     * malformed input; for a well-formed sequence the result means
+     * nothing.
+     */
+    static int malformedLength(byte[] b, int off, int end) {
+        Objects.checkFromToIndex(off, end, b.length);
+        if (off == end)
+            throw new IllegalArgumentException("no input at " + off);
+        int srcRemaining = end - off;
+        return malformedLength(b[off],
+                srcRemaining > 1 ? b[off + 1] : 0,
+                srcRemaining > 2 ? b[off + 2] : 0,
+                srcRemaining);
+    }
+
+    /**
+     * Returns the length of the malformed sequence at index {@code i} of
+     * {@code src}, with the input ending at its limit, as the decoder would
+     * report it at the end of input, see
+     * {@link #malformedLength(byte[], int, int)}.
+     */
+    static int malformedLength(ByteBuffer src, int i) {
+        int srcRemaining = src.limit() - i;
+        if (srcRemaining == 0)
+            throw new IllegalArgumentException("no input at " + i);
+        return malformedLength(src.get(i),
+                srcRemaining > 1 ? src.get(i + 1) : 0,
+                srcRemaining > 2 ? src.get(i + 2) : 0,
+                srcRemaining);
+    }
+
+    /**
+     * Returns the length of the malformed sequence starting with the lead
+     * byte {@code b1}, see {@link #malformedLength(byte[], int, int)}. Only
+     * as many of {@code b2} and {@code b3} are looked at as there are
+     * {@code srcRemaining} bytes left.
+     */
+    static int malformedLength(int b1, int b2, int b3, int srcRemaining) {
+        if ((b1 >> 4) == -2) {
+            // 3 bytes
+            if (srcRemaining < 3)
+                return srcRemaining > 1 && Decoder.isMalformed3_2(b1, b2)
+                        ? 1 : srcRemaining;
+            if (Decoder.isMalformed3(b1, b2, b3))
+                return ((b1 == (byte)0xe0 && (b2 & 0xe0) == 0x80) ||
+                        Decoder.isNotContinuation(b2)) ? 1 : 2;
+            return 3;
+        } else if ((b1 >> 3) == -2) {
+            // 4 bytes
+            b1 &= 0xff;
+            if (b1 > 0xf4 ||
+                    srcRemaining > 1 && Decoder.isMalformed4_2(b1, b2 & 0xff))
+                return 1;
+            if (srcRemaining > 2 && Decoder.isMalformed4_3(b3))
+                return 2;
+            return Math.min(srcRemaining, 3);
+        }
+        return 1;
     }
 
     static final void updatePositions(Buffer src, int sp,
@@ -80,12 +937,212 @@ public final class UTF_8 extends Unicode {
         dst.position(dp - dst.arrayOffset());
     }
 
-//    private static final JavaLangAccess JLA = SharedSecrets.getJavaLangAccess();
+    // Lone surrogate standing for byte b of malformed input
+    static char escape(byte b) {
+        return (char) (0xdc00 | (b & 0xff));
+    }
+
+    static boolean isEscape(char c) {
+        return c >= '\udc80' && c <= '\udcff';
+    }
+
+    /**
+     * Whether {@link VectorUTF_8} can be used, which needs the JVM to be
+     * started with {@code --add-modules jdk.incubator.vector}.
+     */
+    static final boolean VECTORIZED =
+            ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /**
+     * Returns the length of the ASCII prefix of {@code sa[sp..sp+len)},
+     * testing the high bits of eight bytes at a time.
+     */
+    static int countASCII(byte[] sa, int sp, int len) {
+        int n = 0;
+        for (; n <= len - 8; n += 8) {
+            if (((long) LONG_LE.get(sa, sp + n) & HIGH_BITS) != 0)
+                break;
+        }
+        while (n < len && sa[sp + n] >= 0)
+            n++;
+        return n;
+    }
+
+    /**
+     * Returns the length of the ASCII prefix of {@code sa[sp..sp+len)},
+     * testing eight chars at a time.
+     */
+    static int countASCII(char[] sa, int sp, int len) {
+        int n = 0;
+        for (; n <= len - 8; n += 8) {
+            if (((sa[sp + n]     | sa[sp + n + 1] | sa[sp + n + 2] | sa[sp + n + 3] |
+                  sa[sp + n + 4] | sa[sp + n + 5] | sa[sp + n + 6] | sa[sp + n + 7])
+                    & 0xff80) != 0)
+                break;
+        }
+        while (n < len && sa[sp + n] < '\u0080')
+            n++;
+        return n;
+    }
+
+    /**
+     * Widens the ASCII prefix of {@code sa[sp..sp+len)} into {@code da},
+     * widening each word of eight bytes that is tested.
+     *
+     * @return the number of bytes decoded
+     */
+    static int decodeASCII(byte[] sa, int sp, char[] da, int dp, int len) {
+        int n = 0;
+        for (; n <= len - 8; n += 8) {
+            long w = (long) LONG_LE.get(sa, sp + n);
+            if ((w & HIGH_BITS) != 0)
+                break;
+            da[dp + n]     = (char) (w        & 0x7f);
+            da[dp + n + 1] = (char) (w >>>  8 & 0x7f);
+            da[dp + n + 2] = (char) (w >>> 16 & 0x7f);
+            da[dp + n + 3] = (char) (w >>> 24 & 0x7f);
+            da[dp + n + 4] = (char) (w >>> 32 & 0x7f);
+            da[dp + n + 5] = (char) (w >>> 40 & 0x7f);
+            da[dp + n + 6] = (char) (w >>> 48 & 0x7f);
+            da[dp + n + 7] = (char) (w >>> 56);
+        }
+        byte b;
+        for (; n < len && (b = sa[sp + n]) >= 0; n++)
+            da[dp + n] = (char) b;
+        return n;
+    }
+
+    /**
+     * Narrows the ASCII prefix of {@code sa[sp..sp+len)} into {@code da},
+     * writing eight bytes at a time.
+     *
+     * @return the number of chars encoded
+     */
+    static int encodeASCII(char[] sa, int sp, byte[] da, int dp, int len) {
+        int n = countASCII(sa, sp, len);
+        int i = 0;
+        for (; i <= n - 8; i += 8) {
+            LONG_LE.set(da, dp + i,
+                    (long) sa[sp + i]           | (long) sa[sp + i + 1] <<  8 |
+                    (long) sa[sp + i + 2] << 16 | (long) sa[sp + i + 3] << 24 |
+                    (long) sa[sp + i + 4] << 32 | (long) sa[sp + i + 5] << 40 |
+                    (long) sa[sp + i + 6] << 48 | (long) sa[sp + i + 7] << 56);
+        }
+        for (; i < n; i++)
+            da[dp + i] = (byte) sa[sp + i];
+        return n;
+    }
+
+    private static final VarHandle LONG_LE_BUFFER =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Returns the length of the ASCII prefix of {@code src[sp..sp+len)},
+     * testing the high bits of eight bytes at a time with absolute reads.
+     */
+    static int countASCII(ByteBuffer src, int sp, int len) {
+        int n = 0;
+        for (; n <= len - 8; n += 8) {
+            if (((long) LONG_LE_BUFFER.get(src, sp + n) & HIGH_BITS) != 0)
+                break;
+        }
+        while (n < len && src.get(sp + n) >= 0)
+            n++;
+        return n;
+    }
+
+    /**
+     * Widens the ASCII prefix of {@code src[sp..sp+len)} into {@code da}
+     * without moving the position of {@code src}, widening each word of
+     * eight bytes that is tested.
+     *
+     * @return the number of bytes decoded
+     */
+    static int decodeASCII(ByteBuffer src, int sp, char[] da, int dp, int len) {
+        int n = 0;
+        for (; n <= len - 8; n += 8) {
+            long w = (long) LONG_LE_BUFFER.get(src, sp + n);
+            if ((w & HIGH_BITS) != 0)
+                break;
+            da[dp + n]     = (char) (w        & 0x7f);
+            da[dp + n + 1] = (char) (w >>>  8 & 0x7f);
+            da[dp + n + 2] = (char) (w >>> 16 & 0x7f);
+            da[dp + n + 3] = (char) (w >>> 24 & 0x7f);
+            da[dp + n + 4] = (char) (w >>> 32 & 0x7f);
+            da[dp + n + 5] = (char) (w >>> 40 & 0x7f);
+            da[dp + n + 6] = (char) (w >>> 48 & 0x7f);
+            da[dp + n + 7] = (char) (w >>> 56);
+        }
+        byte b;
+        for (; n < len && (b = src.get(sp + n)) >= 0; n++)
+            da[dp + n] = (char) b;
+        return n;
+    }
+
+    /**
+     * Narrows the ASCII prefix of {@code sa[sp..sp+len)} into {@code dst}
+     * without moving the position of {@code dst}, writing eight bytes at
+     * a time.
+     *
+     * @return the number of chars encoded
+     */
+    static int encodeASCII(char[] sa, int sp, ByteBuffer dst, int dp, int len) {
+        int n = countASCII(sa, sp, len);
+        int i = 0;
+        for (; i <= n - 8; i += 8) {
+            LONG_LE_BUFFER.set(dst, dp + i,
+                    (long) sa[sp + i]           | (long) sa[sp + i + 1] <<  8 |
+                    (long) sa[sp + i + 2] << 16 | (long) sa[sp + i + 3] << 24 |
+                    (long) sa[sp + i + 4] << 32 | (long) sa[sp + i + 5] << 40 |
+                    (long) sa[sp + i + 6] << 48 | (long) sa[sp + i + 7] << 56);
+        }
+        for (; i < n; i++)
+            dst.put(dp + i, (byte) sa[sp + i]);
+        return n;
+    }
+
+    /**
+     * Narrows the ASCII prefix of {@code s[sp..sp+len)} into {@code dst},
+     * see {@link #encodeASCII(char[], int, ByteBuffer, int, int)}.
+     *
+     * @return the number of chars encoded
+     */
+    static int encodeASCII(String s, int sp, ByteBuffer dst, int dp, int len) {
+        int i = 0;
+        for (; i <= len - 8; i += 8) {
+            long w = 0;
+            int bits = 0;
+            for (int k = 7; k >= 0; k--) {
+                char c = s.charAt(sp + i + k);
+                bits |= c;
+                w = w << 8 | c;
+            }
+            if ((bits & 0xff80) != 0)
+                break;
+            LONG_LE_BUFFER.set(dst, dp + i, w);
+        }
+        char c;
+        for (; i < len && (c = s.charAt(sp + i)) < '\u0080'; i++)
+            dst.put(dp + i, (byte) c);
+        return i;
+    }
 
     private static class Decoder extends CharsetDecoder {
 
-        private Decoder(Charset cs) {
+        // whether malformed input is escaped, see SURROGATE_ESCAPE
+        private final boolean escape;
+        // whether encoded surrogates are decoded, see WTF_8
+        private final boolean wtf;
+
+        private Decoder(Charset cs, boolean escape, boolean wtf) {
             super(cs, 1.0f, 1.0f);
+            this.escape = escape;
+            this.wtf = wtf;
         }
 
         private static boolean isNotContinuation(int b) {
@@ -225,99 +1282,153 @@ public final class UTF_8 extends Unicode {
             int dp = doff + dst.position();
             int dl = doff + dst.limit();
 
-//            int n = JLA.decodeASCII(sa, sp, da, dp, Math.min(sl - sp, dl - dp));
-//            sp += n;
-//            dp += n;
             // ASCII only loop
-            int dlASCII = dp + Math.min(sl - sp, dl - dp);
-            while (dp < dlASCII && sa[sp] >= 0)
-                da[dp++] = (char) sa[sp++];
+            int max = Math.min(sl - sp, dl - dp);
+            int n = decodeASCII(sa, sp, da, dp, max);
+            if (CoderMetrics.ENABLED)
+                CoderMetrics.asciiDecoded(n, max);
+            sp += n;
+            dp += n;
 
-            while (sp < sl) {
-                int b1 = sa[sp];
-                if (b1 >= 0) {
-                    // 1 byte, 7 bits: 0xxxxxxx
-                    if (dp >= dl)
-                        return xflow(src, sp, sl, dst, dp, 1);
-                    da[dp++] = (char) b1;
-                    sp++;
-                } else if ((b1 >> 5) == -2 && (b1 & 0x1e) != 0) {
-                    // 2 bytes, 11 bits: 110xxxxx 10xxxxxx
-                    //                   [C2..DF] [80..BF]
-                    if (sl - sp < 2 || dp >= dl)
-                        return xflow(src, sp, sl, dst, dp, 2);
-                    int b2 = sa[sp + 1];
-                    // Now we check the first byte of 2-byte sequence as
-                    //     if ((b1 >> 5) == -2 && (b1 & 0x1e) != 0)
-                    // no longer need to check b1 against c1 & c0 for
-                    // malformed as we did in previous version
-                    //   (b1 & 0x1e) == 0x0 || (b2 & 0xc0) != 0x80;
-                    // only need to check the second byte b2.
-                    if (isNotContinuation(b2))
-                        return malformedForLength(src, sp, dst, dp, 1);
-                    da[dp++] = (char) (((b1 << 6) ^ b2)
-                            ^
-                            (((byte) 0xC0 << 6) ^
-                                    ((byte) 0x80 << 0)));
-                    sp += 2;
-                } else if ((b1 >> 4) == -2) {
-                    // 3 bytes, 16 bits: 1110xxxx 10xxxxxx 10xxxxxx
-                    int srcRemaining = sl - sp;
-                    if (srcRemaining < 3 || dp >= dl) {
-                        if (srcRemaining > 1 && isMalformed3_2(b1, sa[sp + 1]))
-                            return malformedForLength(src, sp, dst, dp, 1);
-                        return xflow(src, sp, sl, dst, dp, 3);
-                    }
-                    int b2 = sa[sp + 1];
-                    int b3 = sa[sp + 2];
-                    if (isMalformed3(b1, b2, b3))
-                        return malformed(src, sp, dst, dp, 3);
-                    char c = (char)
-                            ((b1 << 12) ^
-                                    (b2 <<  6) ^
-                                    (b3 ^
-                                            (((byte) 0xE0 << 12) ^
+            if (VECTORIZED) {
+                long p = VectorUTF_8.decode(sa, sp, sl, da, dp, dl);
+                sp = (int) (p >>> 32);
+                dp = (int) p;
+            }
+
+            for (;;) {
+                int nb = 0;     // length of malformed input at sp
+                while (sp < sl) {
+                    int b1 = sa[sp];
+                    decode: {
+                        if (b1 >= 0) {
+                            // 1 byte, 7 bits: 0xxxxxxx
+                            if (dp >= dl)
+                                return xflow(src, sp, sl, dst, dp, 1);
+                            da[dp++] = (char) b1;
+                            sp++;
+                        } else if ((b1 >> 5) == -2 && (b1 & 0x1e) != 0) {
+                            // 2 bytes, 11 bits: 110xxxxx 10xxxxxx
+                            //                   [C2..DF] [80..BF]
+                            if (sl - sp < 2 || dp >= dl)
+                                return xflow(src, sp, sl, dst, dp, 2);
+                            int b2 = sa[sp + 1];
+                            // Now we check the first byte of 2-byte sequence as
+                            //     if ((b1 >> 5) == -2 && (b1 & 0x1e) != 0)
+                            // no longer need to check b1 against c1 & c0 for
+                            // malformed as we did in previous version
+                            //   (b1 & 0x1e) == 0x0 || (b2 & 0xc0) != 0x80;
+                            // only need to check the second byte b2.
+                            if (isNotContinuation(b2)) {
+                                nb = 1;
+                                break decode;
+                            }
+                            da[dp++] = (char) (((b1 << 6) ^ b2)
+                                    ^
+                                    (((byte) 0xC0 << 6) ^
+                                            ((byte) 0x80 << 0)));
+                            sp += 2;
+                        } else if ((b1 >> 4) == -2) {
+                            // 3 bytes, 16 bits: 1110xxxx 10xxxxxx 10xxxxxx
+                            int srcRemaining = sl - sp;
+                            if (srcRemaining < 3 || dp >= dl) {
+                                if (srcRemaining > 1 && isMalformed3_2(b1, sa[sp + 1])) {
+                                    nb = 1;
+                                    break decode;
+                                }
+                                return xflow(src, sp, sl, dst, dp, 3);
+                            }
+                            int b2 = sa[sp + 1];
+                            int b3 = sa[sp + 2];
+                            if (isMalformed3(b1, b2, b3)) {
+                                nb = malformedLength(sa, sp, sl);
+                                break decode;
+                            }
+                            char c = (char)
+                                    ((b1 << 12) ^
+                                            (b2 <<  6) ^
+                                            (b3 ^
+                                                    (((byte) 0xE0 << 12) ^
+                                                            ((byte) 0x80 <<  6) ^
+                                                            ((byte) 0x80 <<  0))));
+                            if (Character.isSurrogate(c) &&
+                                    (!wtf || Character.isLowSurrogate(c) &&
+                                            followsHigh(src, src.position(), sp - soff))) {
+                                nb = 3;
+                                break decode;
+                            }
+                            da[dp++] = c;
+                            sp += 3;
+                        } else if ((b1 >> 3) == -2) {
+                            // 4 bytes, 21 bits: 11110xxx 10xxxxxx 10xxxxxx 10xxxxxx
+                            int srcRemaining = sl - sp;
+                            if (srcRemaining < 4 || dl - dp < 2) {
+                                b1 &= 0xff;
+                                if (b1 > 0xf4 ||
+                                        srcRemaining > 1 && isMalformed4_2(b1, sa[sp + 1] & 0xff)) {
+                                    nb = 1;
+                                    break decode;
+                                }
+                                if (srcRemaining > 2 && isMalformed4_3(sa[sp + 2])) {
+                                    nb = 2;
+                                    break decode;
+                                }
+                                return xflow(src, sp, sl, dst, dp, 4);
+                            }
+                            int b2 = sa[sp + 1];
+                            int b3 = sa[sp + 2];
+                            int b4 = sa[sp + 3];
+                            int uc = ((b1 << 18) ^
+                                    (b2 << 12) ^
+                                    (b3 <<  6) ^
+                                    (b4 ^
+                                            (((byte) 0xF0 << 18) ^
+                                                    ((byte) 0x80 << 12) ^
                                                     ((byte) 0x80 <<  6) ^
                                                     ((byte) 0x80 <<  0))));
-                    if (Character.isSurrogate(c))
-                        return malformedForLength(src, sp, dst, dp, 3);
-                    da[dp++] = c;
-                    sp += 3;
-                } else if ((b1 >> 3) == -2) {
-                    // 4 bytes, 21 bits: 11110xxx 10xxxxxx 10xxxxxx 10xxxxxx
-                    int srcRemaining = sl - sp;
-                    if (srcRemaining < 4 || dl - dp < 2) {
-                        b1 &= 0xff;
-                        if (b1 > 0xf4 ||
-                                srcRemaining > 1 && isMalformed4_2(b1, sa[sp + 1] & 0xff))
-                            return malformedForLength(src, sp, dst, dp, 1);
-                        if (srcRemaining > 2 && isMalformed4_3(sa[sp + 2]))
-                            return malformedForLength(src, sp, dst, dp, 2);
-                        return xflow(src, sp, sl, dst, dp, 4);
+                            if (isMalformed4(b2, b3, b4) ||
+                                    // shortest form check
+                                    !Character.isSupplementaryCodePoint(uc)) {
+                                nb = malformedLength(sa, sp, sl);
+                                break decode;
+                            }
+                            da[dp++] = Character.highSurrogate(uc);
+                            da[dp++] = Character.lowSurrogate(uc);
+                            sp += 4;
+                        } else {
+                            nb = 1;
+                            break decode;
+                        }
+                        continue;
                     }
-                    int b2 = sa[sp + 1];
-                    int b3 = sa[sp + 2];
-                    int b4 = sa[sp + 3];
-                    int uc = ((b1 << 18) ^
-                            (b2 << 12) ^
-                            (b3 <<  6) ^
-                            (b4 ^
-                                    (((byte) 0xF0 << 18) ^
-                                            ((byte) 0x80 << 12) ^
-                                            ((byte) 0x80 <<  6) ^
-                                            ((byte) 0x80 <<  0))));
-                    if (isMalformed4(b2, b3, b4) ||
-                            // shortest form check
-                            !Character.isSupplementaryCodePoint(uc)) {
-                        return malformed(src, sp, dst, dp, 4);
-                    }
-                    da[dp++] = Character.highSurrogate(uc);
-                    da[dp++] = Character.lowSurrogate(uc);
-                    sp += 4;
-                } else
-                    return malformed(src, sp, dst, dp, 1);
+                    // malformed input, which is left to the outer loop to
+                    // keep the error paths out of this one
+                    break;
+                }
+                if (nb == 0)
+                    return xflow(src, sp, sl, dst, dp, 0);
+                // malformed input of nb bytes at sp
+                if (escape) {
+                    // escape the first byte and carry on; the rest of a
+                    // malformed sequence is continuation bytes, which are
+                    // malformed on their own
+                    if (dp >= dl)
+                        return xflow(src, sp, sl, dst, dp, 1);
+                    da[dp++] = escape(sa[sp++]);
+                    continue;
+                }
+                // replace or skip it here rather than return it to
+                // CharsetDecoder.decode, which would re-enter this method
+                // once per malformed sequence
+                char[] r = malformedRepl;
+                if (r == null || dl - dp < r.length)
+                    return malformedForLength(src, sp, dst, dp, nb);
+                for (char c : r)
+                    da[dp++] = c;
+                CoderEvents.utf8Malformed(charset(), offset + sp - soff, nb,
+                                          src, sp - soff);
+                sp += nb;
             }
-            return xflow(src, sp, sl, dst, dp, 0);
         }
 
         private CoderResult decodeBufferLoop(ByteBuffer src,
@@ -325,105 +1436,388 @@ public final class UTF_8 extends Unicode {
         {
             int mark = src.position();
             int limit = src.limit();
+            int start = mark;
             while (mark < limit) {
                 int b1 = src.get();
-                if (b1 >= 0) {
-                    // 1 byte, 7 bits: 0xxxxxxx
-                    if (dst.remaining() < 1)
-                        return xflow(src, mark, 1); // overflow
-                    dst.put((char) b1);
-                    mark++;
-                } else if ((b1 >> 5) == -2 && (b1 & 0x1e) != 0) {
-                    // 2 bytes, 11 bits: 110xxxxx 10xxxxxx
-                    if (limit - mark < 2|| dst.remaining() < 1)
-                        return xflow(src, mark, 2);
-                    int b2 = src.get();
-                    if (isNotContinuation(b2))
-                        return malformedForLength(src, mark, 1);
-                    dst.put((char) (((b1 << 6) ^ b2)
-                            ^
-                            (((byte) 0xC0 << 6) ^
-                                    ((byte) 0x80 << 0))));
-                    mark += 2;
-                } else if ((b1 >> 4) == -2) {
-                    // 3 bytes, 16 bits: 1110xxxx 10xxxxxx 10xxxxxx
-                    int srcRemaining = limit - mark;
-                    if (srcRemaining < 3 || dst.remaining() < 1) {
-                        if (srcRemaining > 1 && isMalformed3_2(b1, src.get()))
-                            return malformedForLength(src, mark, 1);
-                        return xflow(src, mark, 3);
+                CoderResult cr;     // malformed input at mark
+                decode: {
+                    if (b1 >= 0) {
+                        // 1 byte, 7 bits: 0xxxxxxx
+                        if (dst.remaining() < 1)
+                            return xflow(src, mark, 1); // overflow
+                        dst.put((char) b1);
+                        mark++;
+                    } else if ((b1 >> 5) == -2 && (b1 & 0x1e) != 0) {
+                        // 2 bytes, 11 bits: 110xxxxx 10xxxxxx
+                        if (limit - mark < 2|| dst.remaining() < 1)
+                            return xflow(src, mark, 2);
+                        int b2 = src.get();
+                        if (isNotContinuation(b2)) {
+                            cr = malformedForLength(src, mark, 1);
+                            break decode;
+                        }
+                        dst.put((char) (((b1 << 6) ^ b2)
+                                ^
+                                (((byte) 0xC0 << 6) ^
+                                        ((byte) 0x80 << 0))));
+                        mark += 2;
+                    } else if ((b1 >> 4) == -2) {
+                        // 3 bytes, 16 bits: 1110xxxx 10xxxxxx 10xxxxxx
+                        int srcRemaining = limit - mark;
+                        if (srcRemaining < 3 || dst.remaining() < 1) {
+                            if (srcRemaining > 1 && isMalformed3_2(b1, src.get())) {
+                                cr = malformedForLength(src, mark, 1);
+                                break decode;
+                            }
+                            return xflow(src, mark, 3);
+                        }
+                        int b2 = src.get();
+                        int b3 = src.get();
+                        if (isMalformed3(b1, b2, b3)) {
+                            cr = malformed(src, mark, 3);
+                            break decode;
+                        }
+                        char c = (char)
+                                ((b1 << 12) ^
+                                        (b2 <<  6) ^
+                                        (b3 ^
+                                                (((byte) 0xE0 << 12) ^
+                                                        ((byte) 0x80 <<  6) ^
+                                                        ((byte) 0x80 <<  0))));
+                        if (Character.isSurrogate(c) &&
+                                (!wtf || Character.isLowSurrogate(c) &&
+                                        followsHigh(src, start, mark))) {
+                            cr = malformedForLength(src, mark, 3);
+                            break decode;
+                        }
+                        dst.put(c);
+                        mark += 3;
+                    } else if ((b1 >> 3) == -2) {
+                        // 4 bytes, 21 bits: 11110xxx 10xxxxxx 10xxxxxx 10xxxxxx
+                        int srcRemaining = limit - mark;
+                        if (srcRemaining < 4 || dst.remaining() < 2) {
+                            b1 &= 0xff;
+                            if (b1 > 0xf4 ||
+                                    srcRemaining > 1 && isMalformed4_2(b1, src.get() & 0xff)) {
+                                cr = malformedForLength(src, mark, 1);
+                                break decode;
+                            }
+                            if (srcRemaining > 2 && isMalformed4_3(src.get())) {
+                                cr = malformedForLength(src, mark, 2);
+                                break decode;
+                            }
+                            return xflow(src, mark, 4);
+                        }
+                        int b2 = src.get();
+                        int b3 = src.get();
+                        int b4 = src.get();
+                        int uc = ((b1 << 18) ^
+                                (b2 << 12) ^
+                                (b3 <<  6) ^
+                                (b4 ^
+                                        (((byte) 0xF0 << 18) ^
+                                                ((byte) 0x80 << 12) ^
+                                                ((byte) 0x80 <<  6) ^
+                                                ((byte) 0x80 <<  0))));
+                        if (isMalformed4(b2, b3, b4) ||
+                                // shortest form check
+                                !Character.isSupplementaryCodePoint(uc)) {
+                            cr = malformed(src, mark, 4);
+                            break decode;
+                        }
+                        dst.put(Character.highSurrogate(uc));
+                        dst.put(Character.lowSurrogate(uc));
+                        mark += 4;
+                    } else {
+                        cr = malformed(src, mark, 1);
+                        break decode;
                     }
-                    int b2 = src.get();
-                    int b3 = src.get();
-                    if (isMalformed3(b1, b2, b3))
-                        return malformed(src, mark, 3);
-                    char c = (char)
-                            ((b1 << 12) ^
-                                    (b2 <<  6) ^
-                                    (b3 ^
-                                            (((byte) 0xE0 << 12) ^
-                                                    ((byte) 0x80 <<  6) ^
-                                                    ((byte) 0x80 <<  0))));
-                    if (Character.isSurrogate(c))
-                        return malformedForLength(src, mark, 3);
-                    dst.put(c);
-                    mark += 3;
-                } else if ((b1 >> 3) == -2) {
-                    // 4 bytes, 21 bits: 11110xxx 10xxxxxx 10xxxxxx 10xxxxxx
-                    int srcRemaining = limit - mark;
-                    if (srcRemaining < 4 || dst.remaining() < 2) {
-                        b1 &= 0xff;
-                        if (b1 > 0xf4 ||
-                                srcRemaining > 1 && isMalformed4_2(b1, src.get() & 0xff))
-                            return malformedForLength(src, mark, 1);
-                        if (srcRemaining > 2 && isMalformed4_3(src.get()))
-                            return malformedForLength(src, mark, 2);
-                        return xflow(src, mark, 4);
+                    continue;
+                }
+                // malformed input at mark, see decodeArrayLoop
+                if (escape) {
+                    if (!dst.hasRemaining())
+                        return xflow(src, mark, 1);
+                    dst.put(escape(src.get(mark)));
+                    src.position(++mark);
+                    continue;
+                }
+                char[] r = malformedRepl;
+                if (r == null || dst.remaining() < r.length)
+                    return cr;
+                dst.put(r);
+                CoderEvents.utf8Malformed(charset(), offset + mark, cr.length(),
+                                          src, mark);
+                mark += cr.length();
+                src.position(mark);
+            }
+            return xflow(src, mark, 0);
+        }
+
+        private CoderResult decodeDirectLoop(ByteBuffer src,
+                                             CharBuffer dst)
+        {
+            // src is read with absolute gets, so its position is only
+            // updated on the way out
+            int sp = src.position();
+            int sl = src.limit();
+
+            char[] da = dst.array();
+            int doff = dst.arrayOffset();
+            int dp = doff + dst.position();
+            int dl = doff + dst.limit();
+
+            try {
+                // ASCII only loop
+                int max = Math.min(sl - sp, dl - dp);
+                int n = decodeASCII(src, sp, da, dp, max);
+                if (CoderMetrics.ENABLED)
+                    CoderMetrics.asciiDecoded(n, max);
+                sp += n;
+                dp += n;
+
+                for (;;) {
+                    int nb = 0;     // length of malformed input at sp
+                    while (sp < sl) {
+                        int b1 = src.get(sp);
+                        decode: {
+                            if (b1 >= 0) {
+                                // 1 byte, 7 bits: 0xxxxxxx
+                                if (dp >= dl)
+                                    return xflow(src, sp, 1);
+                                da[dp++] = (char) b1;
+                                sp++;
+                            } else if ((b1 >> 5) == -2 && (b1 & 0x1e) != 0) {
+                                // 2 bytes, 11 bits: 110xxxxx 10xxxxxx
+                                if (sl - sp < 2 || dp >= dl)
+                                    return xflow(src, sp, 2);
+                                int b2 = src.get(sp + 1);
+                                if (isNotContinuation(b2)) {
+                                    nb = 1;
+                                    break decode;
+                                }
+                                da[dp++] = (char) (((b1 << 6) ^ b2)
+                                        ^
+                                        (((byte) 0xC0 << 6) ^
+                                                ((byte) 0x80 << 0)));
+                                sp += 2;
+                            } else if ((b1 >> 4) == -2) {
+                                // 3 bytes, 16 bits: 1110xxxx 10xxxxxx 10xxxxxx
+                                int srcRemaining = sl - sp;
+                                if (srcRemaining < 3 || dp >= dl) {
+                                    if (srcRemaining > 1 && isMalformed3_2(b1, src.get(sp + 1))) {
+                                        nb = 1;
+                                        break decode;
+                                    }
+                                    return xflow(src, sp, 3);
+                                }
+                                int b2 = src.get(sp + 1);
+                                int b3 = src.get(sp + 2);
+                                if (isMalformed3(b1, b2, b3)) {
+                                    nb = malformedLength(src, sp);
+                                    break decode;
+                                }
+                                char c = (char)
+                                        ((b1 << 12) ^
+                                                (b2 <<  6) ^
+                                                (b3 ^
+                                                        (((byte) 0xE0 << 12) ^
+                                                                ((byte) 0x80 <<  6) ^
+                                                                ((byte) 0x80 <<  0))));
+                                if (Character.isSurrogate(c) &&
+                                        (!wtf || Character.isLowSurrogate(c) &&
+                                                followsHigh(src, src.position(), sp))) {
+                                    nb = 3;
+                                    break decode;
+                                }
+                                da[dp++] = c;
+                                sp += 3;
+                            } else if ((b1 >> 3) == -2) {
+                                // 4 bytes, 21 bits: 11110xxx 10xxxxxx 10xxxxxx 10xxxxxx
+                                int srcRemaining = sl - sp;
+                                if (srcRemaining < 4 || dl - dp < 2) {
+                                    b1 &= 0xff;
+                                    if (b1 > 0xf4 ||
+                                            srcRemaining > 1 && isMalformed4_2(b1, src.get(sp + 1) & 0xff)) {
+                                        nb = 1;
+                                        break decode;
+                                    }
+                                    if (srcRemaining > 2 && isMalformed4_3(src.get(sp + 2))) {
+                                        nb = 2;
+                                        break decode;
+                                    }
+                                    return xflow(src, sp, 4);
+                                }
+                                int b2 = src.get(sp + 1);
+                                int b3 = src.get(sp + 2);
+                                int b4 = src.get(sp + 3);
+                                int uc = ((b1 << 18) ^
+                                        (b2 << 12) ^
+                                        (b3 <<  6) ^
+                                        (b4 ^
+                                                (((byte) 0xF0 << 18) ^
+                                                        ((byte) 0x80 << 12) ^
+                                                        ((byte) 0x80 <<  6) ^
+                                                        ((byte) 0x80 <<  0))));
+                                if (isMalformed4(b2, b3, b4) ||
+                                        // shortest form check
+                                        !Character.isSupplementaryCodePoint(uc)) {
+                                    nb = malformedLength(src, sp);
+                                    break decode;
+                                }
+                                da[dp++] = Character.highSurrogate(uc);
+                                da[dp++] = Character.lowSurrogate(uc);
+                                sp += 4;
+                            } else {
+                                nb = 1;
+                                break decode;
+                            }
+                            continue;
+                        }
+                        break;
                     }
-                    int b2 = src.get();
-                    int b3 = src.get();
-                    int b4 = src.get();
-                    int uc = ((b1 << 18) ^
-                            (b2 << 12) ^
-                            (b3 <<  6) ^
-                            (b4 ^
-                                    (((byte) 0xF0 << 18) ^
-                                            ((byte) 0x80 << 12) ^
-                                            ((byte) 0x80 <<  6) ^
-                                            ((byte) 0x80 <<  0))));
-                    if (isMalformed4(b2, b3, b4) ||
-                            // shortest form check
-                            !Character.isSupplementaryCodePoint(uc)) {
-                        return malformed(src, mark, 4);
+                    if (nb == 0)
+                        return xflow(src, sp, 0);
+                    // malformed input of nb bytes at sp, see decodeArrayLoop
+                    if (escape) {
+                        if (dp >= dl)
+                            return xflow(src, sp, 1);
+                        da[dp++] = escape(src.get(sp++));
+                        continue;
                     }
-                    dst.put(Character.highSurrogate(uc));
-                    dst.put(Character.lowSurrogate(uc));
-                    mark += 4;
-                } else {
-                    return malformed(src, mark, 1);
+                    char[] r = malformedRepl;
+                    if (r == null || dl - dp < r.length)
+                        return malformedForLength(src, sp, nb);
+                    for (char c : r)
+                        da[dp++] = c;
+                    CoderEvents.utf8Malformed(charset(), offset + sp, nb, src, sp);
+                    sp += nb;
                 }
+            } finally {
+                dst.position(dp - doff);
             }
-            return xflow(src, mark, 0);
         }
 
         protected CoderResult decodeLoop(ByteBuffer src,
                                          CharBuffer dst)
         {
+            if (!CoderMetrics.ENABLED && !CoderEvents.active)
+                return dispatch(src, dst);
+            int sp = src.position();
+            int dp = dst.position();
+            // while dispatching, offset is that of index 0 of src
+            offset -= sp;
+            CoderResult cr = dispatch(src, dst);
+            offset += src.position();
+            int nb = src.position() - sp;
+            if (CoderMetrics.ENABLED)
+                CoderMetrics.decoded(nb, dst.position() - dp, cr);
+            if (CoderEvents.throughput) {
+                if (counters == null)
+                    counters = CoderEvents.counters(charset());
+                counters.decoded(nb, dst.position() - dp);
+            }
+            if (cr.isError()) {
+                CoderEvents.utf8Malformed(charset(), offset, cr.length(),
+                                          src, src.position());
+                offset += cr.length();
+            }
+            return cr;
+        }
+
+        // What the loops write for malformed input instead of returning it
+        // to CharsetDecoder.decode: the replacement with REPLACE, nothing
+        // with IGNORE, and null with REPORT. Set from the super constructor,
+        // hence no initializer.
+        private char[] malformedRepl;
+
+        protected void implReplaceWith(String newReplacement) {
+            updateMalformedRepl();
+        }
+
+        protected void implOnMalformedInput(CodingErrorAction newAction) {
+            updateMalformedRepl();
+        }
+
+        private void updateMalformedRepl() {
+            CodingErrorAction action = malformedInputAction();
+            if (action == CodingErrorAction.REPLACE)
+                malformedRepl = replacement().toCharArray();
+            else if (action == CodingErrorAction.IGNORE)
+                malformedRepl = new char[0];
+            else
+                malformedRepl = null;
+        }
+
+        // Bytes consumed since the last reset
+        private long offset;
+        private CoderEvents.Counters counters;
+
+        protected void implReset() {
+            offset = 0;
+            high = false;
+        }
+
+        private CoderResult dispatch(ByteBuffer src, CharBuffer dst) {
+            int sp = src.position();
+            CoderResult cr;
             if (src.hasArray() && dst.hasArray())
-                return decodeArrayLoop(src, dst);
+                cr = decodeArrayLoop(src, dst);
+            else if (src.isDirect() && dst.hasArray())
+                cr = decodeDirectLoop(src, dst);
             else
-                return decodeBufferLoop(src, dst);
+                cr = decodeBufferLoop(src, dst);
+            if (wtf) {
+                // the next call starts after malformed input if this one
+                // returned it, otherwise right after the bytes consumed
+                int i = src.position();
+                if (cr.isError())
+                    high = false;
+                else if (i > sp)
+                    high = i - sp >= 3 && isEncodedHigh(src, i - 3);
+            }
+            return cr;
+        }
+
+        // Whether the input consumed by the previous calls ends with an
+        // encoded high surrogate, see followsHigh
+        private boolean high;
+
+        // ED A0..AF 80..BF, an encoded high surrogate. As ED is never a
+        // continuation byte, the WTF-8 decoder always consumes these bytes
+        // as one sequence.
+        private static boolean isEncodedHigh(ByteBuffer src, int i) {
+            return src.get(i) == (byte)0xed &&
+                    (src.get(i + 1) & 0xf0) == 0xa0 &&
+                    (src.get(i + 2) & 0xc0) == 0x80;
+        }
+
+        // Whether the encoded low surrogate at index i of src directly
+        // follows an encoded high surrogate, where the loop started at
+        // index start. WTF-8 encodes such a pair as one four byte sequence,
+        // so the low surrogate is malformed.
+        private boolean followsHigh(ByteBuffer src, int start, int i) {
+            if (i - start >= 3)
+                return isEncodedHigh(src, i - 3);
+            return i == start && high;
         }
     }
 
     private static final class Encoder extends CharsetEncoder {
 
-        private Encoder(Charset cs) {
+        // whether escaped bytes are restored, see SURROGATE_ESCAPE
+        private final boolean escape;
+        // whether unpaired surrogates are encoded, see WTF_8
+        private final boolean wtf;
+
+        private Encoder(Charset cs, boolean escape, boolean wtf) {
             super(cs, 1.1f, 3.0f);
+            this.escape = escape;
+            this.wtf = wtf;
         }
 
         public boolean canEncode(char c) {
-            return !Character.isSurrogate(c);
+            return !Character.isSurrogate(c) || wtf || (escape && isEscape(c));
         }
 
         public boolean isLegalReplacement(byte[] repl) {
@@ -454,15 +1848,12 @@ public final class UTF_8 extends Unicode {
             int dl = dst.arrayOffset() + dst.limit();
 
             // Handle ASCII-only prefix
-//            int n = JLA.encodeASCII(sa, sp, da, dp, Math.min(sl - sp, dl - dp));
-//            sp += n;
-//            dp += n;
-            int dlASCII = dp + Math.min(sl - sp, dl - dp);
-            char c;
-            while (dp < dlASCII && (c = sa[sp]) < '\u0080') {
-                da[dp++] = (byte) c;
-                sp++;
-            }
+            int max = Math.min(sl - sp, dl - dp);
+            int n = encodeASCII(sa, sp, da, dp, max);
+            if (CoderMetrics.ENABLED)
+                CoderMetrics.asciiEncoded(n, max);
+            sp += n;
+            dp += n;
 
             if (sp < sl) {
                 return encodeArrayLoopSlow(src, sa, sp, sl, dst, da, dp, dl);
@@ -493,8 +1884,35 @@ public final class UTF_8 extends Unicode {
                         sgp = new Surrogate.Parser();
                     int uc = sgp.parse(c, sa, sp, sl);
                     if (uc < 0) {
-                        updatePositions(src, sp, dst, dp);
-                        return sgp.error();
+                        CoderResult cr = sgp.error();
+                        if (!cr.isMalformed()) {
+                            updatePositions(src, sp, dst, dp);
+                            return cr;
+                        }
+                        // unpaired surrogate at sp
+                        if (escape && isEscape(c)) {
+                            // restore an escaped byte and carry on
+                            if (dp >= dl)
+                                return overflow(src, sp, dst, dp);
+                            da[dp++] = (byte)c;
+                        } else if (wtf) {
+                            // encode an unpaired surrogate and carry on
+                            if (dl - dp < 3)
+                                return overflow(src, sp, dst, dp);
+                            da[dp++] = (byte)(0xe0 | ((c >> 12)));
+                            da[dp++] = (byte)(0x80 | ((c >>  6) & 0x3f));
+                            da[dp++] = (byte)(0x80 | (c & 0x3f));
+                        } else {
+                            int nr = replaceMalformed(c, sp - src.arrayOffset(),
+                                                     dst, dp - dst.arrayOffset());
+                            if (nr < 0) {
+                                updatePositions(src, sp, dst, dp);
+                                return cr;
+                            }
+                            dp += nr;
+                        }
+                        sp++;
+                        continue;
                     }
                     if (dl - dp < 4)
                         return overflow(src, sp, dst, dp);
@@ -540,8 +1958,29 @@ public final class UTF_8 extends Unicode {
                         sgp = new Surrogate.Parser();
                     int uc = sgp.parse(c, src);
                     if (uc < 0) {
+                        CoderResult cr = sgp.error();
                         src.position(mark);
-                        return sgp.error();
+                        if (!cr.isMalformed())
+                            return cr;
+                        // unpaired surrogate at mark, see encodeArrayLoopSlow
+                        if (escape && isEscape(c)) {
+                            if (!dst.hasRemaining())
+                                return overflow(src, mark);
+                            dst.put((byte)c);
+                        } else if (wtf) {
+                            if (dst.remaining() < 3)
+                                return overflow(src, mark);
+                            dst.put((byte)(0xe0 | ((c >> 12))));
+                            dst.put((byte)(0x80 | ((c >>  6) & 0x3f)));
+                            dst.put((byte)(0x80 | (c & 0x3f)));
+                        } else {
+                            int nr = replaceMalformed(c, mark, dst, dst.position());
+                            if (nr < 0)
+                                return cr;
+                            dst.position(dst.position() + nr);
+                        }
+                        src.position(++mark);
+                        continue;
                     }
                     if (dst.remaining() < 4)
                         return overflow(src, mark);
@@ -564,11 +2003,164 @@ public final class UTF_8 extends Unicode {
             return CoderResult.UNDERFLOW;
         }
 
+        private CoderResult encodeDirectLoop(CharBuffer src,
+                                             ByteBuffer dst)
+        {
+            char[] sa = src.array();
+            int soff = src.arrayOffset();
+            int sp = soff + src.position();
+            int sl = soff + src.limit();
+
+            // dst is written with absolute puts, so its position is only
+            // updated on the way out
+            int dp = dst.position();
+            int dl = dst.limit();
+
+            try {
+                // Handle ASCII-only prefix
+                int max = Math.min(sl - sp, dl - dp);
+                int n = encodeASCII(sa, sp, dst, dp, max);
+                if (CoderMetrics.ENABLED)
+                    CoderMetrics.asciiEncoded(n, max);
+                sp += n;
+                dp += n;
+
+                while (sp < sl) {
+                    char c = sa[sp];
+                    if (c < 0x80) {
+                        // Have at most seven bits
+                        if (dp >= dl)
+                            return CoderResult.OVERFLOW;
+                        dst.put(dp++, (byte)c);
+                    } else if (c < 0x800) {
+                        // 2 bytes, 11 bits
+                        if (dl - dp < 2)
+                            return CoderResult.OVERFLOW;
+                        dst.put(dp++, (byte)(0xc0 | (c >> 6)));
+                        dst.put(dp++, (byte)(0x80 | (c & 0x3f)));
+                    } else if (Character.isSurrogate(c)) {
+                        // Have a surrogate pair
+                        if (sgp == null)
+                            sgp = new Surrogate.Parser();
+                        int uc = sgp.parse(c, sa, sp, sl);
+                        if (uc < 0) {
+                            CoderResult cr = sgp.error();
+                            if (!cr.isMalformed())
+                                return cr;
+                            // unpaired surrogate at sp, see encodeArrayLoopSlow
+                            if (escape && isEscape(c)) {
+                                if (dp >= dl)
+                                    return CoderResult.OVERFLOW;
+                                dst.put(dp++, (byte)c);
+                            } else if (wtf) {
+                                if (dl - dp < 3)
+                                    return CoderResult.OVERFLOW;
+                                dst.put(dp++, (byte)(0xe0 | ((c >> 12))));
+                                dst.put(dp++, (byte)(0x80 | ((c >>  6) & 0x3f)));
+                                dst.put(dp++, (byte)(0x80 | (c & 0x3f)));
+                            } else {
+                                int nr = replaceMalformed(c, sp - soff, dst, dp);
+                                if (nr < 0)
+                                    return cr;
+                                dp += nr;
+                            }
+                            sp++;
+                            continue;
+                        }
+                        if (dl - dp < 4)
+                            return CoderResult.OVERFLOW;
+                        dst.put(dp++, (byte)(0xf0 | ((uc >> 18))));
+                        dst.put(dp++, (byte)(0x80 | ((uc >> 12) & 0x3f)));
+                        dst.put(dp++, (byte)(0x80 | ((uc >>  6) & 0x3f)));
+                        dst.put(dp++, (byte)(0x80 | (uc & 0x3f)));
+                        sp++;  // 2 chars
+                    } else {
+                        // 3 bytes, 16 bits
+                        if (dl - dp < 3)
+                            return CoderResult.OVERFLOW;
+                        dst.put(dp++, (byte)(0xe0 | ((c >> 12))));
+                        dst.put(dp++, (byte)(0x80 | ((c >>  6) & 0x3f)));
+                        dst.put(dp++, (byte)(0x80 | (c & 0x3f)));
+                    }
+                    sp++;
+                }
+                return CoderResult.UNDERFLOW;
+            } finally {
+                src.position(sp - soff);
+                dst.position(dp);
+            }
+        }
+
         protected final CoderResult encodeLoop(CharBuffer src,
                                                ByteBuffer dst)
         {
+            if (!CoderMetrics.ENABLED && !CoderEvents.active)
+                return dispatch(src, dst);
+            int sp = src.position();
+            int dp = dst.position();
+            // while dispatching, offset is that of index 0 of src
+            offset -= sp;
+            CoderResult cr = dispatch(src, dst);
+            offset += src.position();
+            int nc = src.position() - sp;
+            if (CoderMetrics.ENABLED)
+                CoderMetrics.encoded(nc, dst.position() - dp, cr);
+            if (CoderEvents.throughput) {
+                if (counters == null)
+                    counters = CoderEvents.counters(charset());
+                counters.encoded(nc, dst.position() - dp);
+            }
+            if (cr.isError()) {
+                CoderEvents.encodeMalformed(charset(), offset, cr.length(),
+                                            src.get(src.position()));
+                offset += cr.length();
+            }
+            return cr;
+        }
+
+        // Replaces or skips the unpaired surrogate c at index i of src in
+        // the loops, writing the replacement to dst at index j, instead of
+        // returning it to CharsetEncoder.encode, which would re-enter the
+        // loop once per surrogate. Returns the number of bytes written, or
+        // -1 if the surrogate is left to the caller: to be reported, or with
+        // a replacement that does not fit, for which CharsetEncoder.encode
+        // returns OVERFLOW.
+        private int replaceMalformed(char c, int i, ByteBuffer dst, int j) {
+            CodingErrorAction action = malformedInputAction();
+            int n = 0;
+            if (action == CodingErrorAction.REPLACE) {
+                n = repl.length;
+                if (dst.limit() - j < n)
+                    return -1;
+                dst.put(j, repl);
+            } else if (action != CodingErrorAction.IGNORE) {
+                return -1;
+            }
+            CoderEvents.encodeMalformed(charset(), offset + i, 1, c);
+            return n;
+        }
+
+        // replacement() returns a copy, so keep our own; set from the
+        // super constructor, hence no initializer
+        private byte[] repl;
+
+        protected void implReplaceWith(byte[] newReplacement) {
+            repl = newReplacement;
+        }
+
+        // Chars consumed since the last reset
+        private long offset;
+        private CoderEvents.Counters counters;
+
+        protected void implReset() {
+            offset = 0;
+        }
+
+        private CoderResult dispatch(CharBuffer src, ByteBuffer dst) {
             if (src.hasArray() && dst.hasArray())
                 return encodeArrayLoop(src, dst);
+            else if (src.hasArray() && dst.isDirect())
+                return encodeDirectLoop(src, dst);
             else
                 return encodeBufferLoop(src, dst);
         }
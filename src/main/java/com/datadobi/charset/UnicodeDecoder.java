@@ -25,11 +25,15 @@
 
 package com.datadobi.charset;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.MalformedInputException;
 
@@ -43,15 +47,31 @@ abstract class UnicodeDecoder extends CharsetDecoder {
     protected static final int BIG = 1;
     protected static final int LITTLE = 2;
 
+    private static final VarHandle CHAR_BE =
+            MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle CHAR_LE =
+            MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle CHAR_BE_BUFFER =
+            MethodHandles.byteBufferViewVarHandle(char[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle CHAR_LE_BUFFER =
+            MethodHandles.byteBufferViewVarHandle(char[].class, ByteOrder.LITTLE_ENDIAN);
+
     private final int expectedByteOrder;
     private int currentByteOrder;
     private int defaultByteOrder = BIG;
+    // whether unpaired surrogates are passed through rather than reported
+    private boolean unpaired;
 
     public UnicodeDecoder(Charset cs, int bo) {
         super(cs, 0.5f, 1.0f);
         expectedByteOrder = currentByteOrder = bo;
     }
 
+    public UnicodeDecoder(Charset cs, int bo, boolean unpaired) {
+        this(cs, bo);
+        this.unpaired = unpaired;
+    }
+
     public UnicodeDecoder(Charset cs, int bo, int defaultBO) {
         this(cs, bo);
         defaultByteOrder = defaultBO;
@@ -64,7 +84,161 @@ abstract class UnicodeDecoder extends CharsetDecoder {
             return (char)((b2 << 8) | b1);
     }
 
-    protected CoderResult decodeLoop(ByteBuffer src, CharBuffer dst) {
+    private static char get(byte[] sa, int sp, boolean big) {
+        return big ? (char) CHAR_BE.get(sa, sp) : (char) CHAR_LE.get(sa, sp);
+    }
+
+    private static char get(ByteBuffer src, int sp, boolean big) {
+        return big ? (char) CHAR_BE_BUFFER.get(src, sp) : (char) CHAR_LE_BUFFER.get(src, sp);
+    }
+
+    private CoderResult decodeArrayLoop(ByteBuffer src, CharBuffer dst) {
+        byte[] sa = src.array();
+        int soff = src.arrayOffset();
+        int sp = soff + src.position();
+        int sl = soff + src.limit();
+
+        char[] da = dst.array();
+        int doff = dst.arrayOffset();
+        int dp = doff + dst.position();
+        int dl = doff + dst.limit();
+
+        boolean big = currentByteOrder == BIG;
+        try {
+            while (sl - sp > 1) {
+                // BMP only loop
+                int dlBMP = dp + Math.min((sl - sp) >> 1, dl - dp);
+                char c;
+                while (dp < dlBMP && !Character.isSurrogate(c = get(sa, sp, big))) {
+                    da[dp++] = c;
+                    sp += 2;
+                }
+                if (sl - sp < 2)
+                    break;
+
+                c = get(sa, sp, big);
+                int nb;     // length of malformed input at sp
+                decode: {
+                    if (unpaired) {
+                        // every code unit is copied as is, paired or not
+                        if (dp >= dl)
+                            return CoderResult.OVERFLOW;
+                        da[dp++] = c;
+                        sp += 2;
+                    } else if (Character.isHighSurrogate(c)) {
+                        if (sl - sp < 4)
+                            return CoderResult.UNDERFLOW;
+                        char c2 = get(sa, sp + 2, big);
+                        if (!Character.isLowSurrogate(c2)) {
+                            nb = 4;
+                            break decode;
+                        }
+                        if (dl - dp < 2)
+                            return CoderResult.OVERFLOW;
+                        da[dp++] = c;
+                        da[dp++] = c2;
+                        sp += 4;
+                    } else if (Character.isLowSurrogate(c)) {
+                        // Unpaired low surrogate
+                        nb = 2;
+                        break decode;
+                    } else {
+                        // dst is full
+                        return CoderResult.OVERFLOW;
+                    }
+                    continue;
+                }
+                // malformed input of nb bytes at sp, replaced or skipped
+                // here, see UTF_8.Decoder.decodeArrayLoop
+                char[] r = malformedRepl;
+                if (r == null || dl - dp < r.length)
+                    return CoderResult.malformedForLength(nb);
+                for (char x : r)
+                    da[dp++] = x;
+                CoderEvents.utf16Malformed(charset(), offset + sp - soff, nb);
+                sp += nb;
+            }
+            return CoderResult.UNDERFLOW;
+
+        } finally {
+            src.position(sp - soff);
+            dst.position(dp - doff);
+        }
+    }
+
+    // decodeArrayLoop for direct buffers, such as mapped files
+    private CoderResult decodeDirectLoop(ByteBuffer src, CharBuffer dst) {
+        // src is read with absolute gets, so its position is only
+        // updated on the way out
+        int sp = src.position();
+        int sl = src.limit();
+
+        char[] da = dst.array();
+        int doff = dst.arrayOffset();
+        int dp = doff + dst.position();
+        int dl = doff + dst.limit();
+
+        boolean big = currentByteOrder == BIG;
+        try {
+            while (sl - sp > 1) {
+                // BMP only loop
+                int dlBMP = dp + Math.min((sl - sp) >> 1, dl - dp);
+                char c;
+                while (dp < dlBMP && !Character.isSurrogate(c = get(src, sp, big))) {
+                    da[dp++] = c;
+                    sp += 2;
+                }
+                if (sl - sp < 2)
+                    break;
+
+                c = get(src, sp, big);
+                int nb;     // length of malformed input at sp
+                decode: {
+                    if (unpaired) {
+                        if (dp >= dl)
+                            return CoderResult.OVERFLOW;
+                        da[dp++] = c;
+                        sp += 2;
+                    } else if (Character.isHighSurrogate(c)) {
+                        if (sl - sp < 4)
+                            return CoderResult.UNDERFLOW;
+                        char c2 = get(src, sp + 2, big);
+                        if (!Character.isLowSurrogate(c2)) {
+                            nb = 4;
+                            break decode;
+                        }
+                        if (dl - dp < 2)
+                            return CoderResult.OVERFLOW;
+                        da[dp++] = c;
+                        da[dp++] = c2;
+                        sp += 4;
+                    } else if (Character.isLowSurrogate(c)) {
+                        nb = 2;
+                        break decode;
+                    } else {
+                        // dst is full
+                        return CoderResult.OVERFLOW;
+                    }
+                    continue;
+                }
+                // see decodeArrayLoop
+                char[] r = malformedRepl;
+                if (r == null || dl - dp < r.length)
+                    return CoderResult.malformedForLength(nb);
+                for (char x : r)
+                    da[dp++] = x;
+                CoderEvents.utf16Malformed(charset(), offset + sp, nb);
+                sp += nb;
+            }
+            return CoderResult.UNDERFLOW;
+
+        } finally {
+            src.position(sp);
+            dst.position(dp - doff);
+        }
+    }
+
+    private CoderResult decodeBufferLoop(ByteBuffer src, CharBuffer dst) {
         int mark = src.position();
 
         try {
@@ -92,7 +266,7 @@ abstract class UnicodeDecoder extends CharsetDecoder {
                 char c = decode(b1, b2);
 
                 // Surrogates
-                if (Character.isSurrogate(c)) {
+                if (Character.isSurrogate(c) && !unpaired) {
                     if (Character.isHighSurrogate(c)) {
                         if (src.remaining() < 2)
                             return CoderResult.UNDERFLOW;
@@ -123,8 +297,69 @@ abstract class UnicodeDecoder extends CharsetDecoder {
         }
     }
 
+    protected CoderResult decodeLoop(ByteBuffer src, CharBuffer dst) {
+        if (!CoderMetrics.ENABLED && !CoderEvents.active)
+            return dispatch(src, dst);
+        int sp = src.position();
+        int dp = dst.position();
+        // while dispatching, offset is that of index 0 of src
+        offset -= sp;
+        CoderResult cr = dispatch(src, dst);
+        offset += src.position();
+        int nb = src.position() - sp;
+        if (CoderMetrics.ENABLED)
+            CoderMetrics.decoded(nb, dst.position() - dp, cr);
+        if (CoderEvents.throughput) {
+            if (counters == null)
+                counters = CoderEvents.counters(charset());
+            counters.decoded(nb, dst.position() - dp);
+        }
+        if (cr.isError()) {
+            CoderEvents.utf16Malformed(charset(), offset, cr.length());
+            offset += cr.length();
+        }
+        return cr;
+    }
+
+    // What the array loop writes for malformed input, see UTF_8.Decoder;
+    // set from the super constructor, hence no initializer
+    private char[] malformedRepl;
+
+    protected void implReplaceWith(String newReplacement) {
+        updateMalformedRepl();
+    }
+
+    protected void implOnMalformedInput(CodingErrorAction newAction) {
+        updateMalformedRepl();
+    }
+
+    private void updateMalformedRepl() {
+        CodingErrorAction action = malformedInputAction();
+        if (action == CodingErrorAction.REPLACE)
+            malformedRepl = replacement().toCharArray();
+        else if (action == CodingErrorAction.IGNORE)
+            malformedRepl = new char[0];
+        else
+            malformedRepl = null;
+    }
+
+    // Bytes consumed since the last reset
+    private long offset;
+    private CoderEvents.Counters counters;
+
+    private CoderResult dispatch(ByteBuffer src, CharBuffer dst) {
+        // The byte order mark is only looked for in the buffer loop
+        if (currentByteOrder != NONE && src.hasArray() && dst.hasArray())
+            return decodeArrayLoop(src, dst);
+        else if (currentByteOrder != NONE && src.isDirect() && dst.hasArray())
+            return decodeDirectLoop(src, dst);
+        else
+            return decodeBufferLoop(src, dst);
+    }
+
     protected void implReset() {
         currentByteOrder = expectedByteOrder;
+        offset = 0;
     }
 
 }
@@ -25,6 +25,8 @@
 
 package com.datadobi.charset;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.*;
 import java.nio.charset.*;
 
@@ -39,9 +41,16 @@ public abstract class UnicodeEncoder extends CharsetEncoder {
     protected static final int BIG = 0;
     protected static final int LITTLE = 1;
 
+    private static final VarHandle CHAR_BE =
+            MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle CHAR_LE =
+            MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.LITTLE_ENDIAN);
+
     private int byteOrder;      /* Byte order in use */
     private boolean usesMark;   /* Write an initial BOM */
     private boolean needsMark;
+    // whether unpaired surrogates are passed through rather than reported
+    private boolean unpaired;
 
     protected UnicodeEncoder(Charset cs, int bo, boolean m) {
         super(cs, 2.0f,
@@ -55,6 +64,11 @@ public abstract class UnicodeEncoder extends CharsetEncoder {
         byteOrder = bo;
     }
 
+    protected UnicodeEncoder(Charset cs, int bo, boolean m, boolean unpaired) {
+        this(cs, bo, m);
+        this.unpaired = unpaired;
+    }
+
     private void put(char c, ByteBuffer dst) {
         if (byteOrder == BIG) {
             dst.put((byte)(c >> 8));
@@ -65,27 +79,96 @@ public abstract class UnicodeEncoder extends CharsetEncoder {
         }
     }
 
-    private final Surrogate.Parser sgp = new Surrogate.Parser();
+    private Surrogate.Parser sgp;
 
-    protected CoderResult encodeLoop(CharBuffer src, ByteBuffer dst) {
-        int mark = src.position();
+    private static void put(char c, byte[] da, int dp, boolean big) {
+        if (big)
+            CHAR_BE.set(da, dp, c);
+        else
+            CHAR_LE.set(da, dp, c);
+    }
 
-        if (needsMark && src.hasRemaining()) {
-            if (dst.remaining() < 2)
-                return CoderResult.OVERFLOW;
-            put(BYTE_ORDER_MARK, dst);
-            needsMark = false;
+    private CoderResult encodeArrayLoop(CharBuffer src, ByteBuffer dst) {
+        char[] sa = src.array();
+        int soff = src.arrayOffset();
+        int sp = soff + src.position();
+        int sl = soff + src.limit();
+
+        byte[] da = dst.array();
+        int doff = dst.arrayOffset();
+        int dp = doff + dst.position();
+        int dl = doff + dst.limit();
+
+        boolean big = byteOrder == BIG;
+        try {
+            while (sp < sl) {
+                // BMP only loop, bounded by the space left in dst
+                int slBMP = sp + Math.min(sl - sp, (dl - dp) >> 1);
+                char c;
+                while (sp < slBMP && !Character.isSurrogate(c = sa[sp])) {
+                    put(c, da, dp, big);
+                    sp++;
+                    dp += 2;
+                }
+                if (sp >= sl)
+                    break;
+
+                c = sa[sp];
+                if (!Character.isSurrogate(c)) {
+                    // dst is full
+                    return CoderResult.OVERFLOW;
+                }
+                if (unpaired) {
+                    // every code unit is copied as is, paired or not
+                    if (dl - dp < 2)
+                        return CoderResult.OVERFLOW;
+                    put(c, da, dp, big);
+                    sp++;
+                    dp += 2;
+                    continue;
+                }
+                if (sgp == null)
+                    sgp = new Surrogate.Parser();
+                int d = sgp.parse(c, sa, sp, sl);
+                if (d < 0) {
+                    CoderResult cr = sgp.error();
+                    if (!cr.isMalformed())
+                        return cr;
+                    int nr = replaceMalformed(c, sp - soff, dst, dp - doff);
+                    if (nr < 0)
+                        return cr;
+                    dp += nr;
+                    sp++;
+                    continue;
+                }
+                if (dl - dp < 4)
+                    return CoderResult.OVERFLOW;
+                put(Character.highSurrogate(d), da, dp, big);
+                put(Character.lowSurrogate(d), da, dp + 2, big);
+                sp += 2;
+                dp += 4;
+            }
+            return CoderResult.UNDERFLOW;
+        } finally {
+            src.position(sp - soff);
+            dst.position(dp - doff);
         }
+    }
+
+    private CoderResult encodeBufferLoop(CharBuffer src, ByteBuffer dst) {
+        int mark = src.position();
         try {
             while (src.hasRemaining()) {
                 char c = src.get();
-                if (!Character.isSurrogate(c)) {
+                if (!Character.isSurrogate(c) || unpaired) {
                     if (dst.remaining() < 2)
                         return CoderResult.OVERFLOW;
                     mark++;
                     put(c, dst);
                     continue;
                 }
+                if (sgp == null)
+                    sgp = new Surrogate.Parser();
                 int d = sgp.parse(c, src);
                 if (d < 0)
                     return sgp.error();
@@ -101,11 +184,81 @@ public abstract class UnicodeEncoder extends CharsetEncoder {
         }
     }
 
+    protected CoderResult encodeLoop(CharBuffer src, ByteBuffer dst) {
+        if (!CoderMetrics.ENABLED && !CoderEvents.active)
+            return dispatch(src, dst);
+        int sp = src.position();
+        int dp = dst.position();
+        // while dispatching, offset is that of index 0 of src
+        offset -= sp;
+        CoderResult cr = dispatch(src, dst);
+        offset += src.position();
+        int nc = src.position() - sp;
+        if (CoderMetrics.ENABLED)
+            CoderMetrics.encoded(nc, dst.position() - dp, cr);
+        if (CoderEvents.throughput) {
+            if (counters == null)
+                counters = CoderEvents.counters(charset());
+            counters.encoded(nc, dst.position() - dp);
+        }
+        if (cr.isError()) {
+            CoderEvents.encodeMalformed(charset(), offset, cr.length(),
+                                        src.get(src.position()));
+            offset += cr.length();
+        }
+        return cr;
+    }
+
+    // Replaces or skips the unpaired surrogate c at index i of src in the
+    // array loop, writing the replacement to dst at index j, see
+    // UTF_8.Encoder.replaceMalformed. Returns the number of bytes written,
+    // or -1 if the surrogate is left to the caller.
+    private int replaceMalformed(char c, int i, ByteBuffer dst, int j) {
+        CodingErrorAction action = malformedInputAction();
+        int n = 0;
+        if (action == CodingErrorAction.REPLACE) {
+            n = repl.length;
+            if (dst.limit() - j < n)
+                return -1;
+            dst.put(j, repl);
+        } else if (action != CodingErrorAction.IGNORE) {
+            return -1;
+        }
+        CoderEvents.encodeMalformed(charset(), offset + i, 1, c);
+        return n;
+    }
+
+    // replacement() returns a copy, so keep our own; set from the super
+    // constructor, hence no initializer
+    private byte[] repl;
+
+    protected void implReplaceWith(byte[] newReplacement) {
+        repl = newReplacement;
+    }
+
+    // Chars consumed since the last reset
+    private long offset;
+    private CoderEvents.Counters counters;
+
+    private CoderResult dispatch(CharBuffer src, ByteBuffer dst) {
+        if (needsMark && src.hasRemaining()) {
+            if (dst.remaining() < 2)
+                return CoderResult.OVERFLOW;
+            put(BYTE_ORDER_MARK, dst);
+            needsMark = false;
+        }
+        if (src.hasArray() && dst.hasArray())
+            return encodeArrayLoop(src, dst);
+        else
+            return encodeBufferLoop(src, dst);
+    }
+
     protected void implReset() {
         needsMark = usesMark;
+        offset = 0;
     }
 
     public boolean canEncode(char c) {
-        return ! Character.isSurrogate(c);
+        return unpaired || ! Character.isSurrogate(c);
     }
 }
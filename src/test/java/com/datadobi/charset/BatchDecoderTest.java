@@ -0,0 +1,244 @@
+package com.datadobi.charset;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares each entry of a batch with the one-shot decoders, and the
+ * position of each malformed entry's error with where the JDK decoder
+ * stops.
+ */
+class BatchDecoderTest {
+
+    private static final CodingErrorAction[] ACTIONS = {
+        CodingErrorAction.REPORT, CodingErrorAction.REPLACE, CodingErrorAction.IGNORE
+    };
+
+    // Entries of a batch, laid out in b in another order than their own,
+    // with gaps between them
+    private static final class Batch {
+        final int count;
+        final int[] offsets;
+        final int[] lengths;
+        final byte[] b;
+
+        Batch(Random r, boolean utf16) {
+            count = r.nextInt(20);
+            byte[][] entries = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                entries[i] = utf16 ? UTF_16LETest.randomBytes(r, r.nextInt(10))
+                                   : UTF_8Test.randomBytes(r, r.nextInt(20));
+            }
+            // room for the entries and a gap of up to 3 bytes before each
+            int size = 0;
+            for (byte[] e : entries)
+                size += 3 + e.length;
+            b = new byte[size];
+            r.nextBytes(b);
+            offsets = new int[count];
+            lengths = new int[count];
+            int[] order = new int[count];
+            for (int i = 0; i < count; i++)
+                order[i] = i;
+            for (int i = count - 1; i > 0; i--) {
+                int j = r.nextInt(i + 1);
+                int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+            int p = 0;
+            for (int i : order) {
+                p += r.nextInt(4);
+                System.arraycopy(entries[i], 0, b, p, entries[i].length);
+                offsets[i] = p;
+                lengths[i] = entries[i].length;
+                p += entries[i].length;
+            }
+        }
+
+        int room(boolean utf16) {
+            int n = 0;
+            for (int len : lengths)
+                n += utf16 ? (len + 1) / 2 : len;
+            return n;
+        }
+    }
+
+    // Where the JDK decoder reports the first malformed input of
+    // b[off..off+len), or -1
+    private static int errorOffset(Charset cs, byte[] b, int off, int len) {
+        CharsetDecoder d = cs.newDecoder();
+        ByteBuffer src = ByteBuffer.wrap(b, off, len);
+        CoderResult cr = d.decode(src, CharBuffer.allocate(len), true);
+        return cr.isError() ? src.position() : -1;
+    }
+
+    private static String newString(boolean utf16, byte[] b, int off, int len,
+                                    CodingErrorAction action)
+            throws CharacterCodingException
+    {
+        return utf16 ? UTF_16LE.newString(b, off, len, action)
+                     : UTF_8.newString(b, off, len, action);
+    }
+
+    private static int decode(boolean utf16, Batch batch, char[] arena,
+                              int[] charOffsets, int[] charLengths, int[] errorOffsets,
+                              CodingErrorAction action)
+    {
+        if (utf16) {
+            return errorOffsets == null
+                    ? BatchDecoder.utf16le(batch.b, batch.offsets, batch.lengths, batch.count,
+                                           arena, charOffsets, charLengths, action)
+                    : BatchDecoder.utf16le(batch.b, batch.offsets, batch.lengths, batch.count,
+                                           arena, charOffsets, charLengths, errorOffsets,
+                                           action);
+        }
+        return errorOffsets == null
+                ? BatchDecoder.utf8(batch.b, batch.offsets, batch.lengths, batch.count,
+                                    arena, charOffsets, charLengths, action)
+                : BatchDecoder.utf8(batch.b, batch.offsets, batch.lengths, batch.count,
+                                    arena, charOffsets, charLengths, errorOffsets, action);
+    }
+
+    private static void decodesLikeNewString(boolean utf16, Random r) {
+        Charset cs = utf16 ? StandardCharsets.UTF_16LE : StandardCharsets.UTF_8;
+        for (int iter = 0; iter < 3000; iter++) {
+            Batch batch = new Batch(r, utf16);
+            for (CodingErrorAction action : ACTIONS) {
+                char[] arena = new char[batch.room(utf16) + r.nextInt(3)];
+                int[] charOffsets = new int[batch.count];
+                int[] charLengths = new int[batch.count];
+                int[] errorOffsets = new int[batch.count];
+                int malformed = decode(utf16, batch, arena, charOffsets, charLengths,
+                                       errorOffsets, action);
+
+                // entries follow each other in the arena, in batch order
+                int dp = 0;
+                int expectedMalformed = 0;
+                for (int i = 0; i < batch.count; i++) {
+                    int off = batch.offsets[i];
+                    int len = batch.lengths[i];
+                    String expected;
+                    try {
+                        expected = newString(utf16, batch.b, off, len, action);
+                    } catch (CharacterCodingException x) {
+                        expected = null;
+                    }
+                    assertEquals(dp, charOffsets[i]);
+                    if (expected == null) {
+                        expectedMalformed++;
+                        assertEquals(-1, charLengths[i]);
+                        assertEquals(errorOffset(cs, batch.b, off, len), errorOffsets[i]);
+                    } else {
+                        assertEquals(expected, new String(arena, dp, charLengths[i]));
+                        assertEquals(-1, errorOffsets[i]);
+                        dp += charLengths[i];
+                    }
+                }
+                assertEquals(expectedMalformed, malformed);
+
+                // the same without error offsets
+                int[] charOffsets2 = new int[batch.count];
+                int[] charLengths2 = new int[batch.count];
+                char[] arena2 = new char[arena.length];
+                assertEquals(malformed, decode(utf16, batch, arena2, charOffsets2,
+                                               charLengths2, null, action));
+                assertArrayEquals(charOffsets, charOffsets2);
+                assertArrayEquals(charLengths, charLengths2);
+                assertEquals(new String(arena, 0, dp), new String(arena2, 0, dp));
+            }
+        }
+    }
+
+    @Test
+    void utf8DecodesLikeNewString() {
+        decodesLikeNewString(false, new Random(1));
+    }
+
+    @Test
+    void utf16leDecodesLikeNewString() {
+        decodesLikeNewString(true, new Random(2));
+    }
+
+    @Test
+    void malformedEntryInTheMiddle() {
+        byte[] b = { 'a', 'b', 'c', (byte) 0xe2, (byte) 0x82, 'd', 'e' };
+        int[] offsets = { 0, 2, 5 };
+        int[] lengths = { 2, 3, 2 };
+        char[] arena = new char[7];
+        int[] charOffsets = new int[3];
+        int[] charLengths = new int[3];
+        int[] errorOffsets = new int[3];
+        assertEquals(1, BatchDecoder.utf8(b, offsets, lengths, 3, arena,
+                charOffsets, charLengths, errorOffsets, CodingErrorAction.REPORT));
+        assertArrayEquals(new int[] { 0, 2, 2 }, charOffsets);
+        assertArrayEquals(new int[] { 2, -1, 2 }, charLengths);
+        assertArrayEquals(new int[] { -1, 3, -1 }, errorOffsets);
+        assertEquals("abde", new String(arena, 0, 4));
+
+        assertEquals(0, BatchDecoder.utf8(b, offsets, lengths, 3, arena,
+                charOffsets, charLengths, errorOffsets, CodingErrorAction.REPLACE));
+        assertArrayEquals(new int[] { 0, 2, 4 }, charOffsets);
+        assertArrayEquals(new int[] { 2, 2, 2 }, charLengths);
+        assertArrayEquals(new int[] { -1, -1, -1 }, errorOffsets);
+        assertEquals("abc\ufffdde", new String(arena, 0, 6));
+
+        assertEquals(0, BatchDecoder.utf8(b, offsets, lengths, 3, arena,
+                charOffsets, charLengths, errorOffsets, CodingErrorAction.IGNORE));
+        assertArrayEquals(new int[] { 2, 1, 2 }, charLengths);
+        assertEquals("abcde", new String(arena, 0, 5));
+
+        // an unpaired low surrogate, then an odd trailing byte
+        byte[] w = { 'a', 0, 0, (byte) 0xdc, 'b', 0, 'c', 0, 'd' };
+        int[] wcharLengths = new int[4];
+        int[] werrorOffsets = new int[4];
+        assertEquals(2, BatchDecoder.utf16le(w, new int[] { 0, 2, 4, 6 },
+                new int[] { 2, 2, 2, 3 }, 4, new char[8], new int[4], wcharLengths,
+                werrorOffsets, CodingErrorAction.REPORT));
+        assertArrayEquals(new int[] { 1, -1, 1, -1 }, wcharLengths);
+        assertArrayEquals(new int[] { -1, 2, -1, 8 }, werrorOffsets);
+    }
+
+    @Test
+    void arenaTooSmall() {
+        Random r = new Random(3);
+        for (boolean utf16 : new boolean[] { false, true }) {
+            Batch batch;
+            do {
+                batch = new Batch(r, utf16);
+            } while (batch.room(utf16) == 0);
+            char[] arena = new char[batch.room(utf16) - 1];
+            int[] charOffsets = new int[batch.count];
+            int[] charLengths = new int[batch.count];
+            int[] errorOffsets = new int[batch.count];
+            Arrays.fill(charOffsets, 42);
+            Arrays.fill(charLengths, 42);
+            Arrays.fill(errorOffsets, 42);
+            Batch bb = batch;
+            for (CodingErrorAction action : ACTIONS) {
+                assertThrows(IllegalArgumentException.class, () -> decode(utf16, bb,
+                        arena, charOffsets, charLengths, errorOffsets, action));
+            }
+            // nothing was decoded
+            int[] untouched = new int[batch.count];
+            Arrays.fill(untouched, 42);
+            assertArrayEquals(untouched, charOffsets);
+            assertArrayEquals(untouched, charLengths);
+            assertArrayEquals(untouched, errorOffsets);
+            assertArrayEquals(new char[arena.length], arena);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.datadobi.charset;
+
+import static com.datadobi.charset.Streaming.latin1;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares {@link ChannelReader} with InputStreamReader, reading in
+ * pieces of every size from a channel that returns a few bytes at a time,
+ * so that sequences are split across reads and buffers.
+ */
+class ChannelReaderTest {
+
+    /** A channel that returns 1..7 bytes per read */
+    static final class ShortReads implements ReadableByteChannel {
+        private final ByteBuffer src;
+        private final Random r;
+        private boolean open = true;
+
+        ShortReads(byte[] b, Random r) {
+            this.src = ByteBuffer.wrap(b);
+            this.r = r;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open)
+                throw new IOException("closed");
+            if (!src.hasRemaining())
+                return -1;
+            int n = Math.min(Math.min(src.remaining(), dst.remaining()), 1 + r.nextInt(7));
+            for (int i = 0; i < n; i++)
+                dst.put(src.get());
+            return n;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() {
+            open = false;
+        }
+    }
+
+    private static final Charset[] CHARSETS = {
+        UTF_8.INSTANCE, new UTF_16LE(), StandardCharsets.UTF_16
+    };
+
+    private static byte[] randomBytes(Charset cs, Random r) {
+        if (cs == StandardCharsets.UTF_16) {
+            // with a byte order mark, which decodes to nothing. At the end
+            // InputStreamReader decodes what is left with a decoder that has
+            // forgotten the byte order, so end with a whole char.
+            byte[] b = UTF_16LETest.randomBytes(r, r.nextInt(40));
+            int n = b.length & ~1;
+            boolean high = n > 0 && Character.isHighSurrogate((char) ((b[n - 1] & 0xff) << 8));
+            byte[] bom = new byte[2 + n + (high ? 2 : 0)];
+            bom[0] = (byte) 0xff;
+            bom[1] = (byte) 0xfe;
+            System.arraycopy(b, 0, bom, 2, n);
+            if (high)
+                bom[bom.length - 2] = 'x';
+            return bom;
+        }
+        return cs instanceof UTF_16LE ? UTF_16LETest.randomBytes(r, r.nextInt(40))
+                                      : UTF_8Test.randomBytes(r, r.nextInt(100));
+    }
+
+    private static String inputStreamReader(Charset cs, byte[] b) {
+        try (Reader in = new InputStreamReader(new ByteArrayInputStream(b), cs)) {
+            StringWriter out = new StringWriter();
+            in.transferTo(out);
+            return out.toString();
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+
+    private static ChannelReader reader(Charset cs, byte[] b, Random r) {
+        return new ChannelReader(new ShortReads(b, r), cs.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE),
+                1 + r.nextInt(40));
+    }
+
+    // Reads all of in with reads of every kind
+    private static String readInPieces(ChannelReader in, Random r) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] a = new char[12];
+        for (;;) {
+            switch (r.nextInt(4)) {
+            case 0:
+                int c = in.read();
+                if (c < 0)
+                    return sb.toString();
+                sb.append((char) c);
+                break;
+            case 1:
+                // the len == 1 path
+                int n = in.read(a, 3, 1);
+                if (n < 0)
+                    return sb.toString();
+                assertEquals(1, n);
+                sb.append(a[3]);
+                break;
+            default:
+                int len = 2 + r.nextInt(8);
+                n = in.read(a, 1, len);
+                if (n < 0)
+                    return sb.toString();
+                assertTrue(n > 0 && n <= len);
+                sb.append(a, 1, n);
+            }
+        }
+    }
+
+    @Test
+    void readsLikeInputStreamReader() throws IOException {
+        Random r = new Random(1);
+        for (Charset cs : CHARSETS) {
+            for (int iter = 0; iter < 3000; iter++) {
+                byte[] b = randomBytes(cs, r);
+                String expected = inputStreamReader(cs, b);
+                try (ChannelReader in = reader(cs, b, r)) {
+                    assertEquals(expected, readInPieces(in, r), cs + " " + latin1(b));
+                    assertEquals(-1, in.read());
+                }
+            }
+        }
+    }
+
+    @Test
+    void singleCharReadsHandOutPairsOneCharAtATime() throws IOException {
+        byte[] b = UTF_8.getBytes("\ud83d\ude00\ud83d\ude01");
+        try (ChannelReader in = new ChannelReader(new ShortReads(b, new Random(2)),
+                                                  UTF_8.INSTANCE)) {
+            assertEquals(0xd83d, in.read());
+            // the low surrogate is kept for the next read of any kind
+            assertTrue(in.ready());
+            char[] a = new char[8];
+            assertEquals(1, in.read(a, 0, 8));
+            assertEquals('\ude00', a[0]);
+            assertEquals(0xd83d, in.read());
+            assertEquals(1, in.read(a, 5, 1));
+            assertEquals('\ude01', a[5]);
+            assertEquals(-1, in.read(a, 0, 1));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void byteOrderMarkAloneIsTheEndOfInput() throws IOException {
+        byte[] bom = { (byte) 0xfe, (byte) 0xff };
+        try (ChannelReader in = new ChannelReader(new ShortReads(bom, new Random(3)),
+                                                  StandardCharsets.UTF_16)) {
+            assertEquals(-1, in.read());
+        }
+        try (ChannelReader in = new ChannelReader(new ShortReads(bom, new Random(3)),
+                                                  StandardCharsets.UTF_16)) {
+            assertEquals(-1, in.read(new char[4], 0, 4));
+        }
+        // one byte at a time, the byte order mark takes two reads that
+        // decode nothing before the first char
+        byte[] b = { (byte) 0xfe, (byte) 0xff, 0, 'a' };
+        ChannelReader in = new ChannelReader(new ReadableByteChannel() {
+            int i;
+            public int read(ByteBuffer dst) {
+                if (i == b.length)
+                    return -1;
+                dst.put(b[i++]);
+                return 1;
+            }
+            public boolean isOpen() {
+                return true;
+            }
+            public void close() { }
+        }, StandardCharsets.UTF_16);
+        assertEquals('a', in.read());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void transferToAChannelWriterLikeTheStreams() throws IOException {
+        Random r = new Random(4);
+        for (Charset cs : CHARSETS) {
+            for (int iter = 0; iter < 2000; iter++) {
+                byte[] b = randomBytes(cs, r);
+                String s = inputStreamReader(cs, b);
+                ChannelWriterTest.ShortWrites ch = new ChannelWriterTest.ShortWrites(r);
+                try (ChannelReader in = reader(cs, b, r)) {
+                    // sometimes with half a pair already read
+                    String head = "";
+                    if (r.nextBoolean()) {
+                        int c = in.read();
+                        head = c < 0 ? "" : String.valueOf((char) c);
+                    }
+                    ChannelWriter w = new ChannelWriter(ch, UTF_8.INSTANCE.newEncoder()
+                            .onMalformedInput(CodingErrorAction.REPLACE),
+                            1 + r.nextInt(40));
+                    w.write(head);
+                    assertEquals(s.length() - head.length(), in.transferTo(w));
+                    w.close();
+                }
+                assertEquals(ChannelWriterTest.outputStreamWriter(UTF_8.INSTANCE, s),
+                             ch.written());
+
+                StringWriter sw = new StringWriter();
+                try (ChannelReader in = reader(cs, b, r)) {
+                    assertEquals(s.length(), in.transferTo(sw));
+                }
+                assertEquals(s, sw.toString());
+            }
+        }
+    }
+
+    @Test
+    void closedReaderThrows() throws IOException {
+        ShortReads ch = new ShortReads(new byte[] { 'a' }, new Random(5));
+        ChannelReader in = new ChannelReader(ch, UTF_8.INSTANCE);
+        in.close();
+        assertFalse(ch.isOpen());
+        in.close();
+        assertThrows(IOException.class, in::read);
+        assertThrows(IOException.class, () -> in.read(new char[2], 0, 2));
+        assertThrows(IOException.class, in::ready);
+    }
+}
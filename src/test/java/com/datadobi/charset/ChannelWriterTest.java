@@ -0,0 +1,169 @@
+package com.datadobi.charset;
+
+import static com.datadobi.charset.Streaming.latin1;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares {@link ChannelWriter} with OutputStreamWriter, writing in
+ * pieces that split surrogate pairs and buffers, to a channel that takes
+ * a few bytes at a time.
+ */
+class ChannelWriterTest {
+
+    /** A channel that takes 1..7 bytes per write and logs what is done */
+    static final class ShortWrites implements WritableByteChannel {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<String> log = new ArrayList<>();
+        private final Random r;
+        private boolean open = true;
+
+        ShortWrites(Random r) {
+            this.r = r;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            if (!open)
+                throw new IOException("closed");
+            int n = Math.min(src.remaining(), 1 + r.nextInt(7));
+            for (int i = 0; i < n; i++)
+                out.write(src.get());
+            log.add("write " + n);
+            return n;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() {
+            open = false;
+            log.add("close");
+        }
+
+        String written() {
+            return out.toString(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    static String outputStreamWriter(Charset cs, String s) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStreamWriter w = new OutputStreamWriter(out, cs)) {
+            w.write(s);
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+        return out.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    // Writes s to w in pieces of every kind, flushing now and then
+    private static void writeInPieces(ChannelWriter w, String s, Random r)
+            throws IOException
+    {
+        int i = 0;
+        while (i < s.length()) {
+            int n = Math.min(s.length() - i, r.nextInt(4) == 0 ? 1 + r.nextInt(50)
+                                                               : 1 + r.nextInt(5));
+            switch (r.nextInt(4)) {
+            case 0:
+                w.write(s.charAt(i));
+                n = 1;
+                break;
+            case 1:
+                char[] a = new char[n + 2];
+                s.getChars(i, i + n, a, 1);
+                w.write(a, 1, n);
+                break;
+            case 2:
+                w.write(s, i, n);
+                break;
+            default:
+                w.append(s, i, i + n);
+            }
+            i += n;
+            if (r.nextInt(10) == 0)
+                w.flush();
+        }
+    }
+
+    @Test
+    void writesLikeOutputStreamWriter() throws IOException {
+        Random r = new Random(1);
+        for (Charset cs : new Charset[] { UTF_8.INSTANCE, new UTF_16LE() }) {
+            for (int iter = 0; iter < 2000; iter++) {
+                String s = UTF_8Test.randomString(r, r.nextInt(100));
+                ShortWrites ch = new ShortWrites(r);
+                ChannelWriter w = new ChannelWriter(ch, cs.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE), 1 + r.nextInt(40));
+                writeInPieces(w, s, r);
+                w.close();
+                assertEquals(outputStreamWriter(cs, s), ch.written(), s);
+                assertEquals("close", ch.log.get(ch.log.size() - 1));
+            }
+        }
+    }
+
+    @Test
+    void flushKeepsATrailingHighSurrogate() throws IOException {
+        ShortWrites ch = new ShortWrites(new Random(2));
+        ChannelWriter w = new ChannelWriter(ch, UTF_8.INSTANCE);
+        w.write("ab\ud83d");
+        w.flush();
+        assertEquals("ab", ch.written());
+        w.write('\ude00');
+        w.flush();
+        assertEquals(latin1(UTF_8.getBytes("ab\ud83d\ude00")), ch.written());
+        // at the end it is malformed, and replaced
+        w.write('\ud83d');
+        w.close();
+        assertEquals(latin1(UTF_8.getBytes("ab\ud83d\ude00?")), ch.written());
+    }
+
+    @Test
+    void closeWritesEverythingThenClosesTheChannel() throws IOException {
+        ShortWrites ch = new ShortWrites(new Random(3));
+        ChannelWriter w = new ChannelWriter(ch, new UTF_16LE().newEncoder(), 16);
+        w.write("0123456789abcdef0123456789");
+        assertTrue(ch.log.size() > 0);
+        int writes = ch.log.size();
+        w.write("xyz");
+        w.close();
+        assertEquals(latin1(UTF_16LE.getBytes("0123456789abcdef0123456789xyz")), ch.written());
+        assertTrue(ch.log.size() > writes + 1);
+        assertEquals(List.of("close"), ch.log.subList(ch.log.size() - 1, ch.log.size()));
+        assertEquals(1, ch.log.stream().filter(e -> e.equals("close")).count());
+
+        // closing again does nothing, and writing fails
+        w.close();
+        assertEquals(1, ch.log.stream().filter(e -> e.equals("close")).count());
+        assertThrows(IOException.class, () -> w.write('a'));
+        assertThrows(IOException.class, () -> w.write("a"));
+        assertThrows(IOException.class, w::flush);
+    }
+
+    @Test
+    void closeClosesTheChannelWhenEncodingFails() throws IOException {
+        ShortWrites ch = new ShortWrites(new Random(4));
+        ChannelWriter w = new ChannelWriter(ch, UTF_8.INSTANCE.newEncoder(), 16);
+        w.write("ab\ud800");
+        assertThrows(MalformedInputException.class, w::close);
+        assertEquals("close", ch.log.get(ch.log.size() - 1));
+        assertThrows(IOException.class, () -> w.write('a'));
+    }
+}
@@ -0,0 +1,179 @@
+package com.datadobi.charset;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that {@link CoderPool} hands out reset coders, keeps no more than
+ * its capacity, and never hands out a coder twice.
+ */
+class CoderPoolTest {
+
+    private static final Charset[] CHARSETS = { UTF_8.INSTANCE, new UTF_16LE() };
+
+    @Test
+    void releasedDecoderComesBackReset() {
+        for (Charset cs : CHARSETS) {
+            CoderPool pool = new CoderPool(cs, 1);
+            CharsetDecoder dec = pool.acquireDecoder();
+            String replacement = dec.replacement();
+            dec.onMalformedInput(CodingErrorAction.REPLACE)
+               .onUnmappableCharacter(CodingErrorAction.IGNORE)
+               .replaceWith("?");
+            // ends the decoding operation, which only a reset starts again
+            dec.decode(ByteBuffer.wrap(new byte[] { 'a', 0 }), CharBuffer.allocate(4), true);
+            pool.release(dec);
+
+            assertSame(dec, pool.acquireDecoder());
+            assertEquals(CodingErrorAction.REPORT, dec.malformedInputAction());
+            assertEquals(CodingErrorAction.REPORT, dec.unmappableCharacterAction());
+            assertEquals(replacement, dec.replacement());
+            CharBuffer out = CharBuffer.allocate(4);
+            assertFalse(dec.decode(ByteBuffer.wrap(new byte[] { 'b', 0 }), out, false).isError());
+        }
+    }
+
+    @Test
+    void releasedEncoderComesBackReset() {
+        for (Charset cs : CHARSETS) {
+            CoderPool pool = new CoderPool(cs, 1);
+            CharsetEncoder enc = pool.acquireEncoder();
+            byte[] replacement = enc.replacement();
+            enc.onMalformedInput(CodingErrorAction.IGNORE)
+               .onUnmappableCharacter(CodingErrorAction.REPLACE)
+               .replaceWith(cs instanceof UTF_16LE ? new byte[] { '?', 0 } : new byte[] { '?' });
+            enc.encode(CharBuffer.wrap("a"), ByteBuffer.allocate(8), true);
+            pool.release(enc);
+
+            assertSame(enc, pool.acquireEncoder());
+            assertEquals(CodingErrorAction.REPORT, enc.malformedInputAction());
+            assertEquals(CodingErrorAction.REPORT, enc.unmappableCharacterAction());
+            assertArrayEquals(replacement, enc.replacement());
+            ByteBuffer out = ByteBuffer.allocate(8);
+            assertFalse(enc.encode(CharBuffer.wrap("b"), out, false).isError());
+        }
+    }
+
+    @Test
+    void keepsNoMoreThanItsCapacity() {
+        // up to four slots, which one thread looks at all of
+        for (int capacity = 1; capacity <= 4; capacity *= 2) {
+            CoderPool pool = new CoderPool(UTF_8.INSTANCE, capacity);
+            Set<Object> released = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (int i = 0; i <= capacity; i++) {
+                CharsetDecoder dec = UTF_8.INSTANCE.newDecoder();
+                CharsetEncoder enc = UTF_8.INSTANCE.newEncoder();
+                released.add(dec);
+                released.add(enc);
+                // the last ones find the pool full, and are dropped
+                pool.release(dec);
+                pool.release(enc);
+            }
+            Set<Object> acquired = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (int i = 0; i < capacity; i++) {
+                assertTrue(acquired.add(pool.acquireDecoder()));
+                assertTrue(acquired.add(pool.acquireEncoder()));
+            }
+            assertTrue(released.containsAll(acquired));
+            assertFalse(released.contains(pool.acquireDecoder()));
+            assertFalse(released.contains(pool.acquireEncoder()));
+        }
+    }
+
+    @Test
+    void capacityIsRoundedUpToAPowerOfTwo() {
+        CoderPool pool = new CoderPool(new UTF_16LE(), 3);
+        List<CharsetDecoder> released = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            CharsetDecoder dec = pool.charset().newDecoder();
+            released.add(dec);
+            pool.release(dec);
+        }
+        Set<Object> acquired = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 4; i++)
+            acquired.add(pool.acquireDecoder());
+        assertEquals(4, acquired.size());
+        assertTrue(acquired.containsAll(released));
+    }
+
+    @Test
+    void foreignCodersAreRejected() {
+        CoderPool pool = new CoderPool(UTF_8.INSTANCE, 4);
+        CharsetDecoder dec = StandardCharsets.ISO_8859_1.newDecoder();
+        CharsetEncoder enc = new UTF_16LE().newEncoder();
+        assertThrows(IllegalArgumentException.class, () -> pool.release(dec));
+        assertThrows(IllegalArgumentException.class, () -> pool.release(enc));
+        // and not pooled
+        assertNotSame(dec, pool.acquireDecoder());
+        assertNotSame(enc, pool.acquireEncoder());
+        assertEquals(UTF_8.INSTANCE, pool.acquireDecoder().charset());
+
+        // the JDK coders of the same charset are not foreign
+        CharsetDecoder jdk = StandardCharsets.UTF_8.newDecoder();
+        pool.release(jdk);
+        assertSame(jdk, pool.acquireDecoder());
+    }
+
+    @Test
+    void badArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new CoderPool(UTF_8.INSTANCE, 0));
+        assertThrows(IllegalArgumentException.class, () -> new CoderPool(UTF_8.INSTANCE, -1));
+    }
+
+    @Test
+    void concurrentUseNeverSharesACoder() throws Exception {
+        CoderPool pool = new CoderPool(UTF_8.INSTANCE, 2);
+        Set<Object> inUse = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<>()));
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                done.add(executor.submit(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        CharsetDecoder dec = pool.acquireDecoder();
+                        CharsetEncoder enc = pool.acquireEncoder();
+                        assertTrue(inUse.add(dec));
+                        assertTrue(inUse.add(enc));
+                        dec.onMalformedInput(CodingErrorAction.REPLACE);
+                        enc.onMalformedInput(CodingErrorAction.REPLACE);
+                        assertTrue(inUse.remove(dec));
+                        assertTrue(inUse.remove(enc));
+                        pool.release(dec);
+                        pool.release(enc);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done)
+                f.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(CodingErrorAction.REPORT, pool.acquireDecoder().malformedInputAction());
+        assertEquals(CodingErrorAction.REPORT, pool.acquireEncoder().malformedInputAction());
+    }
+}
@@ -0,0 +1,406 @@
+package com.datadobi.charset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.MalformedInputException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares {@link EncodedStrings} with the code point order of the strings
+ * the encoded input decodes to, malformed UTF-8 escaped as by
+ * {@link UTF_8#SURROGATE_ESCAPE} and unpaired surrogates kept as by
+ * {@link UTF_16LE#WTF_16LE}, and the ignore-case methods with
+ * {@link String#equals} and {@link String#hashCode} of those strings with
+ * each char upper cased.
+ */
+class EncodedStringsTest {
+
+    // an odd trailing UTF-16LE byte reads as a value after all code points
+    private static final int ODD_BYTE = Character.MAX_CODE_POINT + 1;
+
+    // Letters in both cases, among them some that upper case to ASCII or
+    // to a sequence of another length, and some that do not upper case
+    private static final String LETTERS =
+        "aAiIkKsSzZ\u0131\u017f\u212a\u00e9\u00c9\u00df\u00ff\u0178"
+        + "\u03c3\u03c2\u03a3\u01c4\u01c5\u01c6\u023a\u2c65\uff41\uff21";
+
+    // Case variants of LETTERS and some supplementary characters, which
+    // are compared as they are, with malformed bytes spliced in
+    private static byte[] randomLetters(Random r, int len) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < len) {
+            switch (r.nextInt(10)) {
+            case 0:
+                sb.appendCodePoint(r.nextBoolean() ? 0x10400 : 0x10428);
+                break;
+            case 1:
+                sb.append(UTF_8.escape((byte) (0x80 + r.nextInt(0x80))));
+                break;
+            default:
+                sb.append(LETTERS.charAt(r.nextInt(LETTERS.length())));
+            }
+        }
+        try {
+            return UTF_8.getBytesEscaped(sb.toString());
+        } catch (MalformedInputException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+    // s with the case of some of its chars changed, and sometimes a
+    // char replaced, so that it no longer matches
+    private static String recase(Random r, String s) {
+        StringBuilder sb = new StringBuilder(s);
+        for (int i = 0; i < sb.length(); i++) {
+            char c = sb.charAt(i);
+            if (r.nextBoolean())
+                sb.setCharAt(i, r.nextBoolean() ? Character.toUpperCase(c)
+                                                : Character.toLowerCase(c));
+        }
+        int i = sb.length() > 0 ? r.nextInt(sb.length()) : 0;
+        if (r.nextInt(4) == 0 && i < sb.length() && !Character.isSurrogate(sb.charAt(i)))
+            sb.setCharAt(i, LETTERS.charAt(r.nextInt(LETTERS.length())));
+        return sb.toString();
+    }
+
+    // s with each char upper cased as EncodedStrings does
+    private static String upcase(String s) {
+        char[] c = s.toCharArray();
+        for (int i = 0; i < c.length; i++)
+            c[i] = Character.toUpperCase(c[i]);
+        return new String(c);
+    }
+
+    private static int[] codePointsUTF_8(byte[] b) {
+        return UTF_8.newStringEscaped(b, 0, b.length).codePoints().toArray();
+    }
+
+    private static int[] codePointsUTF_16LE(byte[] b) {
+        String s = ByteBuffer.wrap(b, 0, b.length & ~1)
+                .order(ByteOrder.LITTLE_ENDIAN).asCharBuffer().toString();
+        int[] cp = s.codePoints().toArray();
+        if ((b.length & 1) == 0)
+            return cp;
+        cp = Arrays.copyOf(cp, cp.length + 1);
+        cp[cp.length - 1] = ODD_BYTE + (b[b.length - 1] & 0xff);
+        return cp;
+    }
+
+    private static byte[] utf16le(String s) {
+        ByteBuffer bb = ByteBuffer.allocate(s.length() * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < s.length(); i++)
+            bb.putChar(s.charAt(i));
+        return bb.array();
+    }
+
+    // b at a random offset into a larger array
+    private static byte[] embed(Random r, byte[] b, int off) {
+        byte[] a = new byte[off + b.length + r.nextInt(3)];
+        r.nextBytes(a);
+        System.arraycopy(b, 0, a, off, b.length);
+        return a;
+    }
+
+    // A copy of b that differs from some index on, so that the two share
+    // a prefix, or b itself
+    private static byte[] mutate(Random r, byte[] b, byte[] other) {
+        int i = b.length == 0 ? 0 : r.nextInt(b.length + 1);
+        switch (r.nextInt(5)) {
+        case 0:
+            return b.clone();
+        case 1:
+            return Arrays.copyOf(b, i);
+        case 2:
+            byte[] c = b.clone();
+            if (i < c.length)
+                c[i] = (byte) r.nextInt();
+            return c;
+        default:
+            // b up to i, then the rest of other
+            int j = Math.min(i, other.length);
+            byte[] d = Arrays.copyOf(b, i + other.length - j);
+            System.arraycopy(other, j, d, i, other.length - j);
+            return d;
+        }
+    }
+
+    private static void assertSameSign(int expected, int actual, Supplier<String> message) {
+        assertEquals(Integer.signum(expected), Integer.signum(actual), message);
+    }
+
+    @Test
+    void utf8ComparesByCodePoint() {
+        Random r = new Random(1);
+        for (int iter = 0; iter < 20000; iter++) {
+            byte[] a = UTF_8Test.randomBytes(r, r.nextInt(30));
+            byte[] b = mutate(r, a, UTF_8Test.randomBytes(r, r.nextInt(30)));
+            int expected = Arrays.compare(codePointsUTF_8(a), codePointsUTF_8(b));
+            int aoff = r.nextInt(3);
+            int boff = r.nextInt(3);
+            int actual = EncodedStrings.compareUTF_8(embed(r, a, aoff), aoff, a.length,
+                                                     embed(r, b, boff), boff, b.length);
+            assertSameSign(expected, actual,
+                    () -> Arrays.toString(a) + " " + Arrays.toString(b));
+            assertSameSign(expected, EncodedStrings.UTF_8_ORDER.compare(a, b),
+                    () -> Arrays.toString(a) + " " + Arrays.toString(b));
+        }
+    }
+
+    @Test
+    void utf16leComparesByCodePoint() {
+        Random r = new Random(2);
+        for (int iter = 0; iter < 20000; iter++) {
+            byte[] a = UTF_16LETest.randomBytes(r, r.nextInt(20));
+            byte[] b = mutate(r, a, UTF_16LETest.randomBytes(r, r.nextInt(20)));
+            int expected = Arrays.compare(codePointsUTF_16LE(a), codePointsUTF_16LE(b));
+            int aoff = r.nextInt(3);
+            int boff = r.nextInt(3);
+            int actual = EncodedStrings.compareUTF_16LE(embed(r, a, aoff), aoff, a.length,
+                                                        embed(r, b, boff), boff, b.length);
+            assertSameSign(expected, actual,
+                    () -> Arrays.toString(a) + " " + Arrays.toString(b));
+            assertSameSign(expected, EncodedStrings.UTF_16LE_ORDER.compare(a, b),
+                    () -> Arrays.toString(a) + " " + Arrays.toString(b));
+        }
+    }
+
+    @Test
+    void supplementaryCharactersFollowTheRestOfTheBmp() {
+        // in UTF-16 code unit order U+10000 comes before U+E000
+        for (String hi : new String[] { "\ue000", "\ufffd", "\uffff" }) {
+            byte[] a = UTF_8.getBytes("x\ud800\udc00");
+            byte[] b = UTF_8.getBytes("x" + hi);
+            assertEquals(1, Integer.signum(
+                    EncodedStrings.compareUTF_8(a, 0, a.length, b, 0, b.length)));
+            byte[] a16 = utf16le("x\ud800\udc00");
+            byte[] b16 = utf16le("x" + hi);
+            assertEquals(1, Integer.signum(
+                    EncodedStrings.compareUTF_16LE(a16, 0, a16.length, b16, 0, b16.length)));
+            assertEquals(1, Integer.signum(
+                    EncodedStrings.compareUTF_8ToUTF_16LE(a, 0, a.length, b16, 0, b16.length)));
+            assertEquals(-1, Integer.signum(
+                    EncodedStrings.compareUTF_8ToUTF_16LE(b, 0, b.length, a16, 0, a16.length)));
+        }
+    }
+
+    @Test
+    void oddTrailingByteFollowsEveryString() {
+        byte[] a = { 'a', 0 };
+        for (byte[] b : new byte[][] {
+                { 'a', 0, 0 }, { 'a', 0, (byte) 0xff }, { 'a', 0, (byte) 0xff, (byte) 0xdb } }) {
+            assertEquals(-1, Integer.signum(
+                    EncodedStrings.compareUTF_16LE(a, 0, a.length, b, 0, b.length)));
+            assertEquals(-1, Integer.signum(
+                    EncodedStrings.compareUTF_8ToUTF_16LE(a, 0, 1, b, 0, b.length)));
+        }
+        // U+10FFFF, the last code point
+        byte[] b = { (byte) 0xff, (byte) 0xdb, (byte) 0xff, (byte) 0xdf };
+        byte[] c = { 0 };
+        assertEquals(-1, Integer.signum(
+                EncodedStrings.compareUTF_16LE(b, 0, b.length, c, 0, c.length)));
+        byte[] b8 = UTF_8.getBytes("\udbff\udfff");
+        assertEquals(-1, Integer.signum(
+                EncodedStrings.compareUTF_8ToUTF_16LE(b8, 0, b8.length, c, 0, c.length)));
+    }
+
+    @Test
+    void crossEncodingCompareAgreesWithBoth() {
+        Random r = new Random(3);
+        for (int iter = 0; iter < 20000; iter++) {
+            byte[] a8 = UTF_8Test.randomBytes(r, r.nextInt(30));
+            byte[] b8 = mutate(r, a8, UTF_8Test.randomBytes(r, r.nextInt(30)));
+            // the same strings in UTF-16LE, escapes and all
+            byte[] a16 = utf16le(UTF_8.newStringEscaped(a8, 0, a8.length));
+            byte[] b16 = utf16le(UTF_8.newStringEscaped(b8, 0, b8.length));
+            int expected = Integer.signum(
+                    EncodedStrings.compareUTF_8(a8, 0, a8.length, b8, 0, b8.length));
+            Supplier<String> message = () -> Arrays.toString(a8) + " " + Arrays.toString(b8);
+            assertSameSign(expected,
+                    EncodedStrings.compareUTF_16LE(a16, 0, a16.length, b16, 0, b16.length),
+                    message);
+            int boff = r.nextInt(3);
+            assertSameSign(expected, EncodedStrings.compareUTF_8ToUTF_16LE(
+                    a8, 0, a8.length, embed(r, b16, boff), boff, b16.length), message);
+            assertSameSign(-expected, EncodedStrings.compareUTF_8ToUTF_16LE(
+                    b8, 0, b8.length, a16, 0, a16.length), message);
+            assertEquals(expected == 0, EncodedStrings.equalsUTF_8ToUTF_16LE(
+                    a8, 0, a8.length, b16, 0, b16.length), message);
+        }
+    }
+
+    @Test
+    void crossEncodingCompareOfMalformedUtf16le() {
+        // unpaired high surrogates and odd bytes have no UTF-8 form
+        Random r = new Random(4);
+        for (int iter = 0; iter < 20000; iter++) {
+            byte[] a8 = UTF_8Test.randomBytes(r, r.nextInt(30));
+            byte[] b16 = UTF_16LETest.randomBytes(r, r.nextInt(20));
+            if (r.nextBoolean()) {
+                // share a prefix
+                byte[] a16 = utf16le(UTF_8.newStringEscaped(a8, 0, a8.length));
+                b16 = mutate(r, a16, b16);
+            }
+            byte[] b = b16;
+            int expected = Arrays.compare(codePointsUTF_8(a8), codePointsUTF_16LE(b));
+            assertSameSign(expected, EncodedStrings.compareUTF_8ToUTF_16LE(
+                    a8, 0, a8.length, b, 0, b.length),
+                    () -> Arrays.toString(a8) + " " + Arrays.toString(b));
+        }
+    }
+
+    @Test
+    void ignoreCaseLikeUpperCasedStrings() throws MalformedInputException {
+        Random r = new Random(5);
+        for (int iter = 0; iter < 20000; iter++) {
+            byte[] a8 = r.nextBoolean() ? randomLetters(r, r.nextInt(20))
+                                        : UTF_8Test.randomBytes(r, r.nextInt(30));
+            String sa = UTF_8.newStringEscaped(a8, 0, a8.length);
+            String sb = recase(r, sa);
+            byte[] b8 = UTF_8.getBytesEscaped(sb);
+            byte[] a16 = utf16le(sa);
+            byte[] b16 = utf16le(sb);
+            boolean expected = upcase(sa).equals(upcase(sb));
+            Supplier<String> message = () -> Arrays.toString(a8) + " " + Arrays.toString(b8);
+            int aoff = r.nextInt(3);
+            assertEquals(expected, EncodedStrings.equalsIgnoreCaseUTF_8(
+                    embed(r, a8, aoff), aoff, a8.length, b8, 0, b8.length), message);
+            assertEquals(expected, EncodedStrings.equalsIgnoreCaseUTF_16LE(
+                    embed(r, a16, aoff), aoff, a16.length, b16, 0, b16.length), message);
+            assertEquals(expected, EncodedStrings.equalsIgnoreCaseUTF_8ToUTF_16LE(
+                    embed(r, a8, aoff), aoff, a8.length, b16, 0, b16.length), message);
+            assertEquals(expected, EncodedStrings.equalsIgnoreCaseUTF_8ToUTF_16LE(
+                    b8, 0, b8.length, a16, 0, a16.length), message);
+
+            int h = upcase(sa).hashCode();
+            assertEquals(h, EncodedStrings.hashCodeIgnoreCaseUTF_8(
+                    embed(r, a8, aoff), aoff, a8.length), message);
+            assertEquals(h, EncodedStrings.hashCodeIgnoreCaseUTF_16LE(
+                    embed(r, a16, aoff), aoff, a16.length), message);
+            if (expected)
+                assertEquals(h, EncodedStrings.hashCodeIgnoreCaseUTF_8(b8, 0, b8.length));
+        }
+    }
+
+    // The code units of b upper cased, and an odd trailing byte as it is
+    private static int[] upcasedUTF_16LE(byte[] b) {
+        int[] u = new int[(b.length + 1) / 2];
+        for (int i = 0; i < b.length / 2; i++)
+            u[i] = Character.toUpperCase((char) (b[2 * i] & 0xff | b[2 * i + 1] << 8));
+        if ((b.length & 1) != 0)
+            u[u.length - 1] = ODD_BYTE + (b[b.length - 1] & 0xff);
+        return u;
+    }
+
+    @Test
+    void ignoreCaseOfMalformedUtf16le() {
+        Random r = new Random(6);
+        for (int iter = 0; iter < 20000; iter++) {
+            byte[] a = UTF_16LETest.randomBytes(r, r.nextInt(20));
+            byte[] b = mutate(r, a, UTF_16LETest.randomBytes(r, r.nextInt(20)));
+            int[] ua = upcasedUTF_16LE(a);
+            boolean expected = Arrays.equals(ua, upcasedUTF_16LE(b));
+            int h = 0;
+            for (int u : ua)
+                h = 31 * h + u;
+            Supplier<String> message = () -> Arrays.toString(a) + " " + Arrays.toString(b);
+            assertEquals(expected, EncodedStrings.equalsIgnoreCaseUTF_16LE(
+                    a, 0, a.length, b, 0, b.length), message);
+            assertEquals(h, EncodedStrings.hashCodeIgnoreCaseUTF_16LE(a, 0, a.length), message);
+        }
+    }
+
+    @Test
+    void upperCasingToAsciiMatchesBothPaths() {
+        // U+0131 dotless i and U+017F long s upper case to I and S
+        String[][] equal = {
+            { "\u0131", "i" }, { "\u0131", "I" }, { "\u017f", "s" }, { "\u017f", "S" },
+            { "x\u0131x", "XIX" }, { "\u017f\u0131", "si" },
+        };
+        for (String[] p : equal)
+            assertIgnoreCase(true, p[0], p[1]);
+        // U+212A Kelvin sign lower cases to k but upper cases to itself
+        assertIgnoreCase(false, "\u212a", "k");
+        assertIgnoreCase(false, "\u212a", "K");
+        // supplementary characters are not upper cased
+        assertIgnoreCase(false, "\ud801\udc28", "\ud801\udc00");
+    }
+
+    private static void assertIgnoreCase(boolean expected, String a, String b) {
+        byte[] a8 = UTF_8.getBytes(a);
+        byte[] b8 = UTF_8.getBytes(b);
+        byte[] a16 = utf16le(a);
+        byte[] b16 = utf16le(b);
+        Supplier<String> message = () -> a + " " + b;
+        assertEquals(expected, EncodedStrings.equalsIgnoreCaseUTF_8(a8, 0, a8.length, b8, 0, b8.length), message);
+        assertEquals(expected, EncodedStrings.equalsIgnoreCaseUTF_8(b8, 0, b8.length, a8, 0, a8.length), message);
+        assertEquals(expected, EncodedStrings.equalsIgnoreCaseUTF_16LE(a16, 0, a16.length, b16, 0, b16.length), message);
+        assertEquals(expected, EncodedStrings.equalsIgnoreCaseUTF_8ToUTF_16LE(a8, 0, a8.length, b16, 0, b16.length), message);
+        assertEquals(expected, EncodedStrings.equalsIgnoreCaseUTF_8ToUTF_16LE(b8, 0, b8.length, a16, 0, a16.length), message);
+        int h = EncodedStrings.hashCodeIgnoreCaseUTF_8(a8, 0, a8.length);
+        assertEquals(h, EncodedStrings.hashCodeIgnoreCaseUTF_16LE(a16, 0, a16.length), message);
+        if (expected)
+            assertEquals(h, EncodedStrings.hashCodeIgnoreCaseUTF_8(b8, 0, b8.length), message);
+    }
+
+    @Test
+    void upcaseTableCoversTheBmp() {
+        byte[] x = { 'x', 0 };
+        for (int c = 0; c <= 0xffff; c++) {
+            char u = Character.toUpperCase((char) c);
+            byte[] a16 = { (byte) c, (byte) (c >> 8) };
+            byte[] b16 = { (byte) u, (byte) (u >> 8) };
+            assertTrue(EncodedStrings.equalsIgnoreCaseUTF_16LE(a16, 0, 2, b16, 0, 2));
+            assertEquals(31 * 'X' + u, EncodedStrings.hashCodeIgnoreCaseUTF_16LE(
+                    new byte[] { 'x', 0, a16[0], a16[1] }, 0, 4));
+            assertFalse(EncodedStrings.equalsIgnoreCaseUTF_16LE(a16, 0, 2, x, 0, 2)
+                        && u != 'X');
+            if (Character.isSurrogate((char) c))
+                continue;
+            String s = String.valueOf((char) c);
+            byte[] a8 = UTF_8.getBytes(s);
+            byte[] b8 = UTF_8.getBytes(String.valueOf(u));
+            assertTrue(EncodedStrings.equalsIgnoreCaseUTF_8(a8, 0, a8.length, b8, 0, b8.length));
+            assertTrue(EncodedStrings.equalsIgnoreCaseUTF_8ToUTF_16LE(a8, 0, a8.length, b16, 0, 2));
+            assertEquals(u, EncodedStrings.hashCodeIgnoreCaseUTF_8(a8, 0, a8.length));
+        }
+    }
+
+    @Test
+    void malformedInputOnlyEqualsItself() {
+        // C3 alone is escaped to U+DCC3, not read as U+00C3 or U+00E3
+        byte[] c3 = { (byte) 0xc3 };
+        byte[] e3 = UTF_8.getBytes("\u00e3");
+        assertFalse(EncodedStrings.equalsIgnoreCaseUTF_8(c3, 0, 1, e3, 0, e3.length));
+        assertFalse(EncodedStrings.equalsIgnoreCaseUTF_8ToUTF_16LE(c3, 0, 1,
+                new byte[] { (byte) 0xc3, 0 }, 0, 2));
+        assertTrue(EncodedStrings.equalsIgnoreCaseUTF_8ToUTF_16LE(c3, 0, 1,
+                new byte[] { (byte) 0xc3, (byte) 0xdc }, 0, 2));
+        assertFalse(EncodedStrings.equalsIgnoreCaseUTF_8(c3, 0, 1,
+                new byte[] { (byte) 0xe3 }, 0, 1));
+        assertEquals(0xdcc3, EncodedStrings.hashCodeIgnoreCaseUTF_8(c3, 0, 1));
+
+        // unpaired surrogates only equal themselves, and have no UTF-8 form
+        byte[] hi = { 0, (byte) 0xd8 };
+        byte[] lo = { 0, (byte) 0xdc };
+        assertTrue(EncodedStrings.equalsIgnoreCaseUTF_16LE(hi, 0, 2, hi.clone(), 0, 2));
+        assertFalse(EncodedStrings.equalsIgnoreCaseUTF_16LE(hi, 0, 2, lo, 0, 2));
+        assertFalse(EncodedStrings.equalsIgnoreCaseUTF_8ToUTF_16LE(c3, 0, 1, hi, 0, 2));
+        assertEquals(0xd800, EncodedStrings.hashCodeIgnoreCaseUTF_16LE(hi, 0, 2));
+
+        // an odd trailing byte is not a char and is not upper cased
+        byte[] ax = { 'a', 0, 'x' };
+        assertTrue(EncodedStrings.equalsIgnoreCaseUTF_16LE(ax, 0, 3, new byte[] { 'A', 0, 'x' }, 0, 3));
+        assertFalse(EncodedStrings.equalsIgnoreCaseUTF_16LE(ax, 0, 3, new byte[] { 'A', 0, 'X' }, 0, 3));
+        assertFalse(EncodedStrings.equalsIgnoreCaseUTF_16LE(ax, 0, 3, new byte[] { 'A', 0 }, 0, 2));
+        assertFalse(EncodedStrings.equalsIgnoreCaseUTF_8ToUTF_16LE(new byte[] { 'a' }, 0, 1, ax, 0, 3));
+        assertEquals(31 * 'A' + ODD_BYTE + 'x', EncodedStrings.hashCodeIgnoreCaseUTF_16LE(ax, 0, 3));
+    }
+}
@@ -0,0 +1,155 @@
+package com.datadobi.charset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Decodes temporary files through windows of a few bytes, so that
+ * sequences straddle the windows, and compares the result with the JDK
+ * decoders.
+ */
+class MappedFileDecoderTest {
+
+    private static final Charset[] CHARSETS = { UTF_8.INSTANCE, new UTF_16LE() };
+
+    private static Charset jdk(Charset cs) {
+        return cs instanceof UTF_16LE ? StandardCharsets.UTF_16LE : StandardCharsets.UTF_8;
+    }
+
+    private static String expected(Charset cs, byte[] b, int off, int len) {
+        try {
+            return jdk(cs).newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .decode(ByteBuffer.wrap(b, off, len)).toString();
+        } catch (CharacterCodingException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+    private static Path write(byte[] b) throws IOException {
+        Path path = Files.createTempFile("mapped", ".txt");
+        Files.write(path, b);
+        return path;
+    }
+
+    private static String decode(Path path, long position, long size, CharsetDecoder dec,
+                                 int windowSize, int chunkSize)
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedFileDecoder.decode(ch, position, size, dec, windowSize,
+                                     CharBuffer.allocate(chunkSize), sb::append);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    void decodesLikeTheJdk() throws IOException {
+        Random r = new Random(1);
+        for (Charset cs : CHARSETS) {
+            for (int iter = 0; iter < 300; iter++) {
+                byte[] b = cs instanceof UTF_16LE ? UTF_16LETest.randomBytes(r, r.nextInt(200))
+                                                  : UTF_8Test.randomBytes(r, r.nextInt(400));
+                int off = Math.min(r.nextInt(3), b.length);
+                int len = Math.max(0, b.length - off - r.nextInt(3));
+                Path path = write(b);
+                try {
+                    CharsetDecoder dec = cs.newDecoder()
+                            .onMalformedInput(CodingErrorAction.REPLACE);
+                    int windowSize = 16 + r.nextInt(40);
+                    assertEquals(expected(cs, b, off, len),
+                                 decode(path, off, len, dec, windowSize, 2 + r.nextInt(20)),
+                                 () -> cs + " window " + windowSize);
+                } finally {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    @Test
+    void sequenceAcrossAWindowBoundary() throws IOException {
+        // a 4 byte sequence, then a surrogate pair, over the end of the
+        // first window of 16 bytes
+        byte[] u = new byte[40];
+        Arrays.fill(u, (byte) 'a');
+        byte[] grin = UTF_8.getBytes("\ud83d\ude00");
+        System.arraycopy(grin, 0, u, 14, grin.length);
+        byte[] w = new byte[40];
+        Arrays.fill(w, (byte) 0);
+        for (int i = 0; i < w.length; i += 2)
+            w[i] = 'b';
+        byte[] pair = UTF_16LE.getBytes("\ud83d\ude01");
+        System.arraycopy(pair, 0, w, 14, pair.length);
+
+        for (Charset cs : CHARSETS) {
+            byte[] b = cs instanceof UTF_16LE ? w : u;
+            Path path = write(b);
+            try {
+                for (int chunkSize = 2; chunkSize <= 40; chunkSize++) {
+                    assertEquals(expected(cs, b, 0, b.length),
+                                 decode(path, 0, b.length, cs.newDecoder(), 16, chunkSize));
+                }
+                assertEquals(expected(cs, b, 0, b.length), decode(path, 0, b.length,
+                        cs.newDecoder(), MappedFileDecoder.DEFAULT_WINDOW_SIZE, 8192));
+            } finally {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void malformedInputAfterTheFirstWindowIsReported() throws IOException {
+        for (Charset cs : CHARSETS) {
+            byte[] b = new byte[64];
+            for (int i = 0; i < b.length; i++)
+                b[i] = cs instanceof UTF_16LE && (i & 1) != 0 ? 0 : (byte) 'c';
+            // a truncated sequence, or an unpaired low surrogate
+            if (cs instanceof UTF_16LE) {
+                b[41] = (byte) 0xdc;
+            } else {
+                b[40] = (byte) 0xe2;
+                b[41] = (byte) 0x82;
+            }
+            Path path = write(b);
+            try {
+                StringBuilder sb = new StringBuilder();
+                assertThrows(MalformedInputException.class, () -> {
+                    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                        MappedFileDecoder.decode(ch, 0, b.length, cs.newDecoder(), 16,
+                                                 CharBuffer.allocate(4), sb::append);
+                    }
+                });
+                // what was handed to the sink precedes the error
+                assertTrue(expected(cs, b, 0, 40).startsWith(sb.toString()));
+
+                // the whole file, with the default window and chunk
+                StringBuilder all = new StringBuilder();
+                MappedFileDecoder.decode(path, cs.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE), all::append);
+                assertEquals(expected(cs, b, 0, b.length), all.toString());
+            } finally {
+                Files.delete(path);
+            }
+        }
+    }
+}
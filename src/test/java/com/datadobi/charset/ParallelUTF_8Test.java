@@ -0,0 +1,128 @@
+package com.datadobi.charset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares {@link ParallelUTF_8} with the sequential {@link UTF_8} methods
+ * on inputs large enough to be split, with multi-byte and malformed
+ * sequences across the places where the chunks are cut.
+ */
+class ParallelUTF_8Test {
+
+    private static final CodingErrorAction[] ACTIONS = {
+        CodingErrorAction.REPORT, CodingErrorAction.REPLACE, CodingErrorAction.IGNORE
+    };
+
+    // Four chunks of the smallest size, see ParallelUTF_8.split
+    private static final int CHUNKS = 4;
+    private static final int LEN = CHUNKS << 20;
+
+    // ASCII, with random input around each place where a chunk may be cut
+    private static byte[] input(Random r, int off) {
+        byte[] b = new byte[off + LEN + 3];
+        Arrays.fill(b, (byte) 'a');
+        for (int c = 1; c < CHUNKS; c++) {
+            int cut = off + (int) ((long) LEN * c / CHUNKS);
+            int from = cut - r.nextInt(8);
+            byte[] s;
+            if (r.nextInt(4) == 0) {
+                // continuation bytes, which move the cut past them
+                s = new byte[1 + r.nextInt(12)];
+                Arrays.fill(s, (byte) (0x80 + r.nextInt(0x40)));
+            } else {
+                s = UTF_8Test.randomBytes(r, 16);
+            }
+            System.arraycopy(s, 0, b, from, s.length);
+        }
+        return b;
+    }
+
+    private static String decode(boolean parallel, ForkJoinPool pool, byte[] b, int off,
+                                 CodingErrorAction action)
+    {
+        try {
+            return parallel ? ParallelUTF_8.newString(pool, b, off, LEN, action)
+                            : UTF_8.newString(b, off, LEN, action);
+        } catch (MalformedInputException x) {
+            return "[malformed " + x.getInputLength() + "]";
+        } catch (CharacterCodingException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+    @Test
+    void decodesLikeUtf8() {
+        Random r = new Random(1);
+        ForkJoinPool pool = new ForkJoinPool(CHUNKS);
+        try {
+            for (int iter = 0; iter < 40; iter++) {
+                int off = r.nextInt(3);
+                byte[] b = input(r, off);
+                for (CodingErrorAction action : ACTIONS) {
+                    String expected = decode(false, pool, b, off, action);
+                    assertEquals(expected, decode(true, pool, b, off, action),
+                                 () -> action + " at offset " + off);
+                }
+                assertEquals(UTF_8.validate(b, off, LEN), ParallelUTF_8.validate(b, off, LEN));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void reportsTheFirstMalformedSequence() throws CharacterCodingException {
+        // malformed input in a later chunk, then in an earlier one too
+        byte[] b = new byte[LEN];
+        Arrays.fill(b, (byte) 'a');
+        b[LEN - 2] = (byte) 0xe2;
+        assertEquals(LEN - 2, ParallelUTF_8.validate(b, 0, LEN));
+        b[LEN / 3] = (byte) 0xf0;
+        b[LEN / 3 + 1] = (byte) 0x90;
+        assertEquals(LEN / 3, ParallelUTF_8.validate(b, 0, LEN));
+        try {
+            ParallelUTF_8.newString(b, 0, LEN, CodingErrorAction.REPORT);
+            throw new AssertionError("not reported");
+        } catch (MalformedInputException x) {
+            assertEquals(2, x.getInputLength());
+        }
+        b[LEN / 3] = 'a';
+        b[LEN / 3 + 1] = 'a';
+        b[LEN - 2] = 'a';
+        assertEquals(-1, ParallelUTF_8.validate(b, 0, LEN));
+        assertEquals(UTF_8.newString(b, 0, LEN, CodingErrorAction.REPORT),
+                     ParallelUTF_8.newString(b, 0, LEN, CodingErrorAction.REPORT));
+    }
+
+    @Test
+    void shortInputIsDecodedInOnePiece() throws CharacterCodingException {
+        Random r = new Random(2);
+        for (int iter = 0; iter < 1000; iter++) {
+            byte[] b = UTF_8Test.randomBytes(r, r.nextInt(100));
+            assertEquals(UTF_8.validate(b, 0, b.length), ParallelUTF_8.validate(b, 0, b.length));
+            for (CodingErrorAction action : ACTIONS) {
+                String expected;
+                try {
+                    expected = UTF_8.newString(b, 0, b.length, action);
+                } catch (MalformedInputException x) {
+                    expected = null;
+                }
+                String actual;
+                try {
+                    actual = ParallelUTF_8.newString(b, 0, b.length, action);
+                } catch (MalformedInputException x) {
+                    actual = null;
+                }
+                assertEquals(expected, actual);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.datadobi.charset;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Drives a decoder or encoder the way a stream does: the input arrives in
+ * chunks of 1..8 units and the output goes through a buffer of a few units
+ * that is drained on overflow. With a null Random the whole input is given
+ * at once to a large heap buffer, which is how the JDK coders serve as the
+ * reference.
+ *
+ * The result is the output, followed by {@code [malformed n at i]} if the
+ * coder reported malformed input of n units at index i of the input.
+ */
+final class Streaming {
+
+    private Streaming() { }
+
+    /** Kinds of input buffers, which select the loop a coder runs. */
+    enum Source { HEAP, DIRECT, READ_ONLY }
+
+    static ByteBuffer bytes(byte[] b, Source kind) {
+        switch (kind) {
+        case HEAP:
+            // at an offset into the array, to catch loops that ignore it
+            ByteBuffer bb = ByteBuffer.allocate(b.length + 3);
+            bb.position(3);
+            return bb.slice().put(b).flip();
+        case DIRECT:
+            return ByteBuffer.allocateDirect(b.length).put(b).flip();
+        default:
+            return ByteBuffer.wrap(b).asReadOnlyBuffer();
+        }
+    }
+
+    static CharBuffer chars(String s, Source kind) {
+        switch (kind) {
+        case HEAP:
+            char[] a = new char[s.length() + 3];
+            s.getChars(0, s.length(), a, 3);
+            return CharBuffer.wrap(a, 3, s.length()).slice();
+        case DIRECT:
+            return ByteBuffer.allocateDirect(s.length() * 2)
+                    .order(ByteOrder.nativeOrder())
+                    .asCharBuffer().put(s).flip();
+        default:
+            return CharBuffer.wrap(s);
+        }
+    }
+
+    /**
+     * Decodes all of {@code src} into a CharBuffer of 2..7 chars, a heap
+     * buffer or, with {@code directDst}, a view of a direct one.
+     */
+    static String decode(CharsetDecoder d, ByteBuffer src, Random r,
+                         boolean directDst)
+    {
+        int cap = r == null ? src.remaining() * 2 + 4 : 2 + r.nextInt(6);
+        CharBuffer dst = directDst
+                ? ByteBuffer.allocateDirect(cap * 2).asCharBuffer()
+                : CharBuffer.allocate(cap);
+        StringBuilder sb = new StringBuilder();
+        int start = src.position();
+        int end = src.limit();
+        if (r != null)
+            src.limit(start);
+        d.reset();
+        for (;;) {
+            boolean last = src.limit() == end;
+            CoderResult cr = d.decode(src, dst, last);
+            if (cr.isOverflow()) {
+                sb.append(dst.flip());
+                dst.clear();
+            } else if (cr.isError()) {
+                sb.append(dst.flip());
+                return sb + "[malformed " + cr.length() + " at "
+                        + (src.position() - start) + "]";
+            } else if (last) {
+                break;
+            } else {
+                src.limit(Math.min(end, src.limit() + 1 + r.nextInt(8)));
+            }
+        }
+        while (d.flush(dst).isOverflow()) {
+            sb.append(dst.flip());
+            dst.clear();
+        }
+        return sb.append(dst.flip()).toString();
+    }
+
+    /**
+     * Encodes all of {@code src} into a ByteBuffer of 4..7 bytes, room for
+     * the longest sequence, heap or direct. The bytes are returned as
+     * ISO-8859-1 chars, so that results compare as strings.
+     */
+    static String encode(CharsetEncoder e, CharBuffer src, Random r,
+                         boolean directDst)
+    {
+        int cap = r == null ? src.remaining() * 4 + 4 : 4 + r.nextInt(4);
+        ByteBuffer dst = directDst ? ByteBuffer.allocateDirect(cap)
+                                   : ByteBuffer.allocate(cap);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int start = src.position();
+        int end = src.limit();
+        if (r != null)
+            src.limit(start);
+        e.reset();
+        for (;;) {
+            boolean last = src.limit() == end;
+            CoderResult cr = e.encode(src, dst, last);
+            if (cr.isOverflow()) {
+                drain(dst, out);
+            } else if (cr.isError()) {
+                drain(dst, out);
+                return out.toString(StandardCharsets.ISO_8859_1)
+                        + "[malformed " + cr.length() + " at "
+                        + (src.position() - start) + "]";
+            } else if (last) {
+                break;
+            } else {
+                src.limit(Math.min(end, src.limit() + 1 + r.nextInt(8)));
+            }
+        }
+        while (e.flush(dst).isOverflow())
+            drain(dst, out);
+        drain(dst, out);
+        return out.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void drain(ByteBuffer dst, ByteArrayOutputStream out) {
+        dst.flip();
+        while (dst.hasRemaining())
+            out.write(dst.get());
+        dst.clear();
+    }
+
+    static String latin1(byte[] b) {
+        return new String(b, StandardCharsets.ISO_8859_1);
+    }
+}
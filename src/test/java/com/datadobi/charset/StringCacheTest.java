@@ -0,0 +1,200 @@
+package com.datadobi.charset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that {@link StringCache} returns what the one-shot decoders
+ * return, shares the string on a hit, and evicts the entries that are not
+ * used.
+ */
+class StringCacheTest {
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // A copy of s at offset off of a larger array
+    private static byte[] embed(byte[] s, int off) {
+        byte[] b = new byte[off + s.length + 3];
+        Arrays.fill(b, (byte) 0xff);
+        System.arraycopy(s, 0, b, off, s.length);
+        return b;
+    }
+
+    private static void decodesLikeNewString(boolean utf16, Random r) {
+        StringCache cache = utf16 ? StringCache.utf16le(64) : StringCache.utf8(64);
+        for (int iter = 0; iter < 5000; iter++) {
+            byte[] s = utf16 ? UTF_16LETest.randomBytes(r, r.nextInt(10))
+                             : UTF_8Test.randomBytes(r, r.nextInt(20));
+            String expected = utf16 ? UTF_16LE.newString(s, 0, s.length)
+                                    : UTF_8.newString(s, 0, s.length);
+            int off = r.nextInt(4);
+            long lookups = cache.hits() + cache.misses();
+            String first = cache.newString(embed(s, off), off, s.length);
+            assertEquals(expected, first);
+            assertEquals(lookups + 1, cache.hits() + cache.misses());
+
+            // the same bytes elsewhere are a hit, for the same string
+            long hits = cache.hits();
+            off = r.nextInt(4);
+            assertSame(first, cache.newString(embed(s, off), off, s.length));
+            assertEquals(hits + 1, cache.hits());
+        }
+    }
+
+    @Test
+    void utf8DecodesLikeNewString() {
+        decodesLikeNewString(false, new Random(1));
+    }
+
+    @Test
+    void utf16leDecodesLikeNewString() {
+        decodesLikeNewString(true, new Random(2));
+    }
+
+    @Test
+    void missesThenHits() {
+        StringCache cache = StringCache.utf8(16);
+        byte[] a = ascii("alpha");
+        byte[] b = ascii("beta");
+        String s = cache.newString(a, 0, a.length);
+        cache.newString(b, 0, b.length);
+        assertEquals(0, cache.hits());
+        assertEquals(2, cache.misses());
+        assertSame(s, cache.newString(a, 0, a.length));
+        assertSame(s, cache.newString(ascii("xalphax"), 1, 5));
+        assertEquals(2, cache.hits());
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    void usedEntrySurvivesUnusedOnes() {
+        // four slots, which every key may be stored in
+        StringCache cache = StringCache.utf8(4);
+        byte[] hot = ascii("hot");
+        String s = cache.newString(hot, 0, hot.length);
+        // used once, so that it has a second chance
+        assertSame(s, cache.newString(hot, 0, hot.length));
+        for (int i = 0; i < 200; i++) {
+            byte[] cold = ascii("cold" + i);
+            cache.newString(cold, 0, cold.length);
+            assertSame(s, cache.newString(hot, 0, hot.length));
+        }
+        assertEquals(201, cache.hits());
+        assertEquals(201, cache.misses());
+
+        // the first cold keys were evicted by the later ones
+        byte[] cold = ascii("cold0");
+        cache.newString(cold, 0, cold.length);
+        assertEquals(202, cache.misses());
+    }
+
+    @Test
+    void unusedEntryIsEvicted() {
+        StringCache cache = StringCache.utf8(4);
+        byte[] once = ascii("once");
+        String s = cache.newString(once, 0, once.length);
+        assertSame(s, cache.newString(once, 0, once.length));
+        // its second chance is used up by the first sweep over it
+        for (int i = 0; i < 200; i++) {
+            byte[] cold = ascii("cold" + i);
+            cache.newString(cold, 0, cold.length);
+        }
+        long misses = cache.misses();
+        assertNotSame(s, cache.newString(once, 0, once.length));
+        assertEquals(misses + 1, cache.misses());
+    }
+
+    @Test
+    void longInputIsNotCached() {
+        StringCache cache = StringCache.utf8(16);
+        byte[] b = new byte[StringCache.MAX_KEY_LENGTH + 1];
+        Arrays.fill(b, (byte) 'x');
+        String s = cache.newString(b, 0, b.length);
+        assertEquals("x".repeat(b.length), s);
+        assertNotSame(s, cache.newString(b, 0, b.length));
+        assertEquals(0, cache.hits());
+        assertEquals(0, cache.misses());
+
+        // the longest cached input
+        s = cache.newString(b, 1, StringCache.MAX_KEY_LENGTH);
+        assertSame(s, cache.newString(b, 0, StringCache.MAX_KEY_LENGTH));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    void clearRemovesEntriesButNotCounters() {
+        StringCache cache = StringCache.utf16le(16);
+        byte[] b = UTF_16LE.getBytes("name");
+        String s = cache.newString(b, 0, b.length);
+        assertSame(s, cache.newString(b, 0, b.length));
+        cache.clear();
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        String t = cache.newString(b, 0, b.length);
+        assertEquals(s, t);
+        assertNotSame(s, t);
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+        assertSame(t, cache.newString(b, 0, b.length));
+    }
+
+    @Test
+    void concurrentLookups() throws Exception {
+        List<byte[]> keys = new ArrayList<>();
+        Random r = new Random(3);
+        for (int i = 0; i < 40; i++)
+            keys.add(UTF_8Test.randomBytes(r, r.nextInt(12)));
+        StringCache cache = StringCache.utf8(16);
+        int threads = 4;
+        int lookups = 20000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long seed = t;
+                done.add(pool.submit(() -> {
+                    Random tr = new Random(seed);
+                    for (int i = 0; i < lookups; i++) {
+                        // mostly a few hot keys
+                        byte[] k = keys.get(tr.nextInt(4) == 0 ? tr.nextInt(keys.size())
+                                                                 : tr.nextInt(4));
+                        assertEquals(UTF_8.newString(k, 0, k.length),
+                                     cache.newString(k, 0, k.length));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals((long) threads * lookups, cache.hits() + cache.misses());
+        assertTrue(cache.hits() > cache.misses());
+    }
+
+    @Test
+    void badArguments() {
+        assertThrows(IllegalArgumentException.class, () -> StringCache.utf8(0));
+        StringCache cache = StringCache.utf8(1);
+        assertThrows(IndexOutOfBoundsException.class, () -> cache.newString(new byte[4], 2, 3));
+        assertThrows(IndexOutOfBoundsException.class, () -> cache.newString(new byte[4], -1, 1));
+        assertEquals("", cache.newString(new byte[0], 0, 0));
+    }
+}
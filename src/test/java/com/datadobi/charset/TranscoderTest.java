@@ -0,0 +1,120 @@
+package com.datadobi.charset;
+
+import static com.datadobi.charset.Streaming.latin1;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.datadobi.charset.Streaming.Source;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the transcoders with decoding and encoding again through the
+ * JDK's coders, replacing malformed input with U+FFFD, on heap, direct and
+ * read-only buffers, with the input in chunks and small output buffers.
+ */
+class TranscoderTest {
+
+    // What the JDK's coders make of b, malformed input replaced
+    private static String expected(byte[] b, Charset from, Charset to) {
+        CharBuffer cb = from.decode(ByteBuffer.wrap(b));
+        CharsetEncoder e = to.newEncoder();
+        ByteBuffer bb = ByteBuffer.allocate(cb.remaining() * 3);
+        e.encode(cb, bb, true);
+        e.flush(bb);
+        return latin1(Arrays.copyOf(bb.array(), bb.position()));
+    }
+
+    // Transcodes src in chunks of 1..8 bytes into a buffer of 4..7 bytes,
+    // writing repl in place of malformed input
+    private static String transcode(Transcoder t, ByteBuffer src, Random r,
+                                    boolean directDst, byte[] repl)
+    {
+        int cap = 4 + r.nextInt(4);
+        ByteBuffer dst = directDst ? ByteBuffer.allocateDirect(cap)
+                                   : ByteBuffer.allocate(cap);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int end = src.limit();
+        src.limit(src.position());
+        for (;;) {
+            boolean last = src.limit() == end;
+            CoderResult cr = t.transcode(src, dst, last);
+            if (cr.isOverflow() || cr.isError() && dst.remaining() < repl.length) {
+                drain(dst, out);
+            } else if (cr.isError()) {
+                dst.put(repl);
+                src.position(src.position() + cr.length());
+            } else if (last) {
+                break;
+            } else {
+                src.limit(Math.min(end, src.limit() + 1 + r.nextInt(8)));
+            }
+        }
+        drain(dst, out);
+        return out.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void drain(ByteBuffer dst, ByteArrayOutputStream out) {
+        dst.flip();
+        while (dst.hasRemaining())
+            out.write(dst.get());
+        dst.clear();
+    }
+
+    @Test
+    void utf16leToUtf8LikeTheJdk() {
+        Random r = new Random(1);
+        byte[] repl = "\ufffd".getBytes(StandardCharsets.UTF_8);
+        for (int iter = 0; iter < 3000; iter++) {
+            byte[] b = UTF_16LETest.randomBytes(r, r.nextInt(50));
+            String expected = expected(b, StandardCharsets.UTF_16LE, StandardCharsets.UTF_8);
+            for (Source kind : Source.values()) {
+                boolean directDst = r.nextBoolean();
+                assertEquals(expected, transcode(Transcoder.UTF_16LE_TO_UTF_8,
+                        Streaming.bytes(b, kind), r, directDst, repl),
+                        () -> kind + (directDst ? " direct" : "") + " " + Arrays.toString(b));
+            }
+        }
+    }
+
+    @Test
+    void utf8ToUtf16leLikeTheJdk() {
+        Random r = new Random(2);
+        byte[] repl = "\ufffd".getBytes(StandardCharsets.UTF_16LE);
+        for (int iter = 0; iter < 3000; iter++) {
+            byte[] b = UTF_8Test.randomBytes(r, r.nextInt(100));
+            String expected = expected(b, StandardCharsets.UTF_8, StandardCharsets.UTF_16LE);
+            for (Source kind : Source.values()) {
+                boolean directDst = r.nextBoolean();
+                assertEquals(expected, transcode(Transcoder.UTF_8_TO_UTF_16LE,
+                        Streaming.bytes(b, kind), r, directDst, repl),
+                        () -> kind + (directDst ? " direct" : "") + " " + Arrays.toString(b));
+            }
+        }
+    }
+
+    @Test
+    void wtfTranscodersMatchTheWtfCoders() {
+        Random r = new Random(3);
+        for (int iter = 0; iter < 3000; iter++) {
+            String s = UTF_16LETest.randomString(r, r.nextInt(50));
+            byte[] wtf16 = Streaming.encode(UTF_16LE.WTF_16LE.newEncoder(),
+                    CharBuffer.wrap(s), null, false).getBytes(StandardCharsets.ISO_8859_1);
+            String wtf8 = latin1(UTF_8.getBytesWtf8(s));
+            for (Source kind : Source.values()) {
+                assertEquals(wtf8, transcode(Transcoder.WTF_16LE_TO_WTF_8,
+                        Streaming.bytes(wtf16, kind), r, r.nextBoolean(), new byte[0]));
+                assertEquals(latin1(wtf16), transcode(Transcoder.WTF_8_TO_WTF_16LE,
+                        Streaming.bytes(wtf8.getBytes(StandardCharsets.ISO_8859_1), kind),
+                        r, r.nextBoolean(), new byte[0]));
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.datadobi.charset;
+
+import static com.datadobi.charset.Streaming.latin1;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.datadobi.charset.Streaming.Source;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares {@link UTF_16LE} with the JDK's UTF-16LE coders for each error
+ * action, on heap, direct and read-only buffers, with the input in chunks
+ * and small output buffers, and checks that {@link UTF_16LE#WTF_16LE}
+ * copies every code unit.
+ */
+class UTF_16LETest {
+
+    private static final Charset CHARSET = new UTF_16LE();
+
+    private static final CodingErrorAction[] ACTIONS = {
+        CodingErrorAction.REPORT, CodingErrorAction.REPLACE, CodingErrorAction.IGNORE
+    };
+
+    private static final char[] CHARS = {
+        'a', 0xe9, 0x20ac, 0xd7ff, 0xe000, 0xfeff, 0xfffe, 0xffff,
+        0xd800, 0xdbff, 0xdc00, 0xdfff
+    };
+
+    // Code units with unpaired surrogates among them
+    static String randomString(Random r, int len) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < len) {
+            if (r.nextInt(4) == 0)
+                sb.appendCodePoint(0x10000 + r.nextInt(0x100000));
+            else
+                sb.append(CHARS[r.nextInt(CHARS.length)]);
+        }
+        return sb.toString();
+    }
+
+    // The code units of s in little endian order, sometimes with an odd
+    // byte at the end
+    static byte[] randomBytes(Random r, int len) {
+        String s = randomString(r, len);
+        ByteBuffer bb = ByteBuffer.allocate(s.length() * 2 + 1)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < s.length(); i++)
+            bb.putChar(s.charAt(i));
+        if (r.nextInt(4) == 0)
+            bb.put((byte) r.nextInt());
+        return Arrays.copyOf(bb.array(), bb.position());
+    }
+
+    private static String decode(Charset cs, CodingErrorAction action,
+                                 ByteBuffer src, Random r, boolean directDst)
+    {
+        CharsetDecoder d = cs.newDecoder().onMalformedInput(action);
+        return Streaming.decode(d, src, r, directDst);
+    }
+
+    private static String encode(Charset cs, CodingErrorAction action,
+                                 CharBuffer src, Random r, boolean directDst)
+    {
+        return Streaming.encode(cs.newEncoder().onMalformedInput(action),
+                                src, r, directDst);
+    }
+
+    @Test
+    void decodesLikeTheJdk() {
+        Random r = new Random(1);
+        for (int iter = 0; iter < 3000; iter++) {
+            byte[] b = randomBytes(r, r.nextInt(50));
+            for (CodingErrorAction action : ACTIONS) {
+                String expected = decode(StandardCharsets.UTF_16LE, action,
+                                         ByteBuffer.wrap(b), null, false);
+                for (Source kind : Source.values()) {
+                    boolean directDst = r.nextBoolean();
+                    String actual = decode(CHARSET, action,
+                                           Streaming.bytes(b, kind), r, directDst);
+                    assertEquals(expected, actual, () -> action + " " + kind
+                            + (directDst ? " direct" : "") + " " + Arrays.toString(b));
+                }
+            }
+        }
+    }
+
+    @Test
+    void encodesLikeTheJdk() {
+        Random r = new Random(2);
+        for (int iter = 0; iter < 3000; iter++) {
+            String s = randomString(r, r.nextInt(50));
+            for (CodingErrorAction action : ACTIONS) {
+                String expected = encode(StandardCharsets.UTF_16LE, action,
+                                         CharBuffer.wrap(s), null, false);
+                for (Source kind : Source.values()) {
+                    boolean directDst = r.nextBoolean();
+                    String actual = encode(CHARSET, action,
+                                           Streaming.chars(s, kind), r, directDst);
+                    assertEquals(expected, actual, () -> action + " " + kind
+                            + (directDst ? " direct" : "") + " " + s);
+                }
+            }
+        }
+    }
+
+    @Test
+    void otherReplacementsLikeTheJdk() {
+        // replacements the loops copy themselves
+        Random r = new Random(6);
+        byte[] repl = { '?', 0 };
+        for (int iter = 0; iter < 1000; iter++) {
+            byte[] b = randomBytes(r, r.nextInt(50));
+            String expected = Streaming.decode(StandardCharsets.UTF_16LE.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).replaceWith("?"),
+                    ByteBuffer.wrap(b), null, false);
+            String s = randomString(r, r.nextInt(50));
+            String encoded = Streaming.encode(StandardCharsets.UTF_16LE.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).replaceWith(repl),
+                    CharBuffer.wrap(s), null, false);
+            for (Source kind : Source.values()) {
+                assertEquals(expected, Streaming.decode(CHARSET.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE).replaceWith("?"),
+                        Streaming.bytes(b, kind), r, r.nextBoolean()));
+                assertEquals(encoded, Streaming.encode(CHARSET.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE).replaceWith(repl),
+                        Streaming.chars(s, kind), r, r.nextBoolean()));
+            }
+        }
+    }
+
+    @Test
+    void oneShotMethodsDecodeLikeTheJdk() throws CharacterCodingException {
+        Random r = new Random(3);
+        for (int iter = 0; iter < 3000; iter++) {
+            byte[] b = randomBytes(r, r.nextInt(50));
+            for (CodingErrorAction action : ACTIONS) {
+                CharsetDecoder jdk = StandardCharsets.UTF_16LE.newDecoder()
+                        .onMalformedInput(action);
+                String expected;
+                try {
+                    expected = jdk.decode(ByteBuffer.wrap(b)).toString();
+                } catch (MalformedInputException x) {
+                    assertThrows(MalformedInputException.class,
+                            () -> UTF_16LE.newString(b, 0, b.length, action));
+                    for (Source kind : Source.values()) {
+                        assertThrows(MalformedInputException.class,
+                                () -> UTF_16LE.newString(Streaming.bytes(b, kind), action));
+                    }
+                    continue;
+                }
+                assertEquals(expected, UTF_16LE.newString(b, 0, b.length, action));
+                if (action == CodingErrorAction.REPLACE) {
+                    assertEquals(expected.length(), UTF_16LE.decodedLength(b, 0, b.length));
+                    assertEquals(expected.length(),
+                            UTF_16LE.decodedLength(ByteBuffer.wrap(b).asReadOnlyBuffer()));
+                }
+                for (Source kind : Source.values()) {
+                    ByteBuffer src = Streaming.bytes(b, kind);
+                    assertEquals(expected, UTF_16LE.newString(src, action));
+                    assertEquals(0, src.position());
+                    CharBuffer dst = r.nextBoolean()
+                            ? CharBuffer.allocate(b.length + 1)
+                            : ByteBuffer.allocateDirect(b.length * 2 + 2).asCharBuffer();
+                    dst.position(1);
+                    int n = UTF_16LE.getChars(src, dst, action);
+                    assertEquals(expected, dst.limit(1 + n).toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    void oneShotMethodsEncodeLikeTheJdk() throws CharacterCodingException {
+        Random r = new Random(4);
+        for (int iter = 0; iter < 3000; iter++) {
+            String s = randomString(r, r.nextInt(50));
+            for (CodingErrorAction action : ACTIONS) {
+                String expected;
+                try {
+                    ByteBuffer bb = StandardCharsets.UTF_16LE.newEncoder()
+                            .onMalformedInput(action).encode(CharBuffer.wrap(s));
+                    expected = latin1(Arrays.copyOf(bb.array(), bb.limit()));
+                } catch (MalformedInputException x) {
+                    assertThrows(MalformedInputException.class,
+                            () -> UTF_16LE.getBytes(s, action));
+                    continue;
+                }
+                assertEquals(expected, latin1(UTF_16LE.getBytes(s, action)));
+                if (action == CodingErrorAction.REPLACE)
+                    assertEquals(expected.length(), UTF_16LE.encodedLength(s));
+                for (ByteBuffer dst : new ByteBuffer[] {
+                        ByteBuffer.allocate(expected.length() + 2),
+                        ByteBuffer.allocateDirect(expected.length() + 2) }) {
+                    dst.position(1);
+                    int n = UTF_16LE.getBytes(s, dst, action);
+                    assertEquals(1, dst.position());
+                    byte[] b = new byte[n];
+                    dst.get(1, b);
+                    assertEquals(expected, latin1(b));
+                }
+            }
+        }
+    }
+
+    @Test
+    void getBytesWritesNothingUnlessAllFits() throws CharacterCodingException {
+        String s = "ascii \u20ac";
+        int n = UTF_16LE.getBytes(s).length;
+        for (ByteBuffer dst : new ByteBuffer[] {
+                ByteBuffer.allocate(n + 1), ByteBuffer.allocateDirect(n + 1) }) {
+            dst.position(2);
+            assertThrows(BufferOverflowException.class,
+                    () -> UTF_16LE.getBytes(s, dst, CodingErrorAction.REPORT));
+            dst.position(1);
+            assertThrows(MalformedInputException.class,
+                    () -> UTF_16LE.getBytes(s + '\ud800', dst, CodingErrorAction.REPORT));
+            for (int i = 0; i < dst.capacity(); i++)
+                assertEquals(0, dst.get(i));
+            assertEquals(n, UTF_16LE.getBytes(s, dst, CodingErrorAction.REPORT));
+            assertEquals(1, dst.position());
+            byte[] b = new byte[n];
+            dst.get(1, b);
+            assertEquals(latin1(UTF_16LE.getBytes(s)), latin1(b));
+        }
+    }
+
+    @Test
+    void wtf16CopiesEveryCodeUnit() {
+        Random r = new Random(5);
+        for (int iter = 0; iter < 3000; iter++) {
+            String s = randomString(r, r.nextInt(50));
+            ByteBuffer bb = ByteBuffer.allocate(s.length() * 2)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < s.length(); i++)
+                bb.putChar(s.charAt(i));
+            byte[] b = bb.array();
+            for (Source kind : Source.values()) {
+                assertEquals(s, decode(UTF_16LE.WTF_16LE, CodingErrorAction.REPORT,
+                                       Streaming.bytes(b, kind), r, r.nextBoolean()));
+                assertEquals(latin1(b), encode(UTF_16LE.WTF_16LE, CodingErrorAction.REPORT,
+                                               Streaming.chars(s, kind), r, r.nextBoolean()));
+            }
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.datadobi.charset;
+
+import static com.datadobi.charset.Streaming.latin1;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.datadobi.charset.Streaming.Source;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares {@link UTF_8} with the JDK's UTF-8 coders for each error
+ * action, on heap, direct and read-only buffers, with the input in chunks
+ * and small output buffers, and checks the surrogateescape and WTF-8
+ * modes against what they are defined to do.
+ */
+class UTF_8Test {
+
+    private static final CodingErrorAction[] ACTIONS = {
+        CodingErrorAction.REPORT, CodingErrorAction.REPLACE, CodingErrorAction.IGNORE
+    };
+
+    // lead and continuation bytes at the edges of the legal ranges
+    private static final int[] EDGES = {
+        0x80, 0x8f, 0x90, 0x9f, 0xa0, 0xbf, 0xc0, 0xc1, 0xc2, 0xdf,
+        0xe0, 0xe1, 0xed, 0xef, 0xf0, 0xf1, 0xf4, 0xf5, 0xff
+    };
+
+    private static final char[] CHARS = {
+        'a', 0x7f, 0x80, 0xe9, 0x7ff, 0x800, 0x20ac, 0xd7ff, 0xe000, 0xfffd,
+        0xffff, 0xd800, 0xdbff, 0xdc00, 0xdc80, 0xdcff, 0xdfff
+    };
+
+    // Valid UTF-8 with malformed bytes spliced in, and ASCII runs long
+    // enough for the word-at-a-time loops
+    static byte[] randomBytes(Random r, int len) {
+        byte[] b = new byte[len];
+        int i = 0;
+        while (i < len) {
+            switch (r.nextInt(4)) {
+            case 0:
+                int run = r.nextInt(40);
+                for (int j = 0; j < run && i < len; j++)
+                    b[i++] = (byte) ('a' + r.nextInt(26));
+                break;
+            case 1:
+                b[i++] = (byte) EDGES[r.nextInt(EDGES.length)];
+                break;
+            default:
+                byte[] s = randomString(r, 1).getBytes(StandardCharsets.UTF_8);
+                for (int j = 0; j < s.length && i < len; j++)
+                    b[i++] = s[j];
+            }
+        }
+        return b;
+    }
+
+    static String randomString(Random r, int len) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < len) {
+            switch (r.nextInt(8)) {
+            case 0:
+                sb.appendCodePoint(0x10000 + r.nextInt(0x100000));
+                break;
+            case 1:
+                sb.append("ascii run, ascii run");
+                break;
+            default:
+                sb.append(CHARS[r.nextInt(CHARS.length)]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String decode(Charset cs, CodingErrorAction action,
+                                 ByteBuffer src, Random r, boolean directDst)
+    {
+        CharsetDecoder d = cs.newDecoder().onMalformedInput(action);
+        return Streaming.decode(d, src, r, directDst);
+    }
+
+    private static String encode(Charset cs, CodingErrorAction action,
+                                 CharBuffer src, Random r, boolean directDst)
+    {
+        return Streaming.encode(cs.newEncoder().onMalformedInput(action),
+                                src, r, directDst);
+    }
+
+    // What surrogateescape decodes b to: the JDK's result, with each byte
+    // of every malformed sequence mapped to U+DC80..U+DCFF
+    private static String escaped(byte[] b) {
+        CharsetDecoder d = StandardCharsets.UTF_8.newDecoder();
+        ByteBuffer src = ByteBuffer.wrap(b);
+        CharBuffer dst = CharBuffer.allocate(b.length);
+        for (;;) {
+            CoderResult cr = d.decode(src, dst, true);
+            if (!cr.isError())
+                break;
+            for (int i = 0; i < cr.length(); i++)
+                dst.put((char) (0xdc00 | (src.get() & 0xff)));
+        }
+        d.flush(dst);
+        return dst.flip().toString();
+    }
+
+    @Test
+    void decodesLikeTheJdk() {
+        Random r = new Random(1);
+        for (int iter = 0; iter < 3000; iter++) {
+            byte[] b = randomBytes(r, r.nextInt(100));
+            for (CodingErrorAction action : ACTIONS) {
+                String expected = decode(StandardCharsets.UTF_8, action,
+                                         ByteBuffer.wrap(b), null, false);
+                for (Source kind : Source.values()) {
+                    boolean directDst = r.nextBoolean();
+                    String actual = decode(UTF_8.INSTANCE, action,
+                                           Streaming.bytes(b, kind), r, directDst);
+                    assertEquals(expected, actual, () -> action + " " + kind
+                            + (directDst ? " direct" : "") + " " + Arrays.toString(b));
+                    assertEquals(expected, decode(UTF_8.INSTANCE, action,
+                            Streaming.bytes(b, kind), null, false));
+                }
+            }
+        }
+    }
+
+    @Test
+    void asciiRunsOfDirectBuffers() {
+        // runs of every length up to a few words, at every alignment,
+        // ended by a non-ASCII byte or by the limit
+        ByteBuffer bb = ByteBuffer.allocateDirect(64);
+        for (int off = 0; off < 8; off++) {
+            for (int len = 0; len <= 40; len++) {
+                for (int stop = 0; stop <= len; stop++) {
+                    byte[] b = new byte[len];
+                    for (int i = 0; i < len; i++)
+                        b[i] = (byte) ('!' + i);
+                    if (stop < len)
+                        b[stop] = (byte) (0x80 | stop);
+                    bb.clear().position(off);
+                    ByteBuffer src = bb.put(b).flip().position(off);
+                    for (ByteBuffer s : new ByteBuffer[] { src, src.asReadOnlyBuffer() }) {
+                        char[] da = new char[len + 2];
+                        assertEquals(stop, UTF_8.decodeASCII(s, off, da, 1, len));
+                        assertEquals(new String(b, 0, stop, StandardCharsets.ISO_8859_1),
+                                     new String(da, 1, stop));
+                        assertEquals(0, da[0]);
+                        assertEquals(0, da[stop + 1]);
+                        assertEquals(off, s.position());
+                    }
+                    String expected = new String(b, StandardCharsets.UTF_8);
+                    assertEquals(expected, UTF_8.newString(src.duplicate()));
+                    assertEquals(expected, decode(UTF_8.INSTANCE, CodingErrorAction.REPLACE,
+                                                  src.duplicate(), null, false));
+                }
+            }
+        }
+    }
+
+    @Test
+    void asciiRunsOfArrays() {
+        // as above, both ways, past the lengths once copied through String
+        for (int off = 0; off < 8; off++) {
+            for (int len = 0; len <= 80; len++) {
+                for (int stop = 0; stop <= len; stop++) {
+                    byte[] b = new byte[off + len];
+                    char[] c = new char[off + len];
+                    for (int i = 0; i < len; i++)
+                        c[off + i] = (char) (b[off + i] = (byte) ('!' + i));
+                    if (stop < len) {
+                        b[off + stop] = (byte) (0x80 | stop);
+                        c[off + stop] = (char) (0x80 + stop * 37);
+                    }
+                    String ascii = new String(b, off, stop, StandardCharsets.ISO_8859_1);
+                    char[] da = new char[len + 2];
+                    assertEquals(stop, UTF_8.decodeASCII(b, off, da, 1, len));
+                    assertEquals(ascii, new String(da, 1, stop));
+                    assertEquals(0, da[0]);
+                    assertEquals(0, da[stop + 1]);
+
+                    byte[] ba = new byte[len + 2];
+                    assertEquals(stop, UTF_8.encodeASCII(c, off, ba, 1, len));
+                    assertEquals(ascii, new String(ba, 1, stop, StandardCharsets.ISO_8859_1));
+                    assertEquals(0, ba[0]);
+                    assertEquals(0, ba[stop + 1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    void encodesLikeTheJdk() {
+        Random r = new Random(2);
+        for (int iter = 0; iter < 3000; iter++) {
+            String s = randomString(r, r.nextInt(60));
+            for (CodingErrorAction action : ACTIONS) {
+                String expected = encode(StandardCharsets.UTF_8, action,
+                                         CharBuffer.wrap(s), null, false);
+                for (Source kind : Source.values()) {
+                    boolean directDst = r.nextBoolean();
+                    String actual = encode(UTF_8.INSTANCE, action,
+                                           Streaming.chars(s, kind), r, directDst);
+                    assertEquals(expected, actual, () -> action + " " + kind
+                            + (directDst ? " direct" : "") + " " + s);
+                }
+            }
+        }
+    }
+
+    @Test
+    void otherReplacementsLikeTheJdk() {
+        // replacements the loops copy themselves, the encoder's longer
+        // than some of the room left in the output
+        Random r = new Random(8);
+        byte[] repl = { '<', '?', '>' };
+        for (int iter = 0; iter < 1000; iter++) {
+            byte[] b = randomBytes(r, r.nextInt(100));
+            String expected = Streaming.decode(StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).replaceWith("?"),
+                    ByteBuffer.wrap(b), null, false);
+            String s = randomString(r, r.nextInt(60));
+            String encoded = Streaming.encode(StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).replaceWith(repl),
+                    CharBuffer.wrap(s), null, false);
+            for (Source kind : Source.values()) {
+                assertEquals(expected, Streaming.decode(UTF_8.INSTANCE.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE).replaceWith("?"),
+                        Streaming.bytes(b, kind), r, r.nextBoolean()));
+                assertEquals(encoded, Streaming.encode(UTF_8.INSTANCE.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE).replaceWith(repl),
+                        Streaming.chars(s, kind), r, r.nextBoolean()));
+            }
+        }
+    }
+
+    @Test
+    void oneShotMethodsDecodeLikeTheJdk() throws CharacterCodingException {
+        Random r = new Random(3);
+        for (int iter = 0; iter < 3000; iter++) {
+            byte[] b = randomBytes(r, r.nextInt(100));
+            for (CodingErrorAction action : ACTIONS) {
+                CharsetDecoder jdk = StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(action);
+                String expected;
+                try {
+                    expected = jdk.decode(ByteBuffer.wrap(b)).toString();
+                } catch (MalformedInputException x) {
+                    assertThrows(MalformedInputException.class,
+                            () -> UTF_8.newString(b, 0, b.length, action));
+                    for (Source kind : Source.values()) {
+                        assertThrows(MalformedInputException.class,
+                                () -> UTF_8.newString(Streaming.bytes(b, kind), action));
+                    }
+                    continue;
+                }
+                assertEquals(expected, UTF_8.newString(b, 0, b.length, action));
+                if (action == CodingErrorAction.REPLACE) {
+                    assertEquals(expected.length(), UTF_8.decodedLength(b, 0, b.length));
+                    assertEquals(expected.length(),
+                            UTF_8.decodedLength(ByteBuffer.wrap(b).asReadOnlyBuffer()));
+                }
+                for (Source kind : Source.values()) {
+                    ByteBuffer src = Streaming.bytes(b, kind);
+                    assertEquals(expected, UTF_8.newString(src, action));
+                    assertEquals(0, src.position());
+                    CharBuffer dst = r.nextBoolean()
+                            ? CharBuffer.allocate(b.length + 1)
+                            : ByteBuffer.allocateDirect(b.length * 2 + 2).asCharBuffer();
+                    dst.position(1);
+                    int n = UTF_8.getChars(src, dst, action);
+                    assertEquals(expected, dst.limit(1 + n).toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    void oneShotMethodsEncodeLikeTheJdk() throws CharacterCodingException {
+        Random r = new Random(4);
+        for (int iter = 0; iter < 3000; iter++) {
+            String s = randomString(r, r.nextInt(60));
+            for (CodingErrorAction action : ACTIONS) {
+                String expected;
+                try {
+                    ByteBuffer bb = StandardCharsets.UTF_8.newEncoder()
+                            .onMalformedInput(action).encode(CharBuffer.wrap(s));
+                    expected = latin1(Arrays.copyOf(bb.array(), bb.limit()));
+                } catch (MalformedInputException x) {
+                    assertThrows(MalformedInputException.class,
+                            () -> UTF_8.getBytes(s, action));
+                    continue;
+                }
+                assertEquals(expected, latin1(UTF_8.getBytes(s, action)));
+                if (action == CodingErrorAction.REPLACE)
+                    assertEquals(expected.length(), UTF_8.encodedLength(s));
+                for (ByteBuffer dst : new ByteBuffer[] {
+                        ByteBuffer.allocate(expected.length() + 2),
+                        ByteBuffer.allocateDirect(expected.length() + 2) }) {
+                    dst.position(1);
+                    int n = UTF_8.getBytes(s, dst, action);
+                    assertEquals(1, dst.position());
+                    byte[] b = new byte[n];
+                    dst.get(1, b);
+                    assertEquals(expected, latin1(b));
+                }
+            }
+        }
+    }
+
+    @Test
+    void getBytesWritesNothingUnlessAllFits() throws CharacterCodingException {
+        String s = "ascii run, ascii run \u20ac";
+        int n = UTF_8.getBytes(s).length;
+        for (ByteBuffer dst : new ByteBuffer[] {
+                ByteBuffer.allocate(n + 1), ByteBuffer.allocateDirect(n + 1) }) {
+            dst.position(2);
+            assertThrows(BufferOverflowException.class,
+                    () -> UTF_8.getBytes(s, dst, CodingErrorAction.REPORT));
+            dst.position(1);
+            assertThrows(MalformedInputException.class,
+                    () -> UTF_8.getBytes(s + '\ud800', dst, CodingErrorAction.REPORT));
+            for (int i = 0; i < dst.capacity(); i++)
+                assertEquals(0, dst.get(i));
+            assertEquals(n, UTF_8.getBytes(s, dst, CodingErrorAction.REPORT));
+            assertEquals(1, dst.position());
+            byte[] b = new byte[n];
+            dst.get(1, b);
+            assertEquals(latin1(UTF_8.getBytes(s)), latin1(b));
+        }
+    }
+
+    @Test
+    void validateFindsWhereTheJdkStops() {
+        Random r = new Random(7);
+        for (int iter = 0; iter < 20000; iter++) {
+            byte[] b = randomBytes(r, r.nextInt(100));
+            int off = b.length == 0 ? 0 : r.nextInt(Math.min(b.length, 4));
+            int len = b.length - off - r.nextInt(Math.min(b.length - off, 3) + 1);
+            ByteBuffer in = ByteBuffer.wrap(b, off, len);
+            CoderResult cr = StandardCharsets.UTF_8.newDecoder()
+                    .decode(in, CharBuffer.allocate(len), true);
+            int expected = cr.isError() ? in.position() : -1;
+
+            assertEquals(expected, UTF_8.validate(b, off, len), () -> Arrays.toString(b));
+            for (Source kind : Source.values()) {
+                ByteBuffer src = Streaming.bytes(b, kind);
+                src.position(off).limit(off + len);
+                assertEquals(expected, UTF_8.validate(src), () -> kind + " " + Arrays.toString(b));
+                assertEquals(off, src.position());
+                if (expected >= 0)
+                    assertEquals(cr.length(), UTF_8.malformedLength(src, expected));
+            }
+            if (expected >= 0)
+                assertEquals(cr.length(), UTF_8.malformedLength(b, expected, off + len));
+        }
+        assertThrows(IndexOutOfBoundsException.class, () -> UTF_8.validate(new byte[4], 3, 2));
+    }
+
+    @Test
+    void surrogateEscapeRoundTrips() throws CharacterCodingException {
+        Random r = new Random(5);
+        for (int iter = 0; iter < 3000; iter++) {
+            byte[] b = randomBytes(r, r.nextInt(100));
+            String expected = escaped(b);
+            assertEquals(expected, UTF_8.newStringEscaped(b, 0, b.length));
+            assertArrayEquals(b, UTF_8.getBytesEscaped(expected));
+
+            // a decoder leaves a sequence cut short by the end to the
+            // caller, so end every input with an ASCII byte
+            byte[] bx = Arrays.copyOf(b, b.length + 1);
+            bx[b.length] = 'x';
+            String sx = expected + 'x';
+            for (Source kind : Source.values()) {
+                assertEquals(sx, decode(UTF_8.SURROGATE_ESCAPE, CodingErrorAction.REPORT,
+                                        Streaming.bytes(bx, kind), r, r.nextBoolean()));
+                assertEquals(latin1(bx), encode(UTF_8.SURROGATE_ESCAPE, CodingErrorAction.REPORT,
+                                                Streaming.chars(sx, kind), r, r.nextBoolean()));
+            }
+        }
+    }
+
+    @Test
+    void surrogateEscapeLeavesSomeInputToTheCaller() {
+        // see UTF_8.SURROGATE_ESCAPE
+        CharsetDecoder d = UTF_8.SURROGATE_ESCAPE.newDecoder();
+        assertEquals("a[malformed 1 at 1]",
+                Streaming.decode(d, ByteBuffer.wrap(new byte[] { 'a', (byte) 0xc3 }),
+                                 null, false));
+        assertThrows(MalformedInputException.class,
+                () -> UTF_8.getBytesEscaped("a\udc7f"));
+        assertEquals("a[malformed 1 at 1]",
+                encode(UTF_8.SURROGATE_ESCAPE, CodingErrorAction.REPORT,
+                       CharBuffer.wrap("a\ud800b"), null, false));
+    }
+
+    @Test
+    void wtf8DecodesTheSameInEveryLoop() {
+        Random r = new Random(6);
+        for (int iter = 0; iter < 3000; iter++) {
+            byte[] b = randomBytes(r, r.nextInt(100));
+            // encoded surrogates, paired or not
+            for (int i = r.nextInt(4); i > 0 && b.length > 2; i--) {
+                int j = r.nextInt(b.length - 2);
+                b[j] = (byte) 0xed;
+                b[j + 1] = (byte) (0xa0 + r.nextInt(0x20));
+                b[j + 2] = (byte) (0x80 + r.nextInt(0x40));
+            }
+            for (CodingErrorAction action : ACTIONS) {
+                String expected = decode(UTF_8.WTF_8, action,
+                                         ByteBuffer.wrap(b), null, false);
+                for (Source kind : Source.values()) {
+                    assertEquals(expected, decode(UTF_8.WTF_8, action,
+                            Streaming.bytes(b, kind), r, r.nextBoolean()),
+                            () -> action + " " + kind + " " + Arrays.toString(b));
+                }
+            }
+        }
+    }
+
+    @Test
+    void wtf8EncodesTheSameInEveryLoop() {
+        Random r = new Random(7);
+        for (int iter = 0; iter < 3000; iter++) {
+            String s = randomString(r, r.nextInt(60));
+            // a high surrogate at the end is reported by the caller
+            if (!s.isEmpty() && Character.isHighSurrogate(s.charAt(s.length() - 1)))
+                s += 'x';
+            String expected = latin1(UTF_8.getBytesWtf8(s));
+            for (Source kind : Source.values()) {
+                assertEquals(expected, encode(UTF_8.WTF_8, CodingErrorAction.REPORT,
+                        Streaming.chars(s, kind), r, r.nextBoolean()));
+            }
+        }
+    }
+}
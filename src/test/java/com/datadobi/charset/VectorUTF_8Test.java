@@ -0,0 +1,139 @@
+package com.datadobi.charset;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Decodes random input with {@link VectorUTF_8} and with the JDK decoder.
+ * Only run by the vectorTest task, which adds the module.
+ */
+@Tag("vector")
+class VectorUTF_8Test {
+
+    private static final int[] CODE_POINTS = {
+        'a', 0x7f, 0x80, 0xe9, 0x7ff, 0x800, 0x20ac, 0xd7ff, 0xe000,
+        0xfffd, 0xffff, 0x10000, 0x1f600, 0x10ffff
+    };
+
+    private static final byte[] MALFORMED = {
+        (byte) 0x80, (byte) 0xbf, (byte) 0xc0, (byte) 0xc1, (byte) 0xc2,
+        (byte) 0xe0, (byte) 0xed, (byte) 0xf0, (byte) 0xf4, (byte) 0xf5,
+        (byte) 0xff
+    };
+
+    private static byte[] randomInput(Random r, int len, double malformed) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < len) {
+            // mostly runs of one kind, like real text
+            int cp = CODE_POINTS[r.nextInt(CODE_POINTS.length)];
+            int run = 1 + r.nextInt(40);
+            for (int i = 0; i < run; i++)
+                sb.appendCodePoint(r.nextBoolean() ? cp : 'a' + r.nextInt(26));
+        }
+        byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
+        int n = (int) (b.length * malformed);
+        for (int i = 0; i < n; i++)
+            b[r.nextInt(b.length)] = MALFORMED[r.nextInt(MALFORMED.length)];
+        return b;
+    }
+
+    private static String jdkDecode(byte[] b, int off, int len) {
+        CharsetDecoder d = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        try {
+            return d.decode(ByteBuffer.wrap(b, off, len)).toString();
+        } catch (CharacterCodingException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+    @Test
+    void isVectorized() {
+        assertTrue(UTF_8.VECTORIZED);
+    }
+
+    @Test
+    void blocksMatchJdk() throws CharacterCodingException {
+        Random r = new Random(5);
+        for (int iter = 0; iter < 2000; iter++) {
+            byte[] b = randomInput(r, 1 + r.nextInt(512),
+                                   iter % 2 == 0 ? 0 : 0.01);
+            char[] da = new char[b.length + 8];
+            long p = VectorUTF_8.decode(b, 0, b.length, da, 0, da.length);
+            int sp = (int) (p >>> 32);
+            int dp = (int) p;
+            // the decoded prefix must be well-formed and decode the same
+            String expected = StandardCharsets.UTF_8.newDecoder()
+                    .decode(ByteBuffer.wrap(b, 0, sp)).toString();
+            assertEquals(expected, new String(da, 0, dp));
+        }
+    }
+
+    @Test
+    void validInputIsDecodedUpToTheLastBlock() {
+        Random r = new Random(7);
+        for (int iter = 0; iter < 500; iter++) {
+            byte[] b = randomInput(r, 1 + r.nextInt(512), 0);
+            char[] da = new char[b.length];
+            long p = VectorUTF_8.decode(b, 0, b.length, da, 0, da.length);
+            int sp = (int) (p >>> 32);
+            // blocks are at most 64 bytes, and da never runs out first
+            assertTrue(b.length - sp < 64, sp + " of " + b.length);
+        }
+    }
+
+    @Test
+    void decoderMatchesJdk() throws CharacterCodingException {
+        Random r = new Random(11);
+        for (int iter = 0; iter < 2000; iter++) {
+            byte[] b = randomInput(r, 1 + r.nextInt(1024), 0.002 * (iter % 5));
+            CharsetDecoder d = UTF_8.INSTANCE.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE);
+            String actual = d.decode(ByteBuffer.wrap(b)).toString();
+            assertEquals(jdkDecode(b, 0, b.length), actual);
+        }
+    }
+
+    @Test
+    void decoderMatchesJdkInSmallSteps() {
+        Random r = new Random(13);
+        for (int iter = 0; iter < 200; iter++) {
+            byte[] b = randomInput(r, 1 + r.nextInt(1024), 0.002 * (iter % 3));
+            CharsetDecoder d = UTF_8.INSTANCE.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE);
+            ByteBuffer src = ByteBuffer.wrap(b);
+            CharBuffer dst = CharBuffer.allocate(b.length);
+            // a small dst makes the vector loop stop for lack of room; two
+            // chars are the least a supplementary character needs
+            CharBuffer out = CharBuffer.allocate(2 + r.nextInt(64));
+            while (true) {
+                boolean eoi = !src.hasRemaining();
+                d.decode(src, out, true);
+                out.flip();
+                dst.put(out);
+                out.clear();
+                if (eoi && !src.hasRemaining())
+                    break;
+            }
+            d.flush(out);
+            out.flip();
+            dst.put(out);
+            dst.flip();
+            char[] expected = jdkDecode(b, 0, b.length).toCharArray();
+            assertArrayEquals(expected, Arrays.copyOf(dst.array(), dst.limit()));
+        }
+    }
+}
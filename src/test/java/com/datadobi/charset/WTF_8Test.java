@@ -0,0 +1,208 @@
+package com.datadobi.charset;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Round trips strings with unpaired surrogates through {@link UTF_8#WTF_8}
+ * and the WTF transcoders, and checks that an encoded surrogate pair is
+ * rejected.
+ */
+class WTF_8Test {
+
+    private static final char[] CHARS = {
+        'a', 'z', 0x7f, 0x80, 0xe9, 0x7ff, 0x800, 0x20ac, 0xd7ff, 0xe000,
+        0xfffd, 0xffff, 0xd800, 0xdbff, 0xdc00, 0xdfff
+    };
+
+    // ED A0 80 ED B0 80, U+10000 encoded as two surrogates
+    private static final byte[] ENCODED_PAIR = {
+        (byte) 0xed, (byte) 0xa0, (byte) 0x80,
+        (byte) 0xed, (byte) 0xb0, (byte) 0x80
+    };
+
+    private static String randomString(Random r, int len) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < len) {
+            if (r.nextInt(8) == 0)
+                sb.appendCodePoint(0x10000 + r.nextInt(0x100000));
+            else
+                sb.append(CHARS[r.nextInt(CHARS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String decode(byte[] b, CodingErrorAction action)
+            throws CharacterCodingException
+    {
+        return UTF_8.WTF_8.newDecoder()
+                .onMalformedInput(action)
+                .decode(ByteBuffer.wrap(b)).toString();
+    }
+
+    // decodes b one byte at a time, so that every sequence spans calls
+    private static String decodeBytewise(byte[] b, ByteBuffer src) {
+        CharsetDecoder d = UTF_8.WTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE);
+        CharBuffer dst = CharBuffer.allocate(b.length + 1);
+        src.clear();
+        for (int i = 0; i < b.length; i++) {
+            src.put(b[i]).flip();
+            d.decode(src, dst, i == b.length - 1);
+            src.compact();
+        }
+        src.flip();
+        d.flush(dst);
+        return dst.flip().toString();
+    }
+
+    private static byte[] transcode(Transcoder t, byte[] b) {
+        ByteBuffer src = ByteBuffer.wrap(b);
+        ByteBuffer dst = ByteBuffer.allocate(b.length * 2 + 4);
+        CoderResult cr = t.transcode(src, dst, true);
+        assertTrue(cr.isUnderflow(), cr.toString());
+        assertEquals(b.length, src.position());
+        return Arrays.copyOf(dst.array(), dst.position());
+    }
+
+    @Test
+    void stringsRoundTrip() throws CharacterCodingException {
+        Random r = new Random(18);
+        for (int iter = 0; iter < 2000; iter++) {
+            String s = randomString(r, 1 + r.nextInt(64));
+            byte[] b = UTF_8.getBytesWtf8(s);
+            assertEquals(s, decode(b, CodingErrorAction.REPORT));
+            // a high surrogate at the end is left to getBytesWtf8
+            if (!Character.isHighSurrogate(s.charAt(s.length() - 1))) {
+                ByteBuffer bb = UTF_8.WTF_8.newEncoder().encode(CharBuffer.wrap(s));
+                assertArrayEquals(b, Arrays.copyOf(bb.array(), bb.limit()));
+            }
+        }
+    }
+
+    @Test
+    void bytesRoundTrip() throws CharacterCodingException {
+        // every decodable byte name encodes back to itself
+        Random r = new Random(19);
+        for (int iter = 0; iter < 2000; iter++) {
+            byte[] b = UTF_8.getBytesWtf8(randomString(r, 1 + r.nextInt(64)));
+            // splice in the second half of an encoded pair now and then
+            int i = r.nextInt(b.length);
+            b[i] = (byte) 0xed;
+            if (i + 1 < b.length)
+                b[i + 1] = (byte) (0xa0 + r.nextInt(0x20));
+            String s;
+            try {
+                s = decode(b, CodingErrorAction.REPORT);
+            } catch (MalformedInputException x) {
+                continue;
+            }
+            assertArrayEquals(b, UTF_8.getBytesWtf8(s));
+        }
+    }
+
+    @Test
+    void encodedPairIsMalformed() throws CharacterCodingException {
+        MalformedInputException x = assertThrows(MalformedInputException.class,
+                () -> decode(ENCODED_PAIR, CodingErrorAction.REPORT));
+        assertEquals(3, x.getInputLength());
+        assertEquals("\ud800\ufffd", decode(ENCODED_PAIR, CodingErrorAction.REPLACE));
+        assertEquals("\ud800", decode(ENCODED_PAIR, CodingErrorAction.IGNORE));
+
+        // the low surrogate is kept once something else comes between
+        byte[] b = { (byte) 0xed, (byte) 0xa0, (byte) 0x80, 'a',
+                     (byte) 0xed, (byte) 0xb0, (byte) 0x80 };
+        assertEquals("\ud800a\udc00", decode(b, CodingErrorAction.REPORT));
+        b = new byte[] { (byte) 0xed, (byte) 0xb0, (byte) 0x80,
+                         (byte) 0xed, (byte) 0xa0, (byte) 0x80 };
+        assertEquals("\udc00\ud800", decode(b, CodingErrorAction.REPORT));
+    }
+
+    @Test
+    void encodedPairIsMalformedAcrossCalls() {
+        for (ByteBuffer src : new ByteBuffer[] {
+                ByteBuffer.allocate(8), ByteBuffer.allocateDirect(8) }) {
+            assertEquals("\ud800\ufffd", decodeBytewise(ENCODED_PAIR, src));
+            byte[] b = { 'a', (byte) 0xed, (byte) 0xa0, (byte) 0x80, (byte) 0xc0,
+                         (byte) 0xed, (byte) 0xb0, (byte) 0x80 };
+            assertEquals("a\ud800\ufffd\udc00", decodeBytewise(b, src));
+        }
+    }
+
+    @Test
+    void encodedPairIsMalformedInReadOnlyBuffer() {
+        CharsetDecoder d = UTF_8.WTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE);
+        CharBuffer dst = CharBuffer.allocate(8);
+        d.decode(ByteBuffer.wrap(ENCODED_PAIR).asReadOnlyBuffer(), dst, true);
+        assertEquals("\ud800\ufffd", dst.flip().toString());
+    }
+
+    @Test
+    void transcodersRoundTrip() {
+        Random r = new Random(20);
+        for (int iter = 0; iter < 2000; iter++) {
+            String s = randomString(r, 1 + r.nextInt(64));
+            ByteBuffer bb = ByteBuffer.allocate(s.length() * 2)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < s.length(); i++)
+                bb.putChar(s.charAt(i));
+            byte[] utf16 = bb.array();
+            byte[] wtf8 = UTF_8.getBytesWtf8(s);
+            assertArrayEquals(wtf8, transcode(Transcoder.WTF_16LE_TO_WTF_8, utf16));
+            assertArrayEquals(utf16, transcode(Transcoder.WTF_8_TO_WTF_16LE, wtf8));
+        }
+    }
+
+    @Test
+    void transcoderRejectsEncodedPair() {
+        for (ByteBuffer src : new ByteBuffer[] {
+                ByteBuffer.wrap(ENCODED_PAIR),
+                ByteBuffer.allocateDirect(6).put(ENCODED_PAIR).flip() }) {
+            ByteBuffer dst = ByteBuffer.allocate(8);
+            CoderResult cr = Transcoder.WTF_8_TO_WTF_16LE.transcode(src, dst, true);
+            assertTrue(cr.isMalformed());
+            assertEquals(3, cr.length());
+            assertEquals(3, src.position());
+            assertEquals(2, dst.position());
+            assertEquals('\ud800', dst.order(ByteOrder.LITTLE_ENDIAN).getChar(0));
+        }
+    }
+
+    @Test
+    void transcoderWaitsForTheBytesAfterAHighSurrogate() {
+        ByteBuffer src = ByteBuffer.allocate(8);
+        ByteBuffer dst = ByteBuffer.allocate(8);
+        src.put(ENCODED_PAIR, 0, 4).flip();
+        CoderResult cr = Transcoder.WTF_8_TO_WTF_16LE.transcode(src, dst, false);
+        assertTrue(cr.isUnderflow());
+        assertEquals(0, src.position());
+        src.compact().put(ENCODED_PAIR, 4, 2).flip();
+        cr = Transcoder.WTF_8_TO_WTF_16LE.transcode(src, dst, false);
+        assertTrue(cr.isMalformed());
+        assertEquals(3, src.position());
+
+        // at the end of the input the high surrogate is written
+        src = ByteBuffer.wrap(ENCODED_PAIR, 0, 4);
+        dst.clear();
+        cr = Transcoder.WTF_8_TO_WTF_16LE.transcode(src, dst, true);
+        assertTrue(cr.isMalformed());
+        assertEquals(1, cr.length());
+        assertEquals(3, src.position());
+        assertEquals(2, dst.position());
+    }
+}
@@ -0,0 +1,209 @@
+package com.datadobi.charset;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API block decoder used by {@link UTF_8} when the
+ * {@code jdk.incubator.vector} module is present.
+ *
+ * Blocks are validated with the three lookup table algorithm of Keiser and
+ * Lemire ("Validating UTF-8 In Less Than One Instruction Per Byte"). ASCII
+ * blocks are widened with vector stores; other valid blocks are transcoded
+ * without any further checks. Each block starts on a sequence boundary, so
+ * a sequence running past the end of a block is left for the next one.
+ *
+ * This class must only be loaded after checking that the module is
+ * present, see {@link UTF_8#VECTORIZED}.
+ */
+final class VectorUTF_8 {
+
+    private VectorUTF_8() { }
+
+    private static final VectorSpecies<Byte> B = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> S = ShortVector.SPECIES_PREFERRED;
+    private static final int VLEN = B.length();
+
+    // Error classes, combined by the lookup tables
+    private static final byte TOO_SHORT = 1 << 0;
+    private static final byte TOO_LONG = 1 << 1;
+    private static final byte OVERLONG_3 = 1 << 2;
+    private static final byte TOO_LARGE = 1 << 3;
+    private static final byte SURROGATE = 1 << 4;
+    private static final byte OVERLONG_2 = 1 << 5;
+    private static final byte TOO_LARGE_1000 = 1 << 6;
+    private static final byte OVERLONG_4 = 1 << 6;
+    private static final byte TWO_CONTS = (byte) (1 << 7);
+    private static final byte CARRY = TOO_SHORT | TOO_LONG | TWO_CONTS;
+
+    // indexed by the high nibble of the previous byte
+    private static final ByteVector BYTE_1_HIGH = table(
+            // 0_______ ________ <ASCII in byte 1>
+            TOO_LONG, TOO_LONG, TOO_LONG, TOO_LONG,
+            TOO_LONG, TOO_LONG, TOO_LONG, TOO_LONG,
+            // 10______ ________ <continuation in byte 1>
+            TWO_CONTS, TWO_CONTS, TWO_CONTS, TWO_CONTS,
+            // 1100____ ________ <two byte lead in byte 1>
+            TOO_SHORT | OVERLONG_2,
+            // 1101____ ________ <two byte lead in byte 1>
+            TOO_SHORT,
+            // 1110____ ________ <three byte lead in byte 1>
+            TOO_SHORT | OVERLONG_3 | SURROGATE,
+            // 1111____ ________ <four+ byte lead in byte 1>
+            TOO_SHORT | TOO_LARGE | TOO_LARGE_1000 | OVERLONG_4);
+
+    // indexed by the low nibble of the previous byte
+    private static final ByteVector BYTE_1_LOW = table(
+            // ____0000 ________
+            CARRY | OVERLONG_3 | OVERLONG_2 | OVERLONG_4,
+            // ____0001 ________
+            CARRY | OVERLONG_2,
+            // ____001_ ________
+            CARRY,
+            CARRY,
+            // ____0100 ________
+            CARRY | TOO_LARGE,
+            // ____0101 ________
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            // ____011_ ________
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            // ____1___ ________
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            // ____1101 ________
+            CARRY | TOO_LARGE | TOO_LARGE_1000 | SURROGATE,
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            CARRY | TOO_LARGE | TOO_LARGE_1000);
+
+    // indexed by the high nibble of the current byte
+    private static final ByteVector BYTE_2_HIGH = table(
+            // ________ 0_______ <ASCII in byte 2>
+            TOO_SHORT, TOO_SHORT, TOO_SHORT, TOO_SHORT,
+            TOO_SHORT, TOO_SHORT, TOO_SHORT, TOO_SHORT,
+            // ________ 1000____
+            TOO_LONG | OVERLONG_2 | TWO_CONTS | OVERLONG_3 | TOO_LARGE_1000 | OVERLONG_4,
+            // ________ 1001____
+            TOO_LONG | OVERLONG_2 | TWO_CONTS | OVERLONG_3 | TOO_LARGE,
+            // ________ 101_____
+            TOO_LONG | OVERLONG_2 | TWO_CONTS | SURROGATE | TOO_LARGE,
+            TOO_LONG | OVERLONG_2 | TWO_CONTS | SURROGATE | TOO_LARGE,
+            // ________ 11______
+            TOO_SHORT, TOO_SHORT, TOO_SHORT, TOO_SHORT);
+
+    private static ByteVector table(int... entries) {
+        byte[] lanes = new byte[VLEN];
+        for (int i = 0; i < VLEN; i++)
+            lanes[i] = (byte) entries[i & 0xf];
+        return ByteVector.fromArray(B, lanes, 0);
+    }
+
+    /**
+     * Returns whether the block {@code in}, which starts on a sequence
+     * boundary, contains malformed input. A sequence that is cut short by
+     * the end of the block is not reported.
+     */
+    static boolean isMalformed(ByteVector in) {
+        ByteVector prev1 = in.unslice(1);
+        ByteVector sc = prev1.lanewise(VectorOperators.LSHR, 4).selectFrom(BYTE_1_HIGH)
+                .and(prev1.and((byte) 0x0f).selectFrom(BYTE_1_LOW))
+                .and(in.lanewise(VectorOperators.LSHR, 4).selectFrom(BYTE_2_HIGH));
+        // the third and fourth byte of a sequence must be continuations
+        VectorMask<Byte> must23 = in.unslice(2).compare(VectorOperators.UNSIGNED_GE, (byte) 0xe0)
+                .or(in.unslice(3).compare(VectorOperators.UNSIGNED_GE, (byte) 0xf0));
+        ByteVector must23_80 = ByteVector.zero(B).blend((byte) 0x80, must23);
+        return must23_80.lanewise(VectorOperators.XOR, sc)
+                .compare(VectorOperators.NE, (byte) 0)
+                .anyTrue();
+    }
+
+    /**
+     * Returns the index at which the last sequence of the block ending at
+     * {@code e} starts if that sequence continues past {@code e}, else
+     * {@code e}.
+     */
+    private static int sequenceEnd(byte[] sa, int e) {
+        for (int i = 1; i <= 3; i++) {
+            int b = sa[e - i] & 0xff;
+            if (b < 0x80)
+                return e;
+            if (b >= 0xc0) {
+                int n = b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : 2;
+                return n > i ? e - i : e;
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Decodes whole blocks of {@code sa[sp..sl)} into {@code da[dp..dl)}
+     * until a block is malformed or either array runs out of room for a
+     * block. {@code sp} must be on a sequence boundary.
+     *
+     * @return the new source position in the high and the new destination
+     *         position in the low 32 bits
+     */
+    static long decode(byte[] sa, int sp, int sl, char[] da, int dp, int dl) {
+        while (sl - sp >= VLEN && dl - dp >= VLEN) {
+            ByteVector in = ByteVector.fromArray(B, sa, sp);
+            if (!in.compare(VectorOperators.LT, (byte) 0).anyTrue()) {
+                ((ShortVector) in.convertShape(VectorOperators.B2S, S, 0)).intoCharArray(da, dp);
+                ((ShortVector) in.convertShape(VectorOperators.B2S, S, 1)).intoCharArray(da, dp + VLEN / 2);
+                sp += VLEN;
+                dp += VLEN;
+                continue;
+            }
+            if (isMalformed(in))
+                break;
+            int end = sequenceEnd(sa, sp + VLEN);
+            // validated, so only the sequence lengths are looked at
+            while (sp < end) {
+                int b1 = sa[sp];
+                if (b1 >= 0) {
+                    da[dp++] = (char) b1;
+                    sp++;
+                } else if ((b1 >> 5) == -2) {
+                    int b2 = sa[sp + 1];
+                    da[dp++] = (char) (((b1 << 6) ^ b2)
+                            ^
+                            (((byte) 0xC0 << 6) ^
+                                    ((byte) 0x80 << 0)));
+                    sp += 2;
+                } else if ((b1 >> 4) == -2) {
+                    int b2 = sa[sp + 1];
+                    int b3 = sa[sp + 2];
+                    da[dp++] = (char)
+                            ((b1 << 12) ^
+                                    (b2 <<  6) ^
+                                    (b3 ^
+                                            (((byte) 0xE0 << 12) ^
+                                                    ((byte) 0x80 <<  6) ^
+                                                    ((byte) 0x80 <<  0))));
+                    sp += 3;
+                } else {
+                    int b2 = sa[sp + 1];
+                    int b3 = sa[sp + 2];
+                    int b4 = sa[sp + 3];
+                    int uc = ((b1 << 18) ^
+                            (b2 << 12) ^
+                            (b3 <<  6) ^
+                            (b4 ^
+                                    (((byte) 0xF0 << 18) ^
+                                            ((byte) 0x80 << 12) ^
+                                            ((byte) 0x80 <<  6) ^
+                                            ((byte) 0x80 <<  0))));
+                    da[dp++] = Character.highSurrogate(uc);
+                    da[dp++] = Character.lowSurrogate(uc);
+                    sp += 4;
+                }
+            }
+        }
+        return ((long) sp << 32) | (dp & 0xffffffffL);
+    }
+}